@@ -1,7 +1,7 @@
 package org.paylogic.jenkins;
 
 import hudson.model.AbstractBuild;
-import hudson.model.BuildListener;
+import hudson.model.TaskListener;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.LineIterator;
 
@@ -27,7 +27,7 @@ public class LogMessageSearcher {
      * @param listener
      * @param message
      */
-    public static void logMessage(BuildListener listener, String message) {
+    public static void logMessage(TaskListener listener, String message) {
         listener.getLogger().append(getMessagePrefix() + message + "\n");
     }
 
@@ -1,5 +1,6 @@
 package org.paylogic.jenkins.advancedscm;
 
+import hudson.FilePath;
 import org.paylogic.jenkins.advancedscm.exceptions.AdvancedSCMException;
 import org.paylogic.jenkins.upmerge.releasebranch.ReleaseBranch;
 import org.paylogic.jenkins.upmerge.releasebranch.ReleaseBranchInvalidException;
@@ -8,6 +9,18 @@ import java.util.List;
 
 public interface AdvancedSCMManager {
 
+    /**
+     * Get the url of the repository the workspace was checked out from.
+     * @return String with repository url
+     */
+    public String getRepositoryUrl();
+
+    /**
+     * Get a serializable factory which creates this manager again on the agent owning the workspace.
+     * @return AgentManagerFactory
+     */
+    public AgentManagerFactory getAgentFactory();
+
     /**
      * Get Mercurial branches from command line output,
      * and put them in a List with Branches so it's nice to work with.
@@ -42,6 +55,14 @@ public interface AdvancedSCMManager {
      */
     public void updateClean(String revision) throws AdvancedSCMException;
 
+    /**
+     * Pulls given branch from the default remote and updates the workspace to its remote head with cleaning,
+     * discarding local commits on it. A branch which is not on the remote yet, like a new release branch,
+     * is updated to as it is.
+     * @param branch : String with branchname to update to.
+     */
+    public void updateToRemote(String branch) throws AdvancedSCMException;
+
     /**
      * Strip out local commits which are not pushed yet.
      */
@@ -52,6 +73,36 @@ public interface AdvancedSCMManager {
      */
     public void clean() throws AdvancedSCMException;
 
+    /**
+     * Keep given paths when cleaning the workspace, e.g. ignored build caches. Other untracked and ignored files
+     * are still removed. Applies to every clean, also those done by updateClean and stripLocal.
+     * @param paths : List of String paths relative to the repository root, which may use * and **,
+     *              empty to remove all untracked and ignored files.
+     */
+    public void setCleanKeepPaths(List<String> paths);
+
+    /**
+     * Limit the working copy to given paths, files outside of them are not checked out.
+     * Merges which can't be done in the limited working copy fall back to checking out the whole tree.
+     * @param paths : List of String relative paths from the repository root, empty to check out the whole tree.
+     */
+    public void setSparseCheckout(List<String> paths) throws AdvancedSCMException;
+
+    /**
+     * Reuse recorded conflict resolutions when merging. Conflicts which were resolved before are resolved
+     * the same way, and when conflicts are left, resolutions are first learned from the merges in the history
+     * being merged. With Git this is rerere, Mercurial uses a store of the same kind.
+     * @param reuse : whether to reuse recorded resolutions
+     */
+    public void setReuseResolutions(boolean reuse) throws AdvancedSCMException;
+
+    /**
+     * Get the directory in the repository where conflict resolutions are recorded,
+     * so they can be shared between workspaces.
+     * @return FilePath of the directory
+     */
+    public FilePath getResolutionCache();
+
     /**
      * Merge current workspace with given revision.
      * @param revision : String with revision, hash or branchname to merge with.
@@ -105,6 +156,97 @@ public interface AdvancedSCMManager {
      */
     public void pull(String remote, String branch) throws AdvancedSCMException;
 
+    /**
+     * Pulls given branch from given repository, only transferring what's needed to merge it into the target branch.
+     * History which is already in the target branch is not negotiated,
+     * and file contents are fetched lazily when the backend supports it.
+     * @throws org.paylogic.jenkins.advancedscm.exceptions.AdvancedSCMException
+     */
+    public void pullForMerge(String remote, String branch, String targetBranch) throws AdvancedSCMException;
+
+    /**
+     * Get the full id of given revision. Branch names resolve to the revision mergeWorkspaceWith would merge.
+     * @param revision : String with revision, hash or branchname.
+     * @return String with full revision id
+     */
+    public String getRevisionId(String revision) throws AdvancedSCMException;
+
+    /**
+     * Check whether a revision is already contained in another one, e.g. because it was merged before.
+     * Branch names resolve to the local head of the branch.
+     * @param ancestor : String with revision, hash or branchname which may be contained.
+     * @param descendant : String with revision, hash or branchname which may contain it.
+     * @return whether ancestor is an ancestor of descendant, or the same revision
+     */
+    public boolean isAncestor(String ancestor, String descendant) throws AdvancedSCMException;
+
+    /**
+     * Get the full id of the local head of given branch, which is what isAncestor resolves branch names to.
+     * @param branch : String branch name
+     * @return String with full revision id
+     */
+    public String getHeadId(String branch) throws AdvancedSCMException;
+
+    /**
+     * List the revisions which are ancestors of given heads but not of the known revisions, parents first.
+     * @param heads : List of String revisions to list the ancestors of.
+     * @param known : List of String revisions whose ancestors are left out, can be empty.
+     * @return List of String with the full id of every revision, followed by the ids of its parents,
+     * separated by spaces. Backends may list missing parents as a null id of zeroes.
+     */
+    public List<String> getCommits(List<String> heads, List<String> known) throws AdvancedSCMException;
+
+    /**
+     * Get the full id of the revision the workspace is updated to.
+     * @return String with full revision id
+     */
+    public String getWorkspaceRevisionId() throws AdvancedSCMException;
+
+    /**
+     * Get an id of the file tree of the revision the workspace is updated to.
+     * Revisions with the same id have the same file contents.
+     * @return String with tree id
+     */
+    public String getWorkspaceTreeId() throws AdvancedSCMException;
+
+    /**
+     * Get the last common ancestor of two revisions.
+     * @param first : String with revision, hash or branchname.
+     * @param second : String with revision, hash or branchname.
+     * @return String with full revision id
+     */
+    public String getMergeBase(String first, String second) throws AdvancedSCMException;
+
+    /**
+     * Get the changes between two revisions as a git style diff without context lines,
+     * so the same changes applied to different revisions give the same lines apart from the hunk headers.
+     * @param from : String with revision, hash or branchname to compare with.
+     * @param to : String with revision, hash or branchname with the changes.
+     * @return String with the diff
+     */
+    public String getDiff(String from, String to) throws AdvancedSCMException;
+
+    /**
+     * Write given revisions and their ancestors which are not ancestors of base to a bundle file.
+     * @param base : String with revision which is assumed to be available where the bundle is imported.
+     * @param bundleFile : String absolute path of the bundle file to write.
+     * @param revisions : String revisions to export.
+     */
+    public void exportChanges(String base, String bundleFile, String... revisions) throws AdvancedSCMException;
+
+    /**
+     * Import changes from a bundle file written by exportChanges and reset the current branch to given revision.
+     * @param bundleFile : String absolute path of the bundle file.
+     * @param revision : String with revision from the bundle to update to.
+     */
+    public void importChanges(String bundleFile, String revision) throws AdvancedSCMException;
+
+    /**
+     * Maintain the repository, so operations on long-lived workspaces don't get slower over time.
+     * Logs the time spent per step. Steps which are not supported by the installed version are skipped.
+     */
+    public void maintain() throws AdvancedSCMException;
+
     /**
      * Get release branch from given branch name.
      * @param branch : String branch name
@@ -0,0 +1,21 @@
+package org.paylogic.jenkins.advancedscm;
+
+import hudson.model.TaskListener;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * Serializable recipe for an AdvancedSCMManager, which creates the manager again on the agent owning the workspace.
+ * Used to run whole sequences of SCM operations as one callable on the agent,
+ * instead of doing a remoting round trip for every command.
+ */
+public interface AgentManagerFactory extends Serializable {
+
+    /**
+     * Create the manager. Has to be called on the agent owning the workspace.
+     * @param listener : TaskListener to log to
+     * @return AdvancedSCMManager running its commands locally
+     */
+    public AdvancedSCMManager getManager(TaskListener listener) throws IOException, InterruptedException;
+}
@@ -0,0 +1,76 @@
+package org.paylogic.jenkins.advancedscm;
+
+import hudson.FilePath;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Sequence of SCM operations which is sent to the agent owning the workspace and run there as one callable,
+ * so the operations don't each need a remoting round trip from the master.
+ * Implementations have to be serializable, so they can't be inner classes of build steps.
+ * @param <T> : result of the sequence, sent back to the master
+ */
+public abstract class AgentSequence<T> implements FilePath.FileCallable<T> {
+    private static final long serialVersionUID = 1L;
+
+    private final AgentManagerFactory factory;
+    private final TaskListener listener;
+
+    protected AgentSequence(AdvancedSCMManager amm, TaskListener listener) {
+        this.factory = amm.getAgentFactory();
+        this.listener = listener;
+    }
+
+    /**
+     * Run the operations with a manager running its commands locally on the agent.
+     * @param amm : AdvancedSCMManager created on the agent
+     * @param listener : TaskListener logging to the build log
+     * @return result of the sequence
+     */
+    protected abstract T run(AdvancedSCMManager amm, TaskListener listener) throws Exception;
+
+    public T invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+        try {
+            return run(factory.getManager(listener), listener);
+        } catch (IOException e) {
+            throw e;
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new OperationException(e);
+        }
+    }
+
+    /**
+     * Run the sequence on the agent owning given workspace.
+     * Exceptions of the operations are thrown as they would have been when running on the master.
+     * @param workspace : FilePath of the workspace
+     * @param sequence : AgentSequence to run
+     * @return result of the sequence
+     */
+    public static <T> T act(FilePath workspace, AgentSequence<T> sequence) throws Exception {
+        try {
+            return workspace.act(sequence);
+        } catch (IOException e) {
+            // on an agent, FilePath wraps the exception in an IOException of its own
+            for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+                if (cause instanceof OperationException) {
+                    throw (Exception) cause.getCause();
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Carries exceptions of the operations back to the master, as callables can only throw IOExceptions.
+     */
+    private static class OperationException extends IOException {
+        private OperationException(Exception cause) {
+            super(cause);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package org.paylogic.jenkins.advancedscm;
+
+import org.paylogic.jenkins.advancedscm.exceptions.AdvancedSCMException;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Asynchronous variant of AdvancedSCMManager, returning futures for operations which are run on a small,
+ * bounded pool of threads. Create one per build step and shut it down when done.
+ * Operations on the same repository can only overlap when they touch different parts of it,
+ * like fetching from a remote while the working copy is updated. Git allows that, as a fetch doesn't lock
+ * the index. Mercurial doesn't: hg pull takes the working copy lock as well as the store lock, so the operations
+ * are still run one after the other there, only without blocking the caller.
+ */
+public class AsyncSCMManager {
+
+    public static int MAX_THREADS = Integer.getInteger(AsyncSCMManager.class.getName() + ".maxThreads", 2);
+
+    private final AdvancedSCMManager amm;
+    private final ExecutorService executor;
+
+    public AsyncSCMManager(AdvancedSCMManager amm) {
+        this.amm = amm;
+        this.executor = Executors.newFixedThreadPool(Math.max(1, MAX_THREADS), new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Gatekeeper SCM operation");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @return the synchronous manager the operations are run with
+     */
+    public AdvancedSCMManager getManager() {
+        return amm;
+    }
+
+    /**
+     * Run an operation on the pool.
+     * @param operation : Callable to run
+     * @return Future with the result of the operation
+     */
+    public <T> Future<T> submit(Callable<T> operation) {
+        return executor.submit(operation);
+    }
+
+    /**
+     * Asynchronous AdvancedSCMManager.pull(remote, branch).
+     */
+    public Future<Void> pull(final String remote, final String branch) {
+        return submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                amm.pull(remote, branch);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Asynchronous AdvancedSCMManager.pullForMerge(remote, branch, targetBranch).
+     */
+    public Future<Void> pullForMerge(final String remote, final String branch, final String targetBranch) {
+        return submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                amm.pullForMerge(remote, branch, targetBranch);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Asynchronous AdvancedSCMManager.updateClean(revision).
+     */
+    public Future<Void> updateClean(final String revision) {
+        return submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                amm.updateClean(revision);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Asynchronous AdvancedSCMManager.setSparseCheckout(paths).
+     */
+    public Future<Void> setSparseCheckout(final List<String> paths) {
+        return submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                amm.setSparseCheckout(paths);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Asynchronous AdvancedSCMManager.getBranchNames(all).
+     */
+    public Future<List<String>> getBranchNames(final boolean all) {
+        return submit(new Callable<List<String>>() {
+            public List<String> call() throws Exception {
+                return amm.getBranchNames(all);
+            }
+        });
+    }
+
+    /**
+     * Wait for an operation, throwing its exception as the synchronous operation would have.
+     * @param future : Future returned by one of the operations
+     * @return result of the operation
+     */
+    public static <T> T get(Future<T> future) throws AdvancedSCMException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof AdvancedSCMException) {
+                throw (AdvancedSCMException) cause;
+            } else if (cause instanceof InterruptedException) {
+                throw (InterruptedException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new AdvancedSCMException(String.valueOf(cause));
+        }
+    }
+
+    /**
+     * Stop all operations which are still running, and the threads of the pool.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
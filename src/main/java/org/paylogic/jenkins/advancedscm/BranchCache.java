@@ -0,0 +1,337 @@
+package org.paylogic.jenkins.advancedscm;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+import lombok.extern.java.Log;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.logging.Level;
+
+/**
+ * Cache of branch listings, kept in the JVM running the backend, in two levels.
+ * Per workspace, listings are stored together with the state of the files they are read from (the changelog for
+ * Mercurial, the remote refs for Git), which is taken without running a command, so a workspace only lists its
+ * branches again when that state changed.
+ * Per repository url, listings are shared by all jobs, keyed by the content they were read from: the refs of the
+ * repository url for Git, which are merged with the branches of forks in the workspace, and the whole changelog
+ * index for Mercurial, so changesets which only exist in a workspace give it a listing of its own.
+ * The amount of workspaces and shared listings is bounded, the least recently used one is evicted first.
+ */
+@Log
+public class BranchCache {
+
+    public static int MAX_WORKSPACES = Integer.getInteger(BranchCache.class.getName() + ".maxWorkspaces", 64);
+    public static int MAX_REPOSITORY_LISTINGS = Integer.getInteger(
+            BranchCache.class.getName() + ".maxRepositoryListings", 64);
+
+    private static final BranchCache INSTANCE = new BranchCache(MAX_WORKSPACES, MAX_REPOSITORY_LISTINGS);
+
+    private final Map<String, Entry> entries;
+
+    /**
+     * Shared listings per repository url and content state, as there can be jobs at different states of a repository.
+     */
+    private final Map<String, Entry> repositories;
+
+    public BranchCache(int maxWorkspaces, int maxRepositoryListings) {
+        this.entries = createLru(maxWorkspaces);
+        this.repositories = createLru(maxRepositoryListings);
+    }
+
+    private static Map<String, Entry> createLru(final int maxEntries) {
+        return new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > maxEntries) {
+                    log.log(Level.FINE, "Evicting branch listing of " + eldest.getKey() + " from the cache.");
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Get the cache shared by all builds in this JVM.
+     * @return BranchCache instance
+     */
+    public static BranchCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Get cached branches of a workspace.
+     * @param workspace : String key of the workspace
+     * @param state : String current state of the repository the listing has to match
+     * @param all : get all or only open branches
+     * @return List of Branches, or null if there is no listing for this state
+     */
+    public synchronized List<Branch> get(String workspace, String state, boolean all) {
+        return get(entries, workspace, state, all);
+    }
+
+    /**
+     * Get the shared branches of a repository, which were listed in any workspace.
+     * @param repositoryUrl : String url of the repository
+     * @param state : String content state the listing has to be read from
+     * @param all : get all or only open branches
+     * @return List of Branches, or null if there is no listing for this state
+     */
+    public synchronized List<Branch> getShared(String repositoryUrl, String state, boolean all) {
+        return get(repositories, getSharedKey(repositoryUrl, state), state, all);
+    }
+
+    private static List<Branch> get(Map<String, Entry> entries, String key, String state, boolean all) {
+        if (key == null || state == null) {
+            return null;
+        }
+        Entry entry = entries.get(key);
+        if (entry == null || !entry.state.equals(state)) {
+            return null;
+        }
+        List<Branch> branches = all ? entry.all : entry.open;
+        if (branches == null) {
+            return null;
+        }
+        return new ArrayList<Branch>(branches);
+    }
+
+    /**
+     * Store branches of a workspace, replacing listings taken from a different state.
+     * @param workspace : String key of the workspace
+     * @param state : String state of the repository the listing was taken from
+     * @param all : listing contains all or only open branches
+     * @param branches : List of Branches
+     */
+    public synchronized void put(String workspace, String state, boolean all, List<Branch> branches) {
+        put(entries, workspace, state, all, branches);
+    }
+
+    /**
+     * Share branches of a repository with all workspaces of it.
+     * @param repositoryUrl : String url of the repository
+     * @param state : String content state the listing was read from
+     * @param all : listing contains all or only open branches
+     * @param branches : List of Branches
+     */
+    public synchronized void putShared(String repositoryUrl, String state, boolean all, List<Branch> branches) {
+        put(repositories, getSharedKey(repositoryUrl, state), state, all, branches);
+    }
+
+    private static void put(Map<String, Entry> entries, String key, String state, boolean all, List<Branch> branches) {
+        if (key == null || state == null) {
+            return;
+        }
+        Entry entry = entries.get(key);
+        if (entry == null || !entry.state.equals(state)) {
+            entry = new Entry(state);
+            entries.put(key, entry);
+        }
+        if (all) {
+            entry.all = new ArrayList<Branch>(branches);
+        } else {
+            entry.open = new ArrayList<Branch>(branches);
+        }
+    }
+
+    /**
+     * Shared listings are kept per state, so jobs at different states of a repository don't replace each other's.
+     */
+    private static String getSharedKey(String repositoryUrl, String state) {
+        return repositoryUrl == null || state == null ? null : repositoryUrl + " " + state;
+    }
+
+    /**
+     * Forget cached branches of a workspace.
+     * @param workspace : String key of the workspace
+     */
+    public synchronized void invalidate(String workspace) {
+        entries.remove(workspace);
+    }
+
+    /**
+     * Get the key of a workspace, which is unique over all nodes.
+     * @param repository : FilePath of the repository in the workspace
+     * @return String key
+     */
+    public static String getWorkspace(FilePath repository) {
+        VirtualChannel channel = repository.getChannel();
+        return (channel == null ? "" : channel.toString()) + ":" + repository.getRemote();
+    }
+
+    /**
+     * Get the state of the files a listing is read from, without running a command.
+     * Small files are read, and larger ones only stat'ed, since they are rewritten by renaming a new file.
+     * @param repository : FilePath of the repository in the workspace
+     * @param paths : String paths of files and directories, relative to the repository
+     * @return String state, or null when it can't be determined
+     */
+    public static String getState(FilePath repository, String... paths) {
+        try {
+            return repository.act(new GetState(paths));
+        } catch (Exception e) {
+            log.log(Level.WARNING, "Could not determine state of " + repository + ", not using branch cache.", e);
+            return null;
+        }
+    }
+
+    private static class GetState implements FilePath.FileCallable<String> {
+        private static final long serialVersionUID = 1L;
+        private static final long MAX_READ = 4096;
+        private final String[] paths;
+
+        private GetState(String[] paths) {
+            this.paths = paths;
+        }
+
+        public String invoke(File repository, VirtualChannel channel) throws IOException, InterruptedException {
+            StringBuilder state = new StringBuilder();
+            for (String path : paths) {
+                add(state, new File(repository, path), path);
+            }
+            return Util.getDigestOf(state.toString());
+        }
+
+        private void add(StringBuilder state, File file, String name) throws IOException {
+            if (file.isDirectory()) {
+                String[] children = file.list();
+                if (children == null) {
+                    throw new IOException("Could not list " + file);
+                }
+                Arrays.sort(children);
+                for (String child : children) {
+                    add(state, new File(file, child), name + "/" + child);
+                }
+            } else if (file.isFile()) {
+                state.append(name).append(' ').append(file.length()).append(' ').append(file.lastModified());
+                if (file.length() <= MAX_READ) {
+                    // e.g. loose refs, which have the same size and can be rewritten within a second
+                    state.append(' ').append(FileUtils.readFileToString(file));
+                }
+                state.append('\n');
+            }
+        }
+    }
+
+    /**
+     * Get the state of the content of files, which is the same in every workspace with the same content.
+     * @param repository : FilePath of the repository in the workspace
+     * @param paths : String paths of the files, relative to the repository, which don't have to exist
+     * @return String state, or null when it can't be determined
+     */
+    public static String getContentState(FilePath repository, String... paths) {
+        StringBuilder state = new StringBuilder();
+        try {
+            for (String path : paths) {
+                FilePath file = repository.child(path);
+                // computed where the file is
+                state.append(path).append(' ').append(file.exists() ? file.digest() : "-").append('\n');
+            }
+        } catch (Exception e) {
+            log.log(Level.WARNING, "Could not read " + repository + ", not sharing branch listing.", e);
+            return null;
+        }
+        return Util.getDigestOf(state.toString());
+    }
+
+    /**
+     * Read the remote refs of a Git repository without running a command, from the loose and packed refs.
+     * @param repository : FilePath of the repository in the workspace
+     * @return Map of ref names to object names, sorted by ref name, or null when they can't be read
+     */
+    public static SortedMap<String, String> readRemoteRefs(FilePath repository) {
+        try {
+            return repository.act(new ReadRemoteRefs());
+        } catch (Exception e) {
+            log.log(Level.WARNING, "Could not read refs of " + repository + ".", e);
+            return null;
+        }
+    }
+
+    private static class ReadRemoteRefs implements FilePath.FileCallable<SortedMap<String, String>> {
+        private static final long serialVersionUID = 1L;
+        private static final String PREFIX = "refs/remotes/";
+
+        public SortedMap<String, String> invoke(File repository, VirtualChannel channel) throws IOException {
+            File gitDir = new File(repository, ".git");
+            if (!gitDir.isDirectory()) {
+                // e.g. a linked worktree, where .git is a file
+                throw new IOException(gitDir + " is no directory.");
+            }
+            Map<String, String> values = new TreeMap<String, String>();
+            File packed = new File(gitDir, "packed-refs");
+            if (packed.isFile()) {
+                for (String line : FileUtils.readLines(packed)) {
+                    // comments and peeled tags start with # and ^
+                    String[] nameAndRef = line.trim().split(" ");
+                    if (nameAndRef.length == 2 && nameAndRef[1].startsWith(PREFIX)) {
+                        values.put(nameAndRef[1], nameAndRef[0]);
+                    }
+                }
+            }
+            addLoose(values, new File(gitDir, PREFIX), PREFIX);
+            SortedMap<String, String> refs = new TreeMap<String, String>();
+            for (String ref : values.keySet()) {
+                String value = values.get(ref);
+                // symbolic refs like origin/HEAD point to another remote ref
+                for (int depth = 0; value != null && value.startsWith("ref: ") && depth < 5; depth++) {
+                    value = values.get(value.substring("ref: ".length()).trim());
+                }
+                if (value == null || value.startsWith("ref: ")) {
+                    throw new IOException("Could not resolve " + ref + ".");
+                }
+                refs.put(ref, value);
+            }
+            return refs;
+        }
+
+        private void addLoose(Map<String, String> values, File file, String name) throws IOException {
+            if (file.isDirectory()) {
+                String[] children = file.list();
+                if (children == null) {
+                    throw new IOException("Could not list " + file);
+                }
+                for (String child : children) {
+                    addLoose(values, new File(file, child), name.endsWith("/") ? name + child : name + "/" + child);
+                }
+            } else if (file.isFile() && !name.endsWith(".lock")) {
+                // loose refs take precedence over packed ones
+                values.put(name, FileUtils.readFileToString(file).trim());
+            }
+        }
+    }
+
+    /**
+     * @return amount of workspaces in the cache
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return amount of shared listings in the cache
+     */
+    public synchronized int sharedSize() {
+        return repositories.size();
+    }
+
+    private static class Entry {
+        private final String state;
+        private List<Branch> open;
+        private List<Branch> all;
+
+        private Entry(String state) {
+            this.state = state;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package org.paylogic.jenkins.advancedscm;
+
+import hudson.FilePath;
+import hudson.Util;
+import jenkins.model.Jenkins;
+import lombok.extern.java.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Store of recorded conflict resolutions on the master, shared by all workspaces of a repository.
+ * Resolutions are copied into the workspace before merging and copied back afterwards, so a conflict which
+ * was resolved once is resolved in every later merge, whichever node it runs on.
+ * Resolutions which were not used for a while are pruned.
+ */
+@Log
+public class ResolutionStore {
+
+    public static long MAX_AGE_DAYS = Long.getLong(ResolutionStore.class.getName() + ".maxAgeDays", 60);
+
+    private static final Object LOCK = new Object();
+
+    /**
+     * Get the directory with the resolutions of the repository of given manager.
+     * @return FilePath on the master
+     */
+    public static FilePath getDirectory(AdvancedSCMManager amm) {
+        return new FilePath(new File(new File(Jenkins.getInstance().getRootDir(), "gatekeeper-resolutions"),
+                Util.getDigestOf(String.valueOf(amm.getRepositoryUrl()))));
+    }
+
+    /**
+     * Copy the stored resolutions into the workspace of given manager.
+     */
+    public static void download(AdvancedSCMManager amm) throws IOException, InterruptedException {
+        FilePath store = getDirectory(amm);
+        synchronized (LOCK) {
+            if (store.exists()) {
+                store.copyRecursiveTo(amm.getResolutionCache());
+            }
+        }
+    }
+
+    /**
+     * Copy the resolutions of the workspace of given manager into the store, and prune old resolutions.
+     * Failures are only logged, the resolutions are an optimization.
+     */
+    public static void upload(AdvancedSCMManager amm) {
+        FilePath store = getDirectory(amm);
+        try {
+            FilePath cache = amm.getResolutionCache();
+            synchronized (LOCK) {
+                if (cache.exists()) {
+                    cache.copyRecursiveTo(store);
+                }
+                prune(store, System.currentTimeMillis() - TimeUnit.DAYS.toMillis(MAX_AGE_DAYS));
+            }
+        } catch (Exception e) {
+            log.log(Level.WARNING, "Storing conflict resolutions of " + amm.getRepositoryUrl() + " failed.", e);
+        }
+    }
+
+    private static void prune(FilePath store, long before) throws IOException, InterruptedException {
+        if (!store.exists()) {
+            return;
+        }
+        for (FilePath entry : store.list()) {
+            if (entry.lastModified() < before) {
+                if (entry.isDirectory()) {
+                    entry.deleteRecursive();
+                } else {
+                    entry.delete();
+                }
+            }
+        }
+    }
+}
@@ -14,6 +14,7 @@ import org.paylogic.jenkins.advancedscm.backends.GitBackend;
 import org.paylogic.jenkins.advancedscm.backends.MercurialBackend;
 
 import java.io.PrintStream;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -24,10 +25,17 @@ import java.util.List;
 @Log
 public class SCMManagerFactory {
     public static AdvancedSCMManager getManager(AbstractBuild build, Launcher launcher, BuildListener listener) throws Exception {
+        return getManager(StepContext.of(build, launcher, listener));
+    }
+
+    /**
+     * Get the manager of the repository REPO_SUBDIR of the context, or of its only repository.
+     */
+    public static AdvancedSCMManager getManager(StepContext context) throws Exception {
         String givenRepoSubdir = null;
-        PrintStream l = listener.getLogger();
-        givenRepoSubdir = build.getEnvironment(listener).get("REPO_SUBDIR", "");
-        SCM scm = build.getProject().getScm();
+        PrintStream l = context.getListener().getLogger();
+        givenRepoSubdir = context.getEnvironment().get("REPO_SUBDIR", "");
+        SCM scm = context.getScm();
 
         // Sort out multiscm scms.
         if (scm instanceof MultiSCM) {
@@ -41,7 +49,7 @@ public class SCMManagerFactory {
                         if (subDir != null) {
                             if (subDir.equals(givenRepoSubdir)) {
                                 l.append("Chosen MultiSCM with Mercurial Backend");
-                                return new MercurialBackend(build, launcher, listener, (MercurialSCM) s);
+                                return new MercurialBackend(context, (MercurialSCM) s);
                             }
                         }
                     } else if (s instanceof GitSCM) {
@@ -52,7 +60,7 @@ public class SCMManagerFactory {
                                 String targetDir = ((RelativeTargetDirectory) extension).getRelativeTargetDir();
                                 if (targetDir  != null && !targetDir .isEmpty() && targetDir == givenRepoSubdir) {
                                     l.append("Chosen MultiSCM with Git Backend");
-                                    return new GitBackend(build, launcher, listener, (GitSCM) s);
+                                    return new GitBackend(context, (GitSCM) s);
                                 }
                             }
                         }
@@ -66,13 +74,46 @@ public class SCMManagerFactory {
         // No multiscm, just return correct backend.
         if (scm instanceof MercurialSCM) {
             l.append("Chosen Mercurial backend, NO MultiSCM");
-            return new MercurialBackend(build, launcher, listener, (MercurialSCM) scm);
+            return new MercurialBackend(context, (MercurialSCM) scm);
         } else if (scm instanceof GitSCM) {
             l.append("Chosen Git backend, NO MultiSCM");
-            return new GitBackend(build, launcher, listener, (GitSCM) scm);
+            return new GitBackend(context, (GitSCM) scm);
         }
 
         // If we come here, no viable SCM was found, so we quit.
         throw new Exception("There is no implementation available for the chosen SCM. Sorry about that.");
     }
+
+    /**
+     * Get a manager for every repository of the build, in the order they are configured.
+     * For builds without MultiSCM this is the one manager getManager returns.
+     */
+    public static List<AdvancedSCMManager> getManagers(AbstractBuild build, Launcher launcher, BuildListener listener) throws Exception {
+        return getManagers(StepContext.of(build, launcher, listener));
+    }
+
+    /**
+     * Get a manager for every repository of the context, in the order they are configured.
+     */
+    public static List<AdvancedSCMManager> getManagers(StepContext context) throws Exception {
+        List<AdvancedSCMManager> managers = new ArrayList<AdvancedSCMManager>();
+        SCM scm = context.getScm();
+        if (!(scm instanceof MultiSCM)) {
+            managers.add(getManager(context));
+            return managers;
+        }
+        for (SCM s: ((MultiSCM) scm).getConfiguredSCMs()) {
+            if (s instanceof MercurialSCM) {
+                managers.add(new MercurialBackend(context, (MercurialSCM) s));
+            } else if (s instanceof GitSCM) {
+                managers.add(new GitBackend(context, (GitSCM) s));
+            } else {
+                context.getListener().getLogger().append("Skipping repository without an available implementation.\n");
+            }
+        }
+        if (managers.isEmpty()) {
+            throw new Exception("There is no implementation available for the chosen SCM. Sorry about that.");
+        }
+        return managers;
+    }
 }
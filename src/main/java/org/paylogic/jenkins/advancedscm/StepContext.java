@@ -0,0 +1,65 @@
+package org.paylogic.jenkins.advancedscm;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.Node;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.scm.SCM;
+import lombok.Getter;
+
+import java.io.IOException;
+
+/**
+ * Everything a Gatekeeper step needs from the build it runs in, passed explicitly.
+ * Steps which only get a StepContext don't depend on AbstractBuild or on each other's environment variables,
+ * so they can run in another workspace or on another node than the build itself, e.g. as parallel stages.
+ */
+public class StepContext {
+
+    /**
+     * Run the step belongs to, used to identify it, e.g. as the owner of merge locks.
+     */
+    @Getter private final Run<?, ?> run;
+
+    /**
+     * Workspace with the repositories, on the node the step runs on.
+     */
+    @Getter private final FilePath workspace;
+
+    @Getter private final Node node;
+    @Getter private final Launcher launcher;
+    @Getter private final TaskListener listener;
+
+    /**
+     * Environment with the parameters of the step, like FEATURE_BRANCH, TARGET_BRANCH and REPO_SUBDIR.
+     */
+    @Getter private final EnvVars environment;
+
+    /**
+     * SCM of the repositories in the workspace, which can be a MultiSCM.
+     */
+    @Getter private final SCM scm;
+
+    public StepContext(Run<?, ?> run, FilePath workspace, Node node, Launcher launcher, TaskListener listener,
+                       EnvVars environment, SCM scm) {
+        this.run = run;
+        this.workspace = workspace;
+        this.node = node;
+        this.launcher = launcher;
+        this.listener = listener;
+        this.environment = environment;
+        this.scm = scm;
+    }
+
+    /**
+     * Get the context of a freestyle build step.
+     */
+    public static StepContext of(AbstractBuild<?, ?> build, Launcher launcher, TaskListener listener)
+            throws IOException, InterruptedException {
+        return new StepContext(build, build.getWorkspace(), build.getBuiltOn(), launcher, listener,
+                build.getEnvironment(listener), build.getProject().getScm());
+    }
+}
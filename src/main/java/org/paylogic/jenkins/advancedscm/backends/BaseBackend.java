@@ -22,6 +22,15 @@ abstract class BaseBackend  implements AdvancedSCMManager {
      */
     protected FilePath repoPath;
 
+    /**
+     * Url of the repository this workspace was checked out from
+     */
+    protected String repositoryUrl;
+
+    public String getRepositoryUrl() {
+        return repositoryUrl;
+    }
+
     public List<String> getBranchNames(boolean all) throws AdvancedSCMException {
         List<String> list = new ArrayList<String>();
         for (Branch branch: this.getBranches(all)) {
@@ -4,27 +4,46 @@ package org.paylogic.jenkins.advancedscm.backends;
 import hudson.EnvVars;
 import hudson.FilePath;
 import hudson.Launcher;
+import hudson.Util;
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
+import hudson.model.TaskListener;
 import hudson.plugins.git.GitException;
 import hudson.plugins.git.GitSCM;
 import hudson.plugins.git.extensions.GitSCMExtension;
 import lombok.extern.java.Log;
 import org.apache.tools.ant.taskdefs.email.EmailAddress;
+import org.apache.commons.lang.StringUtils;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.transport.URIish;
 import org.jenkinsci.plugins.gitclient.GitClient;
+import org.paylogic.jenkins.advancedscm.AgentManagerFactory;
 import org.paylogic.jenkins.advancedscm.Branch;
+import org.paylogic.jenkins.advancedscm.BranchCache;
+import org.paylogic.jenkins.advancedscm.StepContext;
 import org.paylogic.jenkins.advancedscm.backends.helpers.AdvancedCliGit;
+import org.paylogic.jenkins.advancedscm.backends.helpers.CleanPolicy;
+import org.paylogic.jenkins.advancedscm.backends.helpers.SparseCheckout;
+import org.paylogic.jenkins.advancedscm.backends.helpers.SshMultiplexing;
 import org.paylogic.jenkins.advancedscm.exceptions.AdvancedSCMException;
+import org.paylogic.jenkins.advancedscm.exceptions.MergeConflictException;
+import org.paylogic.jenkins.advancedscm.exceptions.PushCreatesNewRemoteHeadException;
 import org.paylogic.jenkins.upmerge.releasebranch.ReleaseBranch;
 import org.paylogic.jenkins.upmerge.releasebranch.ReleaseBranchImpl;
 import org.paylogic.jenkins.upmerge.releasebranch.ReleaseBranchInvalidException;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Mercurial Implementation of AdvancedSCMManager
@@ -32,29 +51,141 @@ import java.util.List;
 @Log
 public class GitBackend extends BaseBackend {
 
-    private final AbstractBuild build;
-    private final Launcher launcher;
-    private final BuildListener listener;
-    private final GitSCM scm;
+    public static int LEARN_MAX_MERGES = Integer.getInteger(GitBackend.class.getName() + ".learnMaxMerges", 20);
+    /**
+     * Namespace FeaturePrefetcher fetches feature branches into.
+     */
+    public static final String PREFETCH_REFS = "refs/gatekeeper/prefetch/";
+
+    public static boolean PROTOCOL_V2 = !Boolean.getBoolean(GitBackend.class.getName() + ".disableProtocolV2");
+
+    /**
+     * Release branches like r1420, which are always fetched from origin besides its default branch.
+     * Matched with one refspec per first digit, as refspecs only have the * wildcard.
+     */
+    static final List<String> FETCHED_NAMESPACE = Arrays.asList(
+            "r0*", "r1*", "r2*", "r3*", "r4*", "r5*", "r6*", "r7*", "r8*", "r9*");
+
+    private final TaskListener listener;
     private final AdvancedCliGit git;
+    private final String gitExe;
+    private final EnvVars environment;
+    private List<String> sparsePaths;
+    private List<String> keepPaths = new ArrayList<String>();
+    private boolean reuseResolutions;
+
+    /**
+     * Git fails when .git/config is written by two commands at the same time,
+     * which can happen when operations are overlapped with AsyncSCMManager.
+     */
+    private final Object configLock = new Object();
 
     public GitBackend(AbstractBuild build, Launcher launcher, BuildListener listener, GitSCM scm) throws Exception {
-        this.build = build;
-        this.launcher = launcher;
+        this(StepContext.of(build, launcher, listener), scm);
+    }
+
+    public GitBackend(StepContext context, GitSCM scm) throws Exception {
+        TaskListener listener = context.getListener();
         this.listener = listener;
-        this.scm = scm;
-        FilePath path = build.getWorkspace();
-        EnvVars environment = build.getEnvironment(listener);
+        FilePath path = context.getWorkspace();
+        EnvVars environment = context.getEnvironment();
         for (GitSCMExtension ext : scm.getExtensions()) {
-            FilePath r = ext.getWorkingDirectory(scm, build.getParent(), path, environment, listener);
+            FilePath r = ext.getWorkingDirectory(scm, context.getRun().getParent(), path, environment, listener);
             if (r!=null) {
                 path = r;
             }
         }
+        this.gitExe = scm.getGitExe(context.getNode(), environment, listener);
+        String sshCommand = getSshCommand(context, path);
+        environment = new EnvVars(environment);
+        if (sshCommand != null) {
+            environment.put("GIT_SSH_COMMAND", sshCommand);
+        }
+        if (PROTOCOL_V2) {
+            // with protocol v2 the server only advertises the refs matching the refspecs of a fetch,
+            // instead of all branches; git before 2.18 ignores it
+            String parameters = environment.get("GIT_CONFIG_PARAMETERS");
+            environment.put("GIT_CONFIG_PARAMETERS",
+                    (parameters == null || parameters.isEmpty() ? "" : parameters + " ") + "'protocol.version=2'");
+        }
+        this.environment = environment;
         this.git = new AdvancedCliGit(
-                scm, launcher, build.getBuiltOn(), new File(path.absolutize().getRemote()), listener,
-                build.getEnvironment(listener));
+                scm, context.getLauncher(), context.getNode(), new File(path.absolutize().getRemote()), listener,
+                new EnvVars(environment));
+        this.repoPath = git.getWorkTree();
+        if (!scm.getUserRemoteConfigs().isEmpty()) {
+            this.repositoryUrl = scm.getUserRemoteConfigs().get(0).getUrl();
+        }
+    }
+
+    /**
+     * Get the ssh command which lets the network commands of the build share their connections.
+     * A GIT_SSH wrapper takes precedence over GIT_SSH_COMMAND, so connections are not shared when it's set.
+     * The configured command is looked up once per build and repository.
+     * @return String ssh command to use as GIT_SSH_COMMAND, or null to leave ssh as configured
+     */
+    private String getSshCommand(StepContext context, FilePath path) throws IOException, InterruptedException {
+        EnvVars environment = context.getEnvironment();
+        if (environment.containsKey("GIT_SSH") || !SshMultiplexing.isUsable(context)) {
+            return null;
+        }
+        String sshCommand = environment.get("GIT_SSH_COMMAND");
+        if (sshCommand == null) {
+            String key = "git " + path.getRemote();
+            sshCommand = SshMultiplexing.getSetting(context, key);
+            if (sshCommand == null) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                Launcher.ProcStarter proc = context.getLauncher().launch()
+                        .cmds(gitExe, "config", "--get", "core.sshCommand").envs(environment).stdout(out);
+                boolean exists = path.exists();
+                if (exists) {
+                    proc.pwd(path);
+                }
+                // exits with 1 when the option is not set
+                proc.join();
+                sshCommand = out.toString().trim();
+                if (exists) {
+                    // before the clone only the global configuration is seen
+                    SshMultiplexing.setSetting(context, key, sshCommand);
+                }
+            }
+        }
+        return SshMultiplexing.getSshCommand(context, sshCommand);
+    }
+
+    /**
+     * Used by AgentFactory to create the backend on the agent.
+     */
+    private GitBackend(String gitExe, String workspace, EnvVars environment, TaskListener listener, String repositoryUrl) {
+        this.listener = listener;
+        this.gitExe = gitExe;
+        this.environment = environment;
+        this.git = new AdvancedCliGit(gitExe, new File(workspace), listener, environment);
         this.repoPath = git.getWorkTree();
+        this.repositoryUrl = repositoryUrl;
+    }
+
+    public AgentManagerFactory getAgentFactory() {
+        return new AgentFactory(gitExe, repoPath.getRemote(), environment, repositoryUrl);
+    }
+
+    private static class AgentFactory implements AgentManagerFactory {
+        private static final long serialVersionUID = 1L;
+        private final String gitExe;
+        private final String workspace;
+        private final EnvVars environment;
+        private final String repositoryUrl;
+
+        private AgentFactory(String gitExe, String workspace, EnvVars environment, String repositoryUrl) {
+            this.gitExe = gitExe;
+            this.workspace = workspace;
+            this.environment = environment;
+            this.repositoryUrl = repositoryUrl;
+        }
+
+        public GitBackend getManager(TaskListener listener) {
+            return new GitBackend(gitExe, workspace, environment, listener, repositoryUrl);
+        }
     }
 
     /**
@@ -65,17 +196,68 @@ public class GitBackend extends BaseBackend {
      * @return List of Branches
      */
     public List<Branch> getBranches(boolean all) throws AdvancedSCMException {
-        List<Branch> result = new ArrayList<Branch>();
-        try {
-            for (hudson.plugins.git.Branch branch : git.getRemoteBranches()) {
-                String [] branchNameParts = branch.getName().split("/");
-                result.add(new Branch(branchNameParts[branchNameParts.length - 1], null, branch.getSHA1String()));
+        // remote refs fully determine the listing, so we only read them when they changed
+        String workspace = BranchCache.getWorkspace(repoPath);
+        String state = BranchCache.getState(repoPath, ".git/packed-refs", ".git/refs/remotes");
+        List<Branch> cached = BranchCache.getInstance().get(workspace, state, all);
+        if (cached != null) {
+            return cached;
+        }
+        SortedMap<String, String> refs = BranchCache.readRemoteRefs(repoPath);
+        if (refs == null) {
+            refs = listRemoteRefs();
+        }
+        // refs of origin are the same in every workspace which fetched the same state of the repository,
+        // refs of other remotes are forks pulled into this workspace
+        SortedMap<String, String> upstream = new TreeMap<String, String>();
+        SortedMap<String, String> forks = new TreeMap<String, String>();
+        for (Map.Entry<String, String> ref : refs.entrySet()) {
+            if (ref.getKey().startsWith("refs/remotes/origin/")) {
+                upstream.put(ref.getKey(), ref.getValue());
+            } else {
+                forks.put(ref.getKey(), ref.getValue());
             }
         }
+        String upstreamState = Util.getDigestOf(upstream.toString());
+        List<Branch> result = BranchCache.getInstance().getShared(repositoryUrl, upstreamState, all);
+        if (result == null) {
+            result = toBranches(upstream);
+            BranchCache.getInstance().putShared(repositoryUrl, upstreamState, all, result);
+        }
+        result.addAll(toBranches(forks));
+        BranchCache.getInstance().put(workspace, state, all, result);
+        return result;
+    }
+
+    /**
+     * List the remote refs with a command, when they can't be read from the repository.
+     * @return Map of ref names to object names
+     */
+    private SortedMap<String, String> listRemoteRefs() throws AdvancedSCMException {
+        String output;
+        try {
+            output = git.launchCommand("for-each-ref", "--format=%(objectname) %(refname)", "refs/remotes");
+        }
         catch (InterruptedException exception) {
             throw new AdvancedSCMException(exception.toString());
         }
+        SortedMap<String, String> refs = new TreeMap<String, String>();
+        for (String line : output.split("\n")) {
+            // line should contain: <hash> refs/remotes/<remote>/<branchName>
+            String[] hashAndRef = line.trim().split(" ");
+            if (hashAndRef.length == 2) {
+                refs.put(hashAndRef[1], hashAndRef[0]);
+            }
+        }
+        return refs;
+    }
 
+    private static List<Branch> toBranches(Map<String, String> refs) {
+        List<Branch> result = new ArrayList<Branch>();
+        for (Map.Entry<String, String> ref : refs.entrySet()) {
+            String [] branchNameParts = ref.getKey().split("/");
+            result.add(new Branch(branchNameParts[branchNameParts.length - 1], null, ref.getValue()));
+        }
         return result;
     }
 
@@ -138,7 +320,9 @@ public class GitBackend extends BaseBackend {
     public void update(String revision) throws AdvancedSCMException {
         if (!revision.isEmpty() && !getLocalBranchNames().contains(revision)) {
             try {
-                git.launchCommand("checkout", "-b", revision, "--track", "origin/" + revision);
+                synchronized (configLock) {
+                    git.launchCommand("checkout", "-b", revision, "--track", "origin/" + revision);
+                }
             }
             catch (Exception exception) {
                 throw new AdvancedSCMException(exception.toString());
@@ -157,6 +341,28 @@ public class GitBackend extends BaseBackend {
         clean();
     }
 
+    public void updateToRemote(String branch) throws AdvancedSCMException {
+        try {
+            try {
+                git.launchCommand("fetch", "origin", "+refs/heads/" + branch + ":refs/remotes/origin/" + branch);
+            }
+            catch (GitException exception) {
+                if (exception.getMessage() == null || !exception.getMessage().contains("couldn't find remote ref")) {
+                    throw new AdvancedSCMException(exception.toString());
+                }
+                // new branch, there is nothing to reset to
+                updateClean(branch);
+                return;
+            }
+            update(branch);
+            git.launchCommand("reset", "--hard", "origin/" + branch);
+        }
+        catch (InterruptedException exception) {
+            throw new AdvancedSCMException(exception.toString());
+        }
+        clean();
+    }
+
     public void stripLocal() throws AdvancedSCMException {
         clean();
         List<String> repoBranchNames = getLocalBranchNames();
@@ -173,13 +379,26 @@ public class GitBackend extends BaseBackend {
 
     public void clean() throws AdvancedSCMException {
         try {
-            git.clean();
+            if (keepPaths.isEmpty()) {
+                git.clean();
+            } else {
+                List<String> args = new ArrayList<String>(Arrays.asList("clean", "-fdx"));
+                for (String exclude : CleanPolicy.getGitExcludes(keepPaths)) {
+                    args.add("-e");
+                    args.add(exclude);
+                }
+                git.launchCommand(args.toArray(new String[args.size()]));
+            }
         }
         catch (InterruptedException exception) {
             throw new AdvancedSCMException(exception.toString());
         }
     }
 
+    public void setCleanKeepPaths(List<String> paths) {
+        keepPaths = new ArrayList<String>(paths);
+    }
+
     public void clean(String revision) throws AdvancedSCMException {
         update(revision);
         try {
@@ -202,22 +421,377 @@ public class GitBackend extends BaseBackend {
                 rev = git.revParse(revision);
             }
             else {
+                rev = resolveRevision(revision);
+            }
+            EmailAddress address = new EmailAddress("dummy <dummy@foo.bar>");
+            git.setAuthor(address.getName(), address.getName());
+            git.setCommitter(address.getName(), address.getName());
+            try {
+                merge(rev.getName(), false);
+            }
+            catch (GitException exception) {
+                if (sparsePaths == null) {
+                    throw exception;
+                }
+                List<String> outside = SparseCheckout.getOutside(sparsePaths, getFailedPaths(exception));
+                if (outside.isEmpty()) {
+                    // e.g. a conflict in the sparse checkout, which a full checkout doesn't resolve
+                    throw exception;
+                }
+                listener.getLogger().append("Merge needs " + StringUtils.join(outside, ", ")
+                        + " outside of the sparse checkout, retrying with full checkout.\n");
+                git.launchCommand("reset", "--merge");
+                setSparseCheckout(new ArrayList<String>());
+                merge(rev.getName(), false);
+            }
+        }
+        catch (InterruptedException exception) {
+            throw new AdvancedSCMException(exception.toString());
+        }
+    }
+
+    /**
+     * Merge without committing. When recorded resolutions are reused, rerere resolves known conflicts,
+     * and when conflicts are left, resolutions are learned from the merges being merged before retrying once.
+     */
+    private void merge(String rev, boolean learned) throws InterruptedException {
+        try {
+            git.launchCommand("merge", "--no-commit", "--no-ff", rev);
+        }
+        catch (GitException exception) {
+            if (!reuseResolutions || !isMerging()) {
+                throw exception;
+            }
+            if (getUnmergedPaths().isEmpty()) {
+                listener.getLogger().append("All conflicts were resolved with recorded resolutions.\n");
+                return;
+            }
+            if (learned) {
+                throw exception;
+            }
+            git.launchCommand("merge", "--abort");
+            learnResolutions(rev);
+            merge(rev, true);
+        }
+    }
+
+    /**
+     * Get the paths a failed merge stopped at: the unmerged paths, and the paths git refused to overwrite,
+     * which are listed indented by a tab or as Entry 'path' in the error message.
+     */
+    private List<String> getFailedPaths(GitException exception) throws InterruptedException {
+        List<String> paths = new ArrayList<String>();
+        for (String path : getUnmergedPaths().split("\n")) {
+            if (!path.trim().isEmpty()) {
+                paths.add(path.trim());
+            }
+        }
+        String message = exception.getMessage() == null ? "" : exception.getMessage();
+        Matcher entry = Pattern.compile("Entry '([^']+)'").matcher(message);
+        while (entry.find()) {
+            paths.add(entry.group(1));
+        }
+        for (String line : message.split("\n")) {
+            if (line.startsWith("\t") && !line.trim().isEmpty()) {
+                paths.add(line.trim());
+            }
+        }
+        return paths;
+    }
+
+    private boolean isMerging() throws InterruptedException {
+        try {
+            git.launchCommand("rev-parse", "-q", "--verify", "MERGE_HEAD");
+            return true;
+        }
+        catch (GitException exception) {
+            return false;
+        }
+    }
+
+    private String getUnmergedPaths() throws InterruptedException {
+        return git.launchCommand("diff", "--name-only", "--diff-filter=U").trim();
+    }
+
+    /**
+     * Record the resolutions of merges which are in given revision but not in the workspace, by redoing
+     * every merge and taking the result from its commit, like contrib/rerere-train.sh of Git does.
+     * The workspace is restored afterwards.
+     */
+    private void learnResolutions(String rev) throws InterruptedException {
+        String head;
+        try {
+            head = git.launchCommand("symbolic-ref", "-q", "--short", "HEAD").trim();
+        }
+        catch (GitException exception) {
+            head = git.launchCommand("rev-parse", "HEAD").trim();
+        }
+        String merges = git.launchCommand("rev-list", "--merges", "--parents",
+                "-n", String.valueOf(LEARN_MAX_MERGES), "HEAD.." + rev).trim();
+        int learned = 0;
+        try {
+            for (String line : merges.split("\n")) {
+                String[] commits = line.trim().split("\\s+");
+                if (commits.length < 3) {
+                    continue;
+                }
+                git.launchCommand("checkout", "-q", "-f", commits[1] + "^0");
+                List<String> args = new ArrayList<String>(Arrays.asList("merge", "--no-commit", "--no-ff"));
+                args.addAll(Arrays.asList(commits).subList(2, commits.length));
                 try {
-                    rev = git.revParse("feature/" + revision);
+                    git.launchCommand(args.toArray(new String[args.size()]));
                 }
                 catch (GitException exception) {
-                    try {
-                        rev = git.revParse("origin/" + revision);
-                    }
-                    catch (GitException exc) {
-                        rev = git.revParse(revision);
+                    if (!getUnmergedPaths().isEmpty()) {
+                        git.launchCommand("rerere");
+                        git.launchCommand("checkout", commits[0], "--", ".");
+                        git.launchCommand("rerere");
+                        learned++;
                     }
                 }
+                git.launchCommand("reset", "-q", "--hard");
             }
-            EmailAddress address = new EmailAddress("dummy <dummy@foo.bar>");
-            git.setAuthor(address.getName(), address.getName());
-            git.setCommitter(address.getName(), address.getName());
-            git.launchCommand("merge", "--no-commit", "--no-ff", rev.getName());
+        }
+        finally {
+            git.launchCommand("checkout", "-q", "-f", head);
+        }
+        listener.getLogger().append("Learned conflict resolutions from " + learned + " merges.\n");
+    }
+
+    public void setReuseResolutions(boolean reuse) throws AdvancedSCMException {
+        try {
+            synchronized (configLock) {
+                git.launchCommand("config", "rerere.enabled", String.valueOf(reuse));
+                git.launchCommand("config", "rerere.autoupdate", String.valueOf(reuse));
+            }
+            reuseResolutions = reuse;
+        }
+        catch (InterruptedException exception) {
+            throw new AdvancedSCMException(exception.toString());
+        }
+    }
+
+    public FilePath getResolutionCache() {
+        return repoPath.child(".git").child("rr-cache");
+    }
+
+    /**
+     * Resolve a revision to merge, preferring the feature remote over the default remote and local branches.
+     */
+    private ObjectId resolveRevision(String revision) throws InterruptedException {
+        try {
+            return git.revParse("feature/" + revision);
+        }
+        catch (GitException exception) {
+            try {
+                return git.revParse("origin/" + revision);
+            }
+            catch (GitException exc) {
+                return git.revParse(revision);
+            }
+        }
+    }
+
+    public String getRevisionId(String revision) throws AdvancedSCMException {
+        try {
+            return resolveRevision(revision).getName();
+        }
+        catch (GitException exception) {
+            throw new AdvancedSCMException(exception.toString());
+        }
+        catch (InterruptedException exception) {
+            throw new AdvancedSCMException(exception.toString());
+        }
+    }
+
+    public boolean isAncestor(String ancestor, String descendant) throws AdvancedSCMException {
+        try {
+            git.launchCommand("merge-base", "--is-ancestor",
+                    resolveLocalRevision(ancestor).getName(), resolveLocalRevision(descendant).getName());
+            return true;
+        }
+        catch (GitException exception) {
+            // exit code 1 means it's not an ancestor
+            return false;
+        }
+        catch (InterruptedException exception) {
+            throw new AdvancedSCMException(exception.toString());
+        }
+    }
+
+    public String getHeadId(String branch) throws AdvancedSCMException {
+        try {
+            return resolveLocalRevision(branch).getName();
+        }
+        catch (GitException exception) {
+            throw new AdvancedSCMException(exception.toString());
+        }
+        catch (InterruptedException exception) {
+            throw new AdvancedSCMException(exception.toString());
+        }
+    }
+
+    public List<String> getCommits(List<String> heads, List<String> known) throws AdvancedSCMException {
+        List<String> args = new ArrayList<String>(Arrays.asList("rev-list", "--topo-order", "--reverse", "--parents"));
+        args.addAll(heads);
+        for (String revision : known) {
+            args.add("^" + revision);
+        }
+        List<String> commits = new ArrayList<String>();
+        try {
+            for (String line : git.launchCommand(args.toArray(new String[args.size()])).split("\n")) {
+                if (!line.trim().isEmpty()) {
+                    commits.add(line.trim());
+                }
+            }
+        }
+        catch (GitException exception) {
+            throw new AdvancedSCMException(exception.toString());
+        }
+        catch (InterruptedException exception) {
+            throw new AdvancedSCMException(exception.toString());
+        }
+        return commits;
+    }
+
+    /**
+     * Resolve a revision, preferring local branches over the default remote.
+     */
+    private ObjectId resolveLocalRevision(String revision) throws InterruptedException {
+        try {
+            return git.revParse(revision);
+        }
+        catch (GitException exception) {
+            return git.revParse("origin/" + revision);
+        }
+    }
+
+    public String getWorkspaceRevisionId() throws AdvancedSCMException {
+        try {
+            return git.revParse("HEAD").getName();
+        }
+        catch (GitException exception) {
+            throw new AdvancedSCMException(exception.toString());
+        }
+        catch (InterruptedException exception) {
+            throw new AdvancedSCMException(exception.toString());
+        }
+    }
+
+    public String getWorkspaceTreeId() throws AdvancedSCMException {
+        try {
+            return git.launchCommand("rev-parse", "HEAD^{tree}").trim();
+        }
+        catch (GitException exception) {
+            throw new AdvancedSCMException(exception.toString());
+        }
+        catch (InterruptedException exception) {
+            throw new AdvancedSCMException(exception.toString());
+        }
+    }
+
+    public String getMergeBase(String first, String second) throws AdvancedSCMException {
+        try {
+            return git.launchCommand("merge-base",
+                    resolveLocalRevision(first).getName(), resolveLocalRevision(second).getName()).trim();
+        }
+        catch (GitException exception) {
+            throw new AdvancedSCMException(exception.toString());
+        }
+        catch (InterruptedException exception) {
+            throw new AdvancedSCMException(exception.toString());
+        }
+    }
+
+    public String getDiff(String from, String to) throws AdvancedSCMException {
+        try {
+            return git.launchCommand("diff", "--no-color", "--no-ext-diff", "--no-renames", "--unified=0",
+                    resolveLocalRevision(from).getName(), resolveLocalRevision(to).getName());
+        }
+        catch (GitException exception) {
+            throw new AdvancedSCMException(exception.toString());
+        }
+        catch (InterruptedException exception) {
+            throw new AdvancedSCMException(exception.toString());
+        }
+    }
+
+    /**
+     * Git bundles can only contain revisions which are referenced by a ref,
+     * so temporary refs are created for the revisions to export.
+     */
+    public void exportChanges(String base, String bundleFile, String... revisions) throws AdvancedSCMException {
+        List<String> refs = new ArrayList<String>();
+        try {
+            for (String revision : revisions) {
+                String ref = "refs/gatekeeper/export/" + refs.size();
+                git.launchCommand("update-ref", ref, revision);
+                refs.add(ref);
+            }
+            List<String> args = new ArrayList<String>();
+            args.add("bundle");
+            args.add("create");
+            args.add(bundleFile);
+            args.addAll(refs);
+            args.add("^" + base);
+            git.launchCommand(args.toArray(new String[args.size()]));
+        }
+        catch (GitException exception) {
+            throw new AdvancedSCMException(exception.toString());
+        }
+        catch (InterruptedException exception) {
+            throw new AdvancedSCMException(exception.toString());
+        }
+        finally {
+            for (String ref : refs) {
+                try {
+                    git.launchCommand("update-ref", "-d", ref);
+                }
+                catch (Exception exception) {
+                    // leftover ref does no harm, it's overwritten by the next export
+                }
+            }
+        }
+    }
+
+    public void importChanges(String bundleFile, String revision) throws AdvancedSCMException {
+        try {
+            git.launchCommand("bundle", "unbundle", bundleFile);
+            git.launchCommand("reset", "--hard", revision);
+        }
+        catch (GitException exception) {
+            throw new AdvancedSCMException(exception.toString());
+        }
+        catch (InterruptedException exception) {
+            throw new AdvancedSCMException(exception.toString());
+        }
+        clean();
+    }
+
+    public void setSparseCheckout(List<String> paths) throws AdvancedSCMException {
+        try {
+            FilePath sparseFile = repoPath.child(".git").child("info").child("sparse-checkout");
+            sparseFile.getParent().mkdirs();
+            if (paths.isEmpty()) {
+                // sparse checkout has to be widened to the whole tree before it can be turned off
+                sparseFile.write("/*\n", "UTF-8");
+                git.launchCommand("read-tree", "-mu", "HEAD");
+                git.launchCommand("config", "core.sparseCheckout", "false");
+                sparseFile.delete();
+                sparsePaths = null;
+            } else {
+                StringBuilder patterns = new StringBuilder();
+                for (String path : paths) {
+                    patterns.append("/").append(StringUtils.removeStart(path.trim(), "/")).append("\n");
+                }
+                sparseFile.write(patterns.toString(), "UTF-8");
+                git.launchCommand("config", "core.sparseCheckout", "true");
+                git.launchCommand("read-tree", "-mu", "HEAD");
+                sparsePaths = new ArrayList<String>(paths);
+            }
+        }
+        catch (IOException exception) {
+            throw new AdvancedSCMException(exception.toString());
         }
         catch (InterruptedException exception) {
             throw new AdvancedSCMException(exception.toString());
@@ -237,11 +811,46 @@ public class GitBackend extends BaseBackend {
     }
 
     /**
-     * Merge possible current branch's heads. Not actual for git backend.
+     * Merge possible current branch's heads. For git, this merges the remote branch into the local one
+     * when they have diverged, e.g. because somebody pushed to it in the meantime.
      * @param message : String commit message
      * @param username : String commit user name (with email)
      */
     public void mergeHeads(String message, String username) throws AdvancedSCMException {
+        String branch = getBranch();
+        if (branch.equals("HEAD")) {
+            // detached, there is no branch to merge heads of
+            return;
+        }
+        try {
+            try {
+                git.revParse("origin/" + branch);
+            }
+            catch (GitException exception) {
+                // branch is not on the remote yet, so there is nothing to merge with
+                return;
+            }
+            try {
+                git.launchCommand("merge-base", "--is-ancestor", "origin/" + branch, "HEAD");
+                return;
+            }
+            catch (GitException exception) {
+                // remote branch has commits which are not in the local branch
+            }
+            EmailAddress address = new EmailAddress(username);
+            git.setAuthor(address.getName(), address.getAddress());
+            git.setCommitter(address.getName(), address.getAddress());
+            git.launchCommand("merge", "--no-ff", "-m", message, "origin/" + branch);
+        }
+        catch (GitException exception) {
+            if (exception.getMessage() != null && exception.getMessage().contains("CONFLICT")) {
+                throw new MergeConflictException(exception.getMessage());
+            }
+            throw new AdvancedSCMException(exception.toString());
+        }
+        catch (InterruptedException exception) {
+            throw new AdvancedSCMException(exception.toString());
+        }
     }
 
     public void push(String... branchNames) throws AdvancedSCMException {
@@ -253,6 +862,13 @@ public class GitBackend extends BaseBackend {
                 }
             }
         }
+        catch (GitException exception) {
+            String message = exception.getMessage();
+            if (message != null && (message.contains("non-fast-forward") || message.contains("fetch first"))) {
+                throw new PushCreatesNewRemoteHeadException(message);
+            }
+            throw exception;
+        }
         catch (URISyntaxException exception) {
             throw new AdvancedSCMException(exception.toString());
         }
@@ -261,8 +877,90 @@ public class GitBackend extends BaseBackend {
         }
     }
 
+    /**
+     * Fetches the branches a build works with from the default remote, updating their remote tracking branches:
+     * the default branch of origin, the release branches, and the local branches which are on the remote.
+     * Other branches are not fetched, so with protocol v2 the remote doesn't advertise all its branches.
+     * Tracking branches of branches deleted on the remote are pruned, so the next pull doesn't ask for them.
+     */
     public void pull() throws AdvancedSCMException {
-        pull(null, "master");
+        try {
+            List<String> tracked = new ArrayList<String>();
+            String defaultBranch = getRemoteDefaultBranch();
+            if (defaultBranch != null) {
+                tracked.add(defaultBranch);
+            }
+            List<String> patterns = new ArrayList<String>();
+            patterns.add("for-each-ref");
+            patterns.add("--format=%(refname)");
+            List<String> local = getLocalBranchNames();
+            for (String branch : local) {
+                patterns.add("refs/remotes/origin/" + branch);
+            }
+            if (!local.isEmpty()) {
+                // for-each-ref without patterns would list all refs
+                for (String ref : git.launchCommand(patterns.toArray(new String[patterns.size()])).split("\n")) {
+                    if (!ref.trim().isEmpty()) {
+                        tracked.add(ref.trim().substring("refs/remotes/origin/".length()));
+                    }
+                }
+            }
+            List<String> args = new ArrayList<String>();
+            args.add("fetch");
+            args.add("--prune");
+            args.add("origin");
+            args.addAll(getRefspecs("origin", tracked));
+            git.launchCommand(args.toArray(new String[args.size()]));
+        }
+        catch (InterruptedException exception) {
+            throw new AdvancedSCMException(exception.toString());
+        }
+    }
+
+    /**
+     * Get the refspecs to fetch the branches of FETCHED_NAMESPACE and given branches into remote tracking branches.
+     * All refspecs are globs: a branch which is not on the remote anymore doesn't abort the fetch like an exact
+     * refspec does, and its tracking branch is pruned. A branch is matched with a trailing *, which also
+     * fetches branches whose name it is a prefix of.
+     * @param remote : String name of the remote
+     * @param branches : List of String names of other branches to fetch
+     * @return List of String refspecs
+     */
+    static List<String> getRefspecs(String remote, List<String> branches) {
+        List<String> refspecs = new ArrayList<String>();
+        List<String> names = new ArrayList<String>(FETCHED_NAMESPACE);
+        for (String branch : branches) {
+            // release branches and branches given twice are fetched already
+            if (!names.contains(branch + "*") && !branch.matches("r\\d.*")) {
+                names.add(branch + "*");
+            }
+        }
+        for (String name : names) {
+            refspecs.add("+refs/heads/" + name + ":refs/remotes/" + remote + "/" + name);
+        }
+        return refspecs;
+    }
+
+    /**
+     * Get the default branch of origin from origin/HEAD. Clones which don't have it yet, e.g. made by
+     * older versions of the git plugin, look it up on the remote once.
+     * @return String name of the branch, or null when the remote has no default branch
+     */
+    private String getRemoteDefaultBranch() throws InterruptedException {
+        String head;
+        try {
+            head = git.launchCommand("symbolic-ref", "-q", "--short", "refs/remotes/origin/HEAD").trim();
+        }
+        catch (GitException exception) {
+            try {
+                git.launchCommand("remote", "set-head", "origin", "--auto");
+                head = git.launchCommand("symbolic-ref", "-q", "--short", "refs/remotes/origin/HEAD").trim();
+            }
+            catch (GitException setHeadException) {
+                return null;
+            }
+        }
+        return head.startsWith("origin/") ? head.substring("origin/".length()) : null;
     }
 
     public void pull(String remote) throws AdvancedSCMException {
@@ -284,19 +982,141 @@ public class GitBackend extends BaseBackend {
             if (remote == null || remote.isEmpty()) {
                 remote = git.getRemoteUrl("origin");
             }
+            synchronized (configLock) {
+                try {
+                    git.launchCommand("remote", "rm", "feature");
+                }
+                catch (GitException exception) {
+                    // when remote is new, can fail, but it's intentional
+                }
+                git.launchCommand("remote", "add", "feature", remote);
+            }
+            try {
+                git.launchCommand("fetch", "feature", branch);
+            }
+            catch (GitException exception) {
+                // can be a new local branch, so can fail, but it's intentional
+            }
+            deletePrefetchRef(branch);
+        }
+        catch (InterruptedException exception) {
+            throw new AdvancedSCMException(exception.toString());
+        }
+    }
+
+    /**
+     * Fetches given branch as a partial clone without file contents, which are fetched lazily from the
+     * feature remote when merging needs them. Only the target branch is used as negotiation tip,
+     * so thousands of unrelated local refs are not advertised as haves. Needs git 2.24 or newer.
+     */
+    public void pullForMerge(String remote, String branch, String targetBranch) throws AdvancedSCMException {
+        try {
+            if (remote == null || remote.isEmpty()) {
+                remote = git.getRemoteUrl("origin");
+            }
+            synchronized (configLock) {
+                try {
+                    git.launchCommand("remote", "rm", "feature");
+                }
+                catch (GitException exception) {
+                    // when remote is new, can fail, but it's intentional
+                }
+                git.launchCommand("remote", "add", "feature", remote);
+                git.launchCommand("config", "remote.feature.promisor", "true");
+                git.launchCommand("config", "remote.feature.partialclonefilter", "blob:none");
+            }
+
+            List<String> args = new ArrayList<String>();
+            args.add("fetch");
+            args.add("--filter=blob:none");
             try {
-                git.launchCommand("remote", "rm", "feature");
+                git.revParse("origin/" + targetBranch);
+                args.add("--negotiation-tip=refs/remotes/origin/" + targetBranch);
             }
             catch (GitException exception) {
-                // when remote is new, can fail, but it's intentional
+                // target is a new release branch, negotiate as usual
             }
-            git.launchCommand("remote", "add", "feature", remote);
+            args.add("feature");
+            args.add(branch);
             try {
-                git.launchCommand("fetch", "feature", branch);
+                git.launchCommand(args.toArray(new String[args.size()]));
             }
             catch (GitException exception) {
                 // can be a new local branch, so can fail, but it's intentional
             }
+            deletePrefetchRef(branch);
+        }
+        catch (InterruptedException exception) {
+            throw new AdvancedSCMException(exception.toString());
+        }
+    }
+
+    /**
+     * Delete the ref FeaturePrefetcher fetched given branch into, once the branch is pulled.
+     * Its objects stay, but every fetch would otherwise send the ref as a have and every for-each-ref list it.
+     */
+    private void deletePrefetchRef(String branch) throws InterruptedException {
+        try {
+            git.launchCommand("update-ref", "-d", PREFETCH_REFS + branch);
+        }
+        catch (GitException exception) {
+            // nothing was prefetched
+        }
+    }
+
+    /**
+     * Keeps checkouts, ancestry queries and merges fast in long-lived workspaces: enables the untracked cache,
+     * packs loose objects incrementally, and writes a multi-pack-index with bitmaps and a commit-graph
+     * with generation numbers. Falls back to what older git versions support.
+     * Prefetched branches of builds which never pulled them, e.g. because they were cancelled, are deleted.
+     */
+    public void maintain() throws AdvancedSCMException {
+        long start = System.currentTimeMillis();
+        try {
+            for (String ref : git.launchCommand("for-each-ref", "--format=%(refname)", PREFETCH_REFS).split("\n")) {
+                if (!ref.trim().isEmpty()) {
+                    maintenanceStep("prefetched refs", "update-ref", "-d", ref.trim());
+                }
+            }
+        }
+        catch (GitException exception) {
+            listener.getLogger().append("Maintenance step prefetched refs skipped: " + exception.getMessage() + "\n");
+        }
+        catch (InterruptedException exception) {
+            throw new AdvancedSCMException(exception.toString());
+        }
+        if (maintenanceStep("untracked cache", "config", "core.untrackedCache", "true")) {
+            maintenanceStep("untracked cache", "update-index", "--untracked-cache");
+        }
+        if (!maintenanceStep("geometric repack", "repack", "-d", "-l", "--geometric=2")) {
+            // without -a only loose objects are packed, which is incremental as well
+            maintenanceStep("repack", "repack", "-d", "-l");
+        }
+        if (!maintenanceStep("multi-pack-index", "multi-pack-index", "write", "--bitmap")) {
+            maintenanceStep("multi-pack-index", "multi-pack-index", "write");
+        }
+        maintenanceStep("commit-graph", "config", "core.commitGraph", "true");
+        if (!maintenanceStep("commit-graph", "commit-graph", "write", "--reachable", "--split", "--changed-paths")) {
+            maintenanceStep("commit-graph", "commit-graph", "write", "--reachable");
+        }
+        listener.getLogger().append("Repository maintenance took " + (System.currentTimeMillis() - start) + " ms.\n");
+    }
+
+    /**
+     * Run one maintenance command, logging the time it took.
+     * @return whether the command succeeded
+     */
+    private boolean maintenanceStep(String name, String... args) throws AdvancedSCMException {
+        long start = System.currentTimeMillis();
+        try {
+            git.launchCommand(args);
+            listener.getLogger().append("Maintenance step " + name + " took "
+                    + (System.currentTimeMillis() - start) + " ms.\n");
+            return true;
+        }
+        catch (GitException exception) {
+            listener.getLogger().append("Maintenance step " + name + " skipped: " + exception.getMessage() + "\n");
+            return false;
         }
         catch (InterruptedException exception) {
             throw new AdvancedSCMException(exception.toString());
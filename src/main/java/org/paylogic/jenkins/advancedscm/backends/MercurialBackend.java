@@ -1,12 +1,23 @@
 package org.paylogic.jenkins.advancedscm.backends;
 
+import hudson.AbortException;
+import hudson.FilePath;
 import hudson.Launcher;
+import hudson.Util;
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
+import hudson.model.TaskListener;
 import hudson.plugins.mercurial.MercurialSCM;
 import lombok.extern.java.Log;
+import org.apache.commons.lang.StringUtils;
+import org.paylogic.jenkins.advancedscm.AgentManagerFactory;
 import org.paylogic.jenkins.advancedscm.Branch;
+import org.paylogic.jenkins.advancedscm.BranchCache;
+import org.paylogic.jenkins.advancedscm.StepContext;
 import org.paylogic.jenkins.advancedscm.backends.helpers.AdvancedHgExe;
+import org.paylogic.jenkins.advancedscm.backends.helpers.CleanPolicy;
+import org.paylogic.jenkins.advancedscm.backends.helpers.RecordedResolutions;
+import org.paylogic.jenkins.advancedscm.backends.helpers.SparseCheckout;
 import org.paylogic.jenkins.advancedscm.exceptions.*;
 import org.paylogic.jenkins.upmerge.releasebranch.ReleaseBranch;
 import org.paylogic.jenkins.upmerge.releasebranch.ReleaseBranchImpl;
@@ -15,6 +26,7 @@ import org.paylogic.jenkins.upmerge.releasebranch.ReleaseBranchInvalidException;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.logging.Level;
 
@@ -24,22 +36,84 @@ import java.util.logging.Level;
 @Log
 public class MercurialBackend extends BaseBackend {
 
+    public static boolean UPGRADE_FORMAT = Boolean.getBoolean(MercurialBackend.class.getName() + ".upgradeFormat");
+    public static int LEARN_MAX_MERGES = Integer.getInteger(MercurialBackend.class.getName() + ".learnMaxMerges", 20);
+
     private String hgExe;
     private AdvancedHgExe advancedHgExe;
-    private AbstractBuild build;
     private PrintStream l;
+    private List<String> sparsePaths;
+    private List<String> keepPaths = new ArrayList<String>();
+    private boolean reuseResolutions;
+
+    /**
+     * Whether the default repository was pulled by this manager, so pulls from forks don't pull it again.
+     */
+    private boolean defaultPulled;
 
     /**
      * Please do not instantiate objects of this class yourself, use SCMManagerFactory.
      */
     public MercurialBackend(AbstractBuild build, Launcher launcher, BuildListener listener, MercurialSCM scm) throws IOException, InterruptedException {
-        this.build = build;
-        this.l = listener.getLogger();
-        this.advancedHgExe = new AdvancedHgExe(scm, launcher, build, listener);
+        this(StepContext.of(build, launcher, listener), scm);
+    }
+
+    /**
+     * Please do not instantiate objects of this class yourself, use SCMManagerFactory.
+     */
+    public MercurialBackend(StepContext context, MercurialSCM scm) throws IOException, InterruptedException {
+        this.l = context.getListener().getLogger();
+        this.advancedHgExe = new AdvancedHgExe(scm, context);
         this.repoPath = this.advancedHgExe.getFilePath();
+        this.repositoryUrl = scm.getSource();
+    }
+
+    /**
+     * Used by AgentFactory to create the backend on the agent.
+     */
+    private MercurialBackend(AdvancedHgExe advancedHgExe, TaskListener listener, String repositoryUrl) {
+        this.l = listener.getLogger();
+        this.advancedHgExe = advancedHgExe;
+        this.repoPath = advancedHgExe.getFilePath();
+        this.repositoryUrl = repositoryUrl;
+    }
+
+    public AgentManagerFactory getAgentFactory() {
+        return new AgentFactory(advancedHgExe, repositoryUrl);
+    }
+
+    private static class AgentFactory implements AgentManagerFactory {
+        private static final long serialVersionUID = 1L;
+        private final AdvancedHgExe advancedHgExe;
+        private final String repositoryUrl;
+
+        private AgentFactory(AdvancedHgExe advancedHgExe, String repositoryUrl) {
+            this.advancedHgExe = advancedHgExe;
+            this.repositoryUrl = repositoryUrl;
+        }
+
+        public MercurialBackend getManager(TaskListener listener) {
+            return new MercurialBackend(advancedHgExe, listener, repositoryUrl);
+        }
     }
 
     public List<Branch> getBranches(boolean all) {
+        // branches are read from the changelog, so the listing only changes with it
+        String workspace = BranchCache.getWorkspace(repoPath);
+        String state = BranchCache.getState(repoPath, ".hg/store/00changelog.i", ".hg/store/00changelog.d");
+        List<Branch> cached = BranchCache.getInstance().get(workspace, state, all);
+        if (cached != null) {
+            return cached;
+        }
+        // the changelog index has the id of every changeset, so other workspaces with the same index and
+        // obsolete markers have the same branches, and changesets which only exist in this workspace
+        // give it a listing of its own
+        String content = BranchCache.getContentState(repoPath, ".hg/store/00changelog.i", ".hg/store/obsstore");
+        cached = BranchCache.getInstance().getShared(repositoryUrl, content, all);
+        if (cached != null) {
+            BranchCache.getInstance().put(workspace, state, all, cached);
+            return cached;
+        }
         String rawBranches = "";
         String[] args = new String[] {};
         if (all) {
@@ -62,6 +136,8 @@ public class MercurialBackend extends BaseBackend {
 
             list.add(new Branch(branchName, revision, hash));
         }
+        BranchCache.getInstance().putShared(repositoryUrl, content, all, list);
+        BranchCache.getInstance().put(workspace, state, all, list);
         return list;
     }
 
@@ -107,13 +183,34 @@ public class MercurialBackend extends BaseBackend {
         }
     }
 
+    /**
+     * Local commits are stripped by stripLocal, so after pulling the branch its tip is the remote head.
+     */
+    public void updateToRemote(String branch) throws AdvancedSCMException {
+        try {
+            this.advancedHgExe.pullChanges("default", branch);
+        } catch (AbortException e) {
+            if (e.getMessage() == null || !e.getMessage().contains("unknown revision")) {
+                log.log(Level.SEVERE, "Exception occurred during pull of " + branch + ".", e);
+                l.append(e.toString());
+                throw new AdvancedSCMException(e.getMessage());
+            }
+            // new branch, it's only in the workspace
+        } catch (Exception e) {
+            log.log(Level.SEVERE, "Exception occurred during pull of " + branch + ".", e);
+            l.append(e.toString());
+            throw new AdvancedSCMException(e.getMessage());
+        }
+        updateClean(branch);
+    }
+
     public void stripLocal() throws AdvancedSCMException {
         try {
-            String[] out = this.advancedHgExe.out();
-            if (out.length > 0) {
+            String[] local = this.advancedHgExe.local();
+            if (local.length > 0) {
                 String output = "";
                 try {
-                    output = this.advancedHgExe.strip(out);
+                    output = this.advancedHgExe.strip(new String[]{"-r", AdvancedHgExe.LOCAL_REVSET});
                 } catch (Exception e) {
                     log.log(Level.SEVERE, "Exception occurred during strip.", e);
                     l.append(e.toString());
@@ -131,7 +228,7 @@ public class MercurialBackend extends BaseBackend {
     public void clean() throws AdvancedSCMException{
         String output = "";
         try {
-            output = this.advancedHgExe.clean();
+            output = this.advancedHgExe.clean(CleanPolicy.getHgExcludes(keepPaths));
         } catch (Exception e) {
             log.log(Level.SEVERE, "Exception occured during cleaning of workspace.", e);
             l.append(e.toString());
@@ -142,6 +239,10 @@ public class MercurialBackend extends BaseBackend {
         }
     }
 
+    public void setCleanKeepPaths(List<String> paths) {
+        this.keepPaths = new ArrayList<String>(paths);
+    }
+
     public void closeBranch(String branch, String message, String username) throws AdvancedSCMException {
         String output = "";
         update(branch);
@@ -162,10 +263,40 @@ public class MercurialBackend extends BaseBackend {
         if (updateTo != null) {
             this.updateClean(updateTo);
         }
+        try {
+            merge(revision, false);
+        } catch (MergeWontHaveEffectException e) {
+            throw e;
+        } catch (AdvancedSCMException e) {
+            if (sparsePaths == null) {
+                throw e;
+            }
+            List<String> outside;
+            try {
+                outside = SparseCheckout.getOutside(sparsePaths, this.advancedHgExe.unresolved());
+            } catch (Exception unresolved) {
+                throw e;
+            }
+            if (outside.isEmpty()) {
+                // e.g. a conflict in the sparse checkout, which a full checkout doesn't resolve
+                throw e;
+            }
+            l.append("Merge needs " + StringUtils.join(outside, ", ")
+                    + " outside of the sparse checkout, retrying with full checkout.\n");
+            this.updateClean(".");
+            setSparseCheckout(new ArrayList<String>());
+            merge(revision, false);
+        }
+    }
+
+    private void merge(String revision, boolean learned) throws AdvancedSCMException {
         String output = "";
         try {
             output = this.advancedHgExe.merge(revision);
         } catch (Exception e) {
+            if (reuseResolutions && resolveConflicts(revision, learned)) {
+                return;
+            }
             log.log(Level.SEVERE, "Exception occurred during merge of workspace with " + revision + ".", e);
             l.append(e.toString());
 
@@ -184,6 +315,130 @@ public class MercurialBackend extends BaseBackend {
         }
     }
 
+    /**
+     * Resolve the conflicts of the merge in progress with recorded resolutions. When conflicts are left,
+     * resolutions are learned from the merges being merged, and the merge is done again once.
+     * @return whether all conflicts are resolved
+     */
+    private boolean resolveConflicts(String revision, boolean learned) throws AdvancedSCMException {
+        try {
+            List<String> unresolved = this.advancedHgExe.unresolved();
+            if (unresolved.isEmpty()) {
+                return false;
+            }
+            RecordedResolutions resolutions = new RecordedResolutions(getResolutionCache());
+            List<String> resolved = new ArrayList<String>();
+            for (String file : unresolved) {
+                FilePath path = repoPath.child(file);
+                String content = resolutions.resolve(RecordedResolutions.read(path));
+                if (content != null) {
+                    RecordedResolutions.write(path, content);
+                    resolved.add(file);
+                }
+            }
+            if (!resolved.isEmpty()) {
+                this.advancedHgExe.markResolved(resolved);
+            }
+            if (resolved.size() == unresolved.size()) {
+                l.append("All conflicts were resolved with recorded resolutions.\n");
+                return true;
+            }
+            if (learned) {
+                return false;
+            }
+            learnResolutions(revision);
+            merge(revision, true);
+            return true;
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Resolving conflicts with recorded resolutions failed.", e);
+            l.append(e.toString());
+            return false;
+        } catch (InterruptedException e) {
+            log.log(Level.WARNING, "Resolving conflicts with recorded resolutions failed.", e);
+            l.append(e.toString());
+            return false;
+        }
+    }
+
+    /**
+     * Record the resolutions of merges which are in given revision but not in the workspace, by redoing
+     * every merge and comparing the conflicts with the files of the merge commit.
+     * The workspace is updated back to its revision afterwards, dropping the merge in progress.
+     */
+    private void learnResolutions(String revision) throws AdvancedSCMException, IOException, InterruptedException {
+        String workspace = this.advancedHgExe.revisionId(".");
+        String[] merges = this.advancedHgExe.merges(workspace, getRevisionId(revision), LEARN_MAX_MERGES);
+        RecordedResolutions resolutions = new RecordedResolutions(getResolutionCache());
+        FilePath resolvedFile = repoPath.child(".hg").child("gatekeeper-resolved");
+        int learned = 0;
+        try {
+            for (String line : merges) {
+                String[] commits = line.trim().split(" ");
+                if (commits.length < 3) {
+                    continue;
+                }
+                this.advancedHgExe.updateClean(commits[1]);
+                try {
+                    this.advancedHgExe.merge(commits[2]);
+                } catch (IOException e) {
+                    // conflicts, which is what we learn from
+                }
+                for (String file : this.advancedHgExe.unresolved()) {
+                    this.advancedHgExe.cat(commits[0], file, resolvedFile.getRemote());
+                    learned += resolutions.record(
+                            RecordedResolutions.read(repoPath.child(file)), RecordedResolutions.read(resolvedFile));
+                }
+            }
+        } finally {
+            resolvedFile.delete();
+            this.advancedHgExe.updateClean(workspace);
+        }
+        l.append("Learned " + learned + " conflict resolutions from " + merges.length + " merges.\n");
+    }
+
+    public void setReuseResolutions(boolean reuse) {
+        this.reuseResolutions = reuse;
+    }
+
+    public FilePath getResolutionCache() {
+        return repoPath.child(".hg").child("gatekeeper-resolutions");
+    }
+
+    public void setSparseCheckout(List<String> paths) throws AdvancedSCMException {
+        try {
+            if (paths.isEmpty()) {
+                this.advancedHgExe.sparse("--reset");
+                sparsePaths = null;
+                return;
+            }
+            // the extension has to stay enabled for every command on a sparse working copy, also outside of builds
+            FilePath hgrc = repoPath.child(".hg").child("hgrc");
+            String config = hgrc.exists() ? hgrc.readToString() : "";
+            if (!config.contains("sparse")) {
+                hgrc.write(config + "\n[extensions]\nsparse =\n", "UTF-8");
+            }
+            FilePath rules = repoPath.child(".hg").child("sparse");
+            if (!rules.exists()) {
+                this.advancedHgExe.sparse(prepend("--include", paths));
+            } else {
+                rules.write("[include]\n" + StringUtils.join(paths, "\n") + "\n", "UTF-8");
+                this.advancedHgExe.sparse("--refresh");
+            }
+            sparsePaths = new ArrayList<String>(paths);
+        } catch (Exception e) {
+            log.log(Level.SEVERE, "Exception occurred during setting up sparse checkout.", e);
+            l.append(e.toString());
+            throw new AdvancedSCMException(e.getMessage());
+        }
+    }
+
+    private static String[] prepend(String first, List<String> rest) {
+        List<String> args = new ArrayList<String>();
+        args.add(first);
+        args.addAll(rest);
+        return args.toArray(new String[args.size()]);
+    }
+
     public void mergeHeads(String message, String username) throws AdvancedSCMException {
         String output = "";
         try {
@@ -242,17 +497,36 @@ public class MercurialBackend extends BaseBackend {
         this.pull(remote, "");
     }
 
+    /**
+     * Pulls from given repository, or the default one. Changesets pulled from another repository than
+     * the default one are public when it's publishing, but are made draft, so stripLocal removes them
+     * again like changesets committed in the workspace. The default repository is pulled first, so its
+     * changesets are public already and only those which are not upstream are made draft.
+     */
     public void pull(String remote, String branch) throws AdvancedSCMException {
         String output = "";
         try {
             if (remote == null || remote.isEmpty()) {
                 output = this.advancedHgExe.pullChanges();
-            }
-            else if (branch.isEmpty()) {
-                remote = this.advancedHgExe.pullChanges(remote);
+                defaultPulled = true;
             }
             else {
-                remote = this.advancedHgExe.pullChanges(remote, branch);
+                boolean fork = !remote.equals("default") && !remote.equals(repositoryUrl);
+                if (fork && !defaultPulled) {
+                    output = this.advancedHgExe.pullChanges();
+                    defaultPulled = true;
+                }
+                int tip = fork ? this.advancedHgExe.tip() : 0;
+                if (branch.isEmpty()) {
+                    remote = this.advancedHgExe.pullChanges(remote);
+                }
+                else {
+                    remote = this.advancedHgExe.pullChanges(remote, branch);
+                }
+                int pulled = fork ? this.advancedHgExe.tip() : 0;
+                if (pulled > tip) {
+                    this.advancedHgExe.draft((tip + 1) + ":" + pulled);
+                }
             }
         } catch (Exception e) {
             log.log(Level.SEVERE, "Error during Mercurial command exceution");
@@ -265,6 +539,179 @@ public class MercurialBackend extends BaseBackend {
         }
     }
 
+    /**
+     * Mercurial discovery already only transfers changesets of the branch which are missing locally,
+     * and there is no lazy fetching of file contents in core Mercurial, so this is a plain pull.
+     */
+    public void pullForMerge(String remote, String branch, String targetBranch) throws AdvancedSCMException {
+        this.pull(remote, branch);
+    }
+
+    public String getRevisionId(String revision) throws AdvancedSCMException {
+        String output = "";
+        try {
+            output = this.advancedHgExe.revisionId(revision);
+        } catch (Exception e) {
+            log.log(Level.SEVERE, "Exception occurred during lookup of revision " + revision + ".", e);
+            l.append(e.toString());
+            throw new AdvancedSCMException(e.getMessage());
+        }
+        if (output.contains("abort: unknown revision")) {
+            throw new UnknownRevisionException(output);
+        } else if (output.contains("abort:") || output.isEmpty()) {
+            throw new AdvancedSCMException("Could not determine revision " + revision + ": " + output);
+        }
+        return output;
+    }
+
+    public boolean isAncestor(String ancestor, String descendant) throws AdvancedSCMException {
+        // resolve names first, branch names can't always be used in revsets as they are
+        String revset = getRevisionId(ancestor) + " and ancestors(" + getRevisionId(descendant) + ")";
+        try {
+            return !this.advancedHgExe.revisionId(revset).isEmpty();
+        } catch (Exception e) {
+            log.log(Level.SEVERE, "Exception occurred during ancestry check.", e);
+            l.append(e.toString());
+            throw new AdvancedSCMException(e.getMessage());
+        }
+    }
+
+    public String getHeadId(String branch) throws AdvancedSCMException {
+        return getRevisionId(branch);
+    }
+
+    public List<String> getCommits(List<String> heads, List<String> known) throws AdvancedSCMException {
+        // revision numbers are topological, so the default order lists parents first
+        String revset = known.isEmpty() ? "::(" + StringUtils.join(heads, " or ") + ")"
+                : "only(" + StringUtils.join(heads, " or ") + ", " + StringUtils.join(known, " or ") + ")";
+        try {
+            return Arrays.asList(this.advancedHgExe.commits(revset));
+        } catch (Exception e) {
+            log.log(Level.SEVERE, "Exception occurred during log.", e);
+            l.append(e.toString());
+            throw new AdvancedSCMException(e.getMessage());
+        }
+    }
+
+    public String getWorkspaceRevisionId() throws AdvancedSCMException {
+        return getRevisionId(".");
+    }
+
+    /**
+     * Mercurial has no tree hashes, so this is a digest of the manifest with the file revision of every file.
+     * File revisions also depend on file history, so equal trees with different history get different ids.
+     */
+    public String getWorkspaceTreeId() throws AdvancedSCMException {
+        try {
+            return Util.getDigestOf(this.advancedHgExe.manifest("."));
+        } catch (Exception e) {
+            log.log(Level.SEVERE, "Exception occurred during manifest.", e);
+            l.append(e.toString());
+            throw new AdvancedSCMException(e.getMessage());
+        }
+    }
+
+    public String getMergeBase(String first, String second) throws AdvancedSCMException {
+        // resolve names first, branch names can't always be used in revsets as they are
+        String revset = "ancestor(" + getRevisionId(first) + ", " + getRevisionId(second) + ")";
+        try {
+            return this.advancedHgExe.revisionId(revset);
+        } catch (Exception e) {
+            log.log(Level.SEVERE, "Exception occurred during ancestor lookup.", e);
+            l.append(e.toString());
+            throw new AdvancedSCMException(e.getMessage());
+        }
+    }
+
+    public String getDiff(String from, String to) throws AdvancedSCMException {
+        try {
+            return this.advancedHgExe.diff(getRevisionId(from), getRevisionId(to));
+        } catch (Exception e) {
+            log.log(Level.SEVERE, "Exception occurred during diff.", e);
+            l.append(e.toString());
+            throw new AdvancedSCMException(e.getMessage());
+        }
+    }
+
+    public void exportChanges(String base, String bundleFile, String... revisions) throws AdvancedSCMException {
+        String output = "";
+        try {
+            output = this.advancedHgExe.bundle(base, bundleFile, revisions);
+        } catch (Exception e) {
+            log.log(Level.SEVERE, "Exception occurred during bundle.", e);
+            l.append(e.toString());
+            throw new AdvancedSCMException(e.getMessage());
+        }
+        if (output.contains("abort:")) {
+            throw new AdvancedSCMException(output);
+        }
+    }
+
+    public void importChanges(String bundleFile, String revision) throws AdvancedSCMException {
+        String output = "";
+        try {
+            output = this.advancedHgExe.unbundle(bundleFile);
+        } catch (Exception e) {
+            log.log(Level.SEVERE, "Exception occurred during unbundle.", e);
+            l.append(e.toString());
+            throw new AdvancedSCMException(e.getMessage());
+        }
+        if (output.contains("abort:")) {
+            throw new AdvancedSCMException(output);
+        }
+        updateClean(revision);
+    }
+
+    /**
+     * Warms the branchmap, tags and rev-branch caches, and upgrades the repository format when enabled
+     * with the upgradeFormat system property. Logs how long listing branches takes before and after.
+     */
+    public void maintain() throws AdvancedSCMException {
+        long before = timeBranchListing();
+        long start = System.currentTimeMillis();
+        updateCaches();
+        l.append("Maintenance step cache update took " + (System.currentTimeMillis() - start) + " ms.\n");
+        if (UPGRADE_FORMAT) {
+            start = System.currentTimeMillis();
+            String output = "";
+            try {
+                output = this.advancedHgExe.upgrade();
+            } catch (Exception e) {
+                log.log(Level.SEVERE, "Exception occurred during format upgrade.", e);
+                l.append(e.toString());
+                throw new AdvancedSCMException(e.getMessage());
+            }
+            if (output.contains("abort:") || output.contains("unknown command")) {
+                l.append("Maintenance step format upgrade skipped.\n");
+            } else {
+                l.append("Maintenance step format upgrade took " + (System.currentTimeMillis() - start) + " ms.\n");
+            }
+        }
+        l.append("Listing branches took " + before + " ms before and " + timeBranchListing() + " ms after maintenance.\n");
+    }
+
+    /**
+     * Update caches in the background maintenance, so builds don't wait for it after every pull.
+     * Older Mercurial versions without debugupdatecaches rebuild them on demand as before.
+     */
+    private void updateCaches() {
+        try {
+            this.advancedHgExe.updateCaches();
+        } catch (Exception e) {
+            log.log(Level.WARNING, "Could not update caches.", e);
+        }
+    }
+
+    private long timeBranchListing() throws AdvancedSCMException {
+        long start = System.currentTimeMillis();
+        try {
+            this.advancedHgExe.branches(new String[]{"-c"});
+        } catch (Exception e) {
+            throw new AdvancedSCMException(e.getMessage());
+        }
+        return System.currentTimeMillis() - start;
+    }
+
     public ReleaseBranch getReleaseBranch(String branch) throws ReleaseBranchInvalidException {
         return new ReleaseBranchImpl(branch, "default");
     }
@@ -28,4 +28,11 @@ public class AdvancedCliGit extends CliGitAPIImpl{
             
         }
     }
+
+    /**
+     * Create git client running its commands locally, for use on the agent owning the workspace.
+     */
+    public AdvancedCliGit(String gitExe, File workspace, TaskListener listener, EnvVars environment) {
+        super(gitExe, workspace, listener, environment);
+    }
 }
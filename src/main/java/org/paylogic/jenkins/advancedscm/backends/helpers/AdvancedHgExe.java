@@ -1,6 +1,7 @@
 package org.paylogic.jenkins.advancedscm.backends.helpers;
 
 import hudson.AbortException;
+import hudson.EnvVars;
 import hudson.FilePath;
 import hudson.Launcher;
 import hudson.model.AbstractBuild;
@@ -11,30 +12,106 @@ import hudson.util.ArgumentListBuilder;
 import lombok.Getter;
 import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.lang.StringUtils;
+import org.paylogic.jenkins.advancedscm.StepContext;
 
 import javax.annotation.CheckForNull;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
-public class AdvancedHgExe extends HgExe {
+/**
+ * Runs Mercurial commands in the workspace.
+ * The command line is resolved with HgExe on the master, after which this object can be sent to the agent
+ * owning the workspace and run commands there with a local launcher.
+ */
+public class AdvancedHgExe implements Serializable {
 
     @Getter
     private FilePath filePath;
 
+    private final ArgumentListBuilder base;
+    private final EnvVars env;
+    private final TaskListener listener;
+    private transient Launcher launcher;
+
     public static int DEFAULT_TIMEOUT = 6 * 60; // 6 minutes (time is in seconds)
     public static int DEFAULT_PUSH_TIMEOUT = 60 * 60 * 60; // one hour (time is in seconds)
 
     public AdvancedHgExe(MercurialSCM scm, Launcher launcher, AbstractBuild build, TaskListener listener) throws IOException, InterruptedException {
-        super(scm, launcher, build, listener);
-        FilePath path = build.getWorkspace();
+        this(scm, StepContext.of(build, launcher, listener));
+    }
+
+    public AdvancedHgExe(MercurialSCM scm, StepContext context) throws IOException, InterruptedException {
+        this.env = new EnvVars(context.getEnvironment());
+        HgExe hgExe = new HgExe(scm, context.getLauncher(), context.getNode(), context.getListener(), env);
+        ArgumentListBuilder base = hgExe.seed(false);
+        this.env.put("HGPLAIN", "true");
+        this.launcher = context.getLauncher();
+        this.listener = context.getListener();
+        FilePath path = context.getWorkspace();
 
         if (scm.getSubdir() != null && !scm.getSubdir().isEmpty()) {
             path = path.child(scm.getSubdir());
         }
 
         this.filePath = path;
+        String ssh = SshMultiplexing.isUsable(context) ? SshMultiplexing.getSshCommand(context, getSsh(context, base))
+                : null;
+        if (ssh != null) {
+            // a later --config overrides the ssh command of the credentials, if any, so it's kept in there
+            base.add("--config", "ui.ssh=" + ssh);
+        }
+        this.base = base;
+    }
+
+    /**
+     * Get the configured ssh command, so connection sharing options can be added to it.
+     * It's looked up once per build and repository.
+     * @return String ssh command, empty or null when it's not configured
+     */
+    private String getSsh(StepContext context, ArgumentListBuilder base) throws InterruptedException {
+        String key = "hg " + filePath.getRemote();
+        String ssh = SshMultiplexing.getSetting(context, key);
+        if (ssh != null) {
+            return ssh;
+        }
+        try {
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            Launcher.ProcStarter proc = launch(base.clone().add("config", "ui.ssh")).stdout(data);
+            boolean exists = filePath.exists();
+            if (exists) {
+                proc.pwd(filePath);
+            }
+            // exits with 1 when the option is not set
+            ssh = proc.join() == 0 ? data.toString().trim() : "";
+            if (exists) {
+                // before the clone only the global configuration is seen
+                SshMultiplexing.setSetting(context, key, ssh);
+            }
+            return ssh;
+        } catch (IOException e) {
+            listener.getLogger().println("Could not get the ssh command of Mercurial: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Get argument list starting with the hg executable and its global options.
+     */
+    public ArgumentListBuilder seed() {
+        return base.clone();
+    }
+
+    public Launcher.ProcStarter launch(ArgumentListBuilder args) {
+        if (launcher == null) {
+            // sent to the agent, where commands are run locally
+            launcher = new Launcher.LocalLauncher(listener);
+        }
+        return launcher.launch().cmds(args).envs(env).stdout(listener);
     }
 
     /**
@@ -43,7 +120,7 @@ public class AdvancedHgExe extends HgExe {
     public String popen(FilePath repository, TaskListener listener, int timeout, ArgumentListBuilder args,
                         int[] returnCodes)
             throws IOException, InterruptedException {
-        args = seed(false).add(args.toCommandArray());
+        args = seed().add(args.toCommandArray());
 
         ByteArrayOutputStream data = new ByteArrayOutputStream();
         if (ArrayUtils.contains(returnCodes,
@@ -116,9 +193,16 @@ public class AdvancedHgExe extends HgExe {
         return output;
     }
 
-    public String clean() throws IOException, InterruptedException {
-        String output = popen(this.filePath, listener, 0, new ArgumentListBuilder(
-                "--config", "extensions.purge=", "purge", "--all"));
+    /**
+     * Remove untracked and ignored files.
+     * @param excludes : List of String patterns of files to keep
+     */
+    public String clean(List<String> excludes) throws IOException, InterruptedException {
+        ArgumentListBuilder args = new ArgumentListBuilder("--config", "extensions.purge=", "purge", "--all");
+        for (String exclude : excludes) {
+            args.add("-X", exclude);
+        }
+        String output = popen(this.filePath, listener, 0, args);
         if (StringUtils.isEmpty(output)) {
             return "";
         }
@@ -128,16 +212,92 @@ public class AdvancedHgExe extends HgExe {
 
     private static final String[] EMPTY = {};
 
-    public String[] out() throws IOException, InterruptedException {
-        int [] returnCodes = {0, 1};
+    /**
+     * Revset of changesets which only exist locally. Changesets become public when pushed to or pulled from
+     * a publishing repository, so this needs no contact with the remote. Changesets pulled from another
+     * repository than the default one are made draft again by MercurialBackend.pull, so they are local as well.
+     */
+    public static final String LOCAL_REVSET = "not public()";
+
+    /**
+     * List changesets which were not pushed yet, using phases instead of querying the remote.
+     * @return String[] of revision numbers
+     */
+    public String[] local() throws IOException, InterruptedException {
         String output = popen(this.filePath, listener, 0, new ArgumentListBuilder(
-                "out", "-q", "--template", "{rev}:"), returnCodes);
+                "log", "-r", LOCAL_REVSET, "--template", "{rev}:"));
         if (StringUtils.isEmpty(output)) {
             return EMPTY;
         }
         return output.split(":");
     }
 
+    /**
+     * @return int revision number of the tip, -1 in an empty repository
+     */
+    public int tip() throws IOException, InterruptedException {
+        String output = popen(this.filePath, listener, 0, new ArgumentListBuilder(
+                "log", "-r", "tip", "--template", "{rev}"));
+        return Integer.parseInt(output.trim());
+    }
+
+    /**
+     * Move changesets back to the draft phase, also when they are public.
+     */
+    public String draft(String revset) throws IOException, InterruptedException {
+        return popen(this.filePath, listener, 0, new ArgumentListBuilder("phase", "--draft", "--force", "-r", revset));
+    }
+
+    public String revisionId(String revision) throws IOException, InterruptedException {
+        String output = popen(this.filePath, listener, 0, new ArgumentListBuilder(
+                "log", "-r", revision, "--template", "{node}"));
+        if (StringUtils.isEmpty(output)) {
+            return "";
+        }
+        return output.trim();
+    }
+
+    public String manifest(String revision) throws IOException, InterruptedException {
+        String output = popen(this.filePath, listener, 0, new ArgumentListBuilder(
+                "manifest", "--debug", "-r", revision));
+        if (StringUtils.isEmpty(output)) {
+            return "";
+        }
+        return output;
+    }
+
+    /**
+     * Diff of two revisions in git format, without context lines.
+     */
+    public String diff(String from, String to) throws IOException, InterruptedException {
+        return popen(this.filePath, listener, 0, new ArgumentListBuilder(
+                "diff", "--git", "--unified", "0", "-r", from, "-r", to));
+    }
+
+    public String bundle(String base, String file, String... revisions) throws IOException, InterruptedException {
+        int [] returnCodes = {0, 1};
+        ArgumentListBuilder builder = new ArgumentListBuilder("bundle", "--base", base);
+        for(String item : revisions){
+            builder.add("-r", item);
+        }
+        builder.add(file);
+        String output = popen(this.filePath, listener, 0, builder, returnCodes);
+        if (StringUtils.isEmpty(output)) {
+            return "";
+        }
+        listener.getLogger().append(output);
+        return output;
+    }
+
+    public String unbundle(String file) throws IOException, InterruptedException {
+        String output = popen(this.filePath, listener, 0, new ArgumentListBuilder("unbundle", file));
+        if (StringUtils.isEmpty(output)) {
+            return "";
+        }
+        listener.getLogger().append(output);
+        return output;
+    }
+
     public String commit(String message, String username, String... extraArgs) throws IOException, InterruptedException {
         int [] returnCodes = {0, 1};
         ArgumentListBuilder builder = new ArgumentListBuilder(
@@ -165,6 +325,66 @@ public class AdvancedHgExe extends HgExe {
         return output;
     }
 
+    /**
+     * List files with unresolved conflicts of the merge in progress.
+     * @return List of String paths relative to the repository root
+     */
+    public List<String> unresolved() throws IOException, InterruptedException {
+        String output = popen(this.filePath, listener, 0, new ArgumentListBuilder("resolve", "--list"));
+        List<String> files = new ArrayList<String>();
+        for (String line : output.split("\n")) {
+            if (line.startsWith("U ")) {
+                files.add(line.substring(2).trim());
+            }
+        }
+        return files;
+    }
+
+    public String markResolved(List<String> files) throws IOException, InterruptedException {
+        ArgumentListBuilder builder = new ArgumentListBuilder("resolve", "--mark");
+        for(String item : files){
+            builder.add(item);
+        }
+        String output = popen(this.filePath, listener, 0, builder);
+        if (StringUtils.isEmpty(output)) {
+            return "";
+        }
+        listener.getLogger().append(output);
+        return output;
+    }
+
+    public String cat(String revision, String file, String output) throws IOException, InterruptedException {
+        return popen(this.filePath, listener, 0, new ArgumentListBuilder("cat", "-r", revision, "-o", output, file));
+    }
+
+    /**
+     * List the most recent merges which are in given revision, but not in base.
+     * @return String[] of merges, as their id followed by the ids of both parents, separated by spaces
+     */
+    public String[] merges(String base, String revision, int limit) throws IOException, InterruptedException {
+        String output = popen(this.filePath, listener, 0, new ArgumentListBuilder(
+                "log", "-r", "reverse(merge() and only(" + revision + ", " + base + "))", "-l", String.valueOf(limit),
+                "--template", "{node} {p1node} {p2node}\n"));
+        if (StringUtils.isEmpty(output.trim())) {
+            return EMPTY;
+        }
+        return output.trim().split("\n");
+    }
+
+    /**
+     * List the changesets of given revset with their parents.
+     * @return String[] of changesets, as their id followed by the ids of both parents, separated by spaces.
+     * Missing parents have the null id.
+     */
+    public String[] commits(String revset) throws IOException, InterruptedException {
+        String output = popen(this.filePath, listener, 0, new ArgumentListBuilder(
+                "log", "-r", revset, "--template", "{node} {p1node} {p2node}\n"));
+        if (StringUtils.isEmpty(output.trim())) {
+            return EMPTY;
+        }
+        return output.trim().split("\n");
+    }
+
     public String push(String[] extraArgs) throws IOException, InterruptedException {
         ArgumentListBuilder builder = new ArgumentListBuilder("push", "--new-branch");
         for(String item : extraArgs){
@@ -191,6 +411,49 @@ public class AdvancedHgExe extends HgExe {
         return output;
     }
 
+    public String sparse(String... extraArgs) throws IOException, InterruptedException {
+        ArgumentListBuilder builder = new ArgumentListBuilder("--config", "extensions.sparse=", "debugsparse");
+        for(String item : extraArgs){
+            builder.add(item);
+        }
+        String output = popen(this.filePath, listener, 0, builder);
+        if (StringUtils.isEmpty(output)) {
+            return "";
+        }
+        listener.getLogger().append(output);
+        return output;
+    }
+
+    /**
+     * Update the branchmap, tags and rev-branch caches, needs Mercurial 4.4 or newer.
+     */
+    public String updateCaches() throws IOException, InterruptedException {
+        int [] returnCodes = {0, 255};
+        String output = popen(this.filePath, listener, 0, new ArgumentListBuilder("debugupdatecaches"), returnCodes);
+        if (StringUtils.isEmpty(output)) {
+            return "";
+        }
+        return output;
+    }
+
+    /**
+     * Upgrade the repository to generaldelta, sparse-revlog and dirstate-v2, as far as the installed version
+     * supports them. Nothing is done when the repository already uses them.
+     */
+    public String upgrade() throws IOException, InterruptedException {
+        int [] returnCodes = {0, 255};
+        String output = popen(this.filePath, listener, DEFAULT_PUSH_TIMEOUT, new ArgumentListBuilder(
+                "--config", "format.generaldelta=yes",
+                "--config", "format.sparse-revlog=yes",
+                "--config", "format.use-dirstate-v2=yes",
+                "debugupgraderepo", "--run", "--no-backup"), returnCodes);
+        if (StringUtils.isEmpty(output)) {
+            return "";
+        }
+        listener.getLogger().append(output);
+        return output;
+    }
+
     public String pullChanges() throws IOException, InterruptedException {  // This has a wheird name because of extended class.
         String output = popen(this.filePath, listener, DEFAULT_PUSH_TIMEOUT, new ArgumentListBuilder("pull"));
         if (StringUtils.isEmpty(output)) {
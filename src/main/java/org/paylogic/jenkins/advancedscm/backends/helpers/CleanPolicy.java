@@ -0,0 +1,59 @@
+package org.paylogic.jenkins.advancedscm.backends.helpers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Paths which are kept when cleaning a workspace, e.g. ignored dependency caches and incremental compiler output.
+ * A keep rule is a path relative to the repository root, which may use the wildcards * and **,
+ * like target or **&#47;node_modules. Everything under a kept path is kept.
+ * The rules are translated into the exclude patterns of git clean and hg purge, so both backends keep the same paths.
+ */
+public class CleanPolicy {
+
+    /**
+     * Get the patterns to pass to git clean -e. They are used even with -x, which ignores .gitignore.
+     * @param keepPaths : List of String keep rules
+     * @return List of String exclude patterns, anchored at the repository root
+     */
+    public static List<String> getGitExcludes(List<String> keepPaths) {
+        List<String> excludes = new ArrayList<String>();
+        for (String path : normalize(keepPaths)) {
+            excludes.add(path.startsWith("**/") ? path : "/" + path);
+        }
+        return excludes;
+    }
+
+    /**
+     * Get the patterns to pass to hg purge -X, with purge running in the repository root.
+     * @param keepPaths : List of String keep rules
+     * @return List of String exclude patterns
+     */
+    public static List<String> getHgExcludes(List<String> keepPaths) {
+        List<String> excludes = new ArrayList<String>();
+        for (String path : normalize(keepPaths)) {
+            excludes.add((path.contains("*") ? "glob:" : "path:") + path);
+        }
+        return excludes;
+    }
+
+    private static List<String> normalize(List<String> keepPaths) {
+        List<String> paths = new ArrayList<String>();
+        if (keepPaths == null) {
+            return paths;
+        }
+        for (String path : keepPaths) {
+            path = path.trim().replace('\\', '/');
+            while (path.startsWith("/") || path.startsWith("./")) {
+                path = path.substring(path.startsWith("/") ? 1 : 2);
+            }
+            while (path.endsWith("/")) {
+                path = path.substring(0, path.length() - 1);
+            }
+            if (!path.isEmpty() && !path.equals(".") && !path.contains("..")) {
+                paths.add(path);
+            }
+        }
+        return paths;
+    }
+}
@@ -0,0 +1,172 @@
+package org.paylogic.jenkins.advancedscm.backends.helpers;
+
+import hudson.FilePath;
+import hudson.Util;
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Store of conflict resolutions for Mercurial, which works like rerere of Git.
+ * A conflict is identified by both sides of a conflict hunk, in any order, so the same conflict is recognized
+ * in another file version or merge direction. Resolutions are learned by comparing a file with conflict markers
+ * to the resolved file of the merge commit, and stored as one file per conflict in the given directory.
+ * Contents are handled as ISO-8859-1, which keeps every byte as it is.
+ */
+public class RecordedResolutions {
+
+    private static final String ENCODING = "ISO-8859-1";
+
+    private final FilePath directory;
+
+    public RecordedResolutions(FilePath directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Record the resolutions of the conflicts in a file.
+     * Nothing is recorded when the resolved file can't be matched with the conflicted one,
+     * e.g. because lines outside of the conflicts were changed as well.
+     * @param conflicted : String file content with conflict markers
+     * @param resolved : String file content of the merge commit
+     * @return number of conflicts recorded
+     */
+    public int record(String conflicted, String resolved) throws IOException, InterruptedException {
+        List<Object> parts = parse(conflicted);
+        List<String> resolutions = match(parts, resolved);
+        if (resolutions == null) {
+            return 0;
+        }
+        directory.mkdirs();
+        int i = 0;
+        for (Object part : parts) {
+            if (part instanceof Conflict) {
+                directory.child(((Conflict) part).getKey()).write(resolutions.get(i++), ENCODING);
+            }
+        }
+        return i;
+    }
+
+    /**
+     * Resolve the conflicts in a file with recorded resolutions.
+     * @param conflicted : String file content with conflict markers
+     * @return String resolved file content, or null if not all conflicts have a recorded resolution
+     */
+    public String resolve(String conflicted) throws IOException, InterruptedException {
+        StringBuilder result = new StringBuilder();
+        boolean hasConflicts = false;
+        for (Object part : parse(conflicted)) {
+            if (part instanceof Conflict) {
+                FilePath resolution = directory.child(((Conflict) part).getKey());
+                if (!resolution.exists()) {
+                    return null;
+                }
+                result.append(read(resolution));
+                // last modification time is the last use, for pruning
+                resolution.touch(System.currentTimeMillis());
+                hasConflicts = true;
+            } else {
+                result.append(part);
+            }
+        }
+        return hasConflicts ? result.toString() : null;
+    }
+
+    public static String read(FilePath file) throws IOException, InterruptedException {
+        InputStream stream = file.read();
+        try {
+            return IOUtils.toString(stream, ENCODING);
+        } finally {
+            stream.close();
+        }
+    }
+
+    public static void write(FilePath file, String content) throws IOException, InterruptedException {
+        file.write(content, ENCODING);
+    }
+
+    /**
+     * Split a file into common text and conflicts.
+     * @return List of String common text and Conflict, alternating and starting and ending with common text
+     */
+    static List<Object> parse(String content) {
+        List<Object> parts = new ArrayList<Object>();
+        StringBuilder common = new StringBuilder();
+        StringBuilder ours = null;
+        StringBuilder theirs = null;
+        StringBuilder current = common;
+        for (String line : content.split("(?<=\n)")) {
+            if (line.startsWith("<<<<<<< ") && ours == null) {
+                ours = new StringBuilder();
+                current = ours;
+            } else if (line.startsWith("||||||| ") && ours != null && theirs == null) {
+                // base of a three-way conflict, not part of the conflict identity
+                current = new StringBuilder();
+            } else if (line.startsWith("=======") && ours != null && theirs == null) {
+                theirs = new StringBuilder();
+                current = theirs;
+            } else if (line.startsWith(">>>>>>> ") && theirs != null) {
+                parts.add(common.toString());
+                parts.add(new Conflict(ours.toString(), theirs.toString()));
+                common = new StringBuilder();
+                ours = null;
+                theirs = null;
+                current = common;
+            } else {
+                current.append(line);
+            }
+        }
+        parts.add(common.toString());
+        return parts;
+    }
+
+    /**
+     * Find the resolution of every conflict, as the text between the surrounding common text in the resolved file.
+     * @return List of String resolutions, or null if the common text is not found in order
+     */
+    static List<String> match(List<Object> parts, String resolved) {
+        String first = (String) parts.get(0);
+        String last = (String) parts.get(parts.size() - 1);
+        if (parts.size() < 3 || !resolved.startsWith(first) || !resolved.endsWith(last)
+                || resolved.length() < first.length() + last.length()) {
+            return null;
+        }
+        List<String> resolutions = new ArrayList<String>();
+        int position = first.length();
+        int end = resolved.length() - last.length();
+        for (int i = 2; i < parts.size() - 1; i += 2) {
+            int next = resolved.indexOf((String) parts.get(i), position);
+            if (next < 0 || next > end) {
+                return null;
+            }
+            resolutions.add(resolved.substring(position, next));
+            position = next + ((String) parts.get(i)).length();
+        }
+        if (position > end) {
+            return null;
+        }
+        resolutions.add(resolved.substring(position, end));
+        return resolutions;
+    }
+
+    static class Conflict {
+        private final String ours;
+        private final String theirs;
+
+        Conflict(String ours, String theirs) {
+            this.ours = ours;
+            this.theirs = theirs;
+        }
+
+        String getKey() {
+            // sorted, so the conflict is the same when merging the other way around
+            if (ours.compareTo(theirs) <= 0) {
+                return Util.getDigestOf(ours + "\0" + theirs);
+            }
+            return Util.getDigestOf(theirs + "\0" + ours);
+        }
+    }
+}
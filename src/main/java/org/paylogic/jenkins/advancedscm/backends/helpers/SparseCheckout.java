@@ -0,0 +1,78 @@
+package org.paylogic.jenkins.advancedscm.backends.helpers;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Matches paths against the configured paths of a sparse checkout, which are relative to the repository root
+ * and may use the wildcards * and **. Everything under a configured path is in the sparse checkout.
+ * Used to only widen a sparse checkout when a merge needs files outside of it.
+ */
+public class SparseCheckout {
+
+    /**
+     * Get the paths which are not in the sparse checkout.
+     * @param sparsePaths : List of String configured paths
+     * @param paths : Collection of String paths relative to the repository root
+     * @return List of String paths outside of the sparse checkout
+     */
+    public static List<String> getOutside(List<String> sparsePaths, Collection<String> paths) {
+        List<String> outside = new ArrayList<String>();
+        for (String path : paths) {
+            if (!contains(sparsePaths, path)) {
+                outside.add(path);
+            }
+        }
+        return outside;
+    }
+
+    /**
+     * @param sparsePaths : List of String configured paths
+     * @param path : String path relative to the repository root
+     * @return whether the path is in the sparse checkout
+     */
+    public static boolean contains(List<String> sparsePaths, String path) {
+        path = trim(path);
+        for (String sparsePath : sparsePaths) {
+            sparsePath = trim(sparsePath);
+            if (sparsePath.isEmpty()) {
+                continue;
+            }
+            // the path itself, or anything under it
+            Pattern pattern = Pattern.compile(toRegex(sparsePath) + "(/.*)?");
+            if (pattern.matcher(path).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String trim(String path) {
+        path = path.trim().replace('\\', '/');
+        while (path.startsWith("/")) {
+            path = path.substring(1);
+        }
+        while (path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        return path;
+    }
+
+    private static String toRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*' && i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                regex.append(".*");
+                i++;
+            } else if (c == '*') {
+                regex.append("[^/]*");
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return regex.toString();
+    }
+}
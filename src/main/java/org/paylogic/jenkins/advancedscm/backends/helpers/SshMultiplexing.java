@@ -0,0 +1,227 @@
+package org.paylogic.jenkins.advancedscm.backends.helpers;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.Node;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.remoting.VirtualChannel;
+import jenkins.model.Jenkins;
+import lombok.extern.java.Log;
+import org.paylogic.jenkins.advancedscm.StepContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+
+/**
+ * Lets all network commands of a build share one SSH connection per server, with OpenSSH connection multiplexing.
+ * The first command to a server opens a master connection with a control socket for the build, and the pulls,
+ * pushes and outgoing checks after it reuse that connection instead of doing the TCP and SSH handshakes and
+ * authentication again. Masters are closed when the build completes, or after CONTROL_PERSIST idle seconds.
+ * Control sockets are kept in ~/.ssh/gk, which only the user running the node can write to, as ssh_config(5)
+ * asks for. Only used on Unix nodes with an OpenSSH client, version 6.7 or newer for the %C token of the control path.
+ */
+@Log
+public class SshMultiplexing {
+
+    public static boolean ENABLED = !Boolean.getBoolean(SshMultiplexing.class.getName() + ".disabled");
+    public static int CONTROL_PERSIST = Integer.getInteger(SshMultiplexing.class.getName() + ".controlPersist", 120); // seconds
+
+    /**
+     * Directory of the control sockets in ~/.ssh, short as unix socket paths are limited to about 100 characters.
+     */
+    private static final String DIRECTORY = "gk";
+
+    /**
+     * State per build.
+     */
+    private static final Map<String, Build> BUILDS = new HashMap<String, Build>();
+
+    private static class Build {
+        /**
+         * Control socket directory per name of the nodes the build ran network commands on.
+         */
+        private final Map<String, String> directories = new HashMap<String, String>();
+
+        /**
+         * Configured ssh commands which were looked up, per repository.
+         */
+        private final Map<String, String> settings = new HashMap<String, String>();
+    }
+
+    /**
+     * @param context : StepContext of the build
+     * @return whether connections can be shared, so there's no need to look up the configured ssh command otherwise
+     */
+    public static boolean isUsable(StepContext context) {
+        return ENABLED && context.getRun() != null && context.getNode() != null && context.getLauncher().isUnix();
+    }
+
+    /**
+     * Get a setting which was looked up before during the build, so every manager doesn't start a process for it.
+     * @param context : StepContext of the build
+     * @param key : String key of the setting, e.g. the tool and repository
+     * @return String value, or null when it was not looked up yet
+     */
+    public static String getSetting(StepContext context, String key) {
+        synchronized (BUILDS) {
+            Build build = BUILDS.get(getOwner(context.getRun()));
+            return build == null ? null : build.settings.get(key);
+        }
+    }
+
+    /**
+     * Remember a setting which was looked up, until the build completes.
+     */
+    public static void setSetting(StepContext context, String key, String value) {
+        synchronized (BUILDS) {
+            getBuild(getOwner(context.getRun())).settings.put(key, value);
+        }
+    }
+
+    private static Build getBuild(String owner) {
+        Build build = BUILDS.get(owner);
+        if (build == null) {
+            build = new Build();
+            BUILDS.put(owner, build);
+        }
+        return build;
+    }
+
+    /**
+     * Get the ssh command which multiplexes the connections of the build of given context.
+     * @param context : StepContext of the build
+     * @param sshCommand : String ssh command configured for the repository, null for plain ssh
+     * @return String ssh command with the multiplexing options, or null when multiplexing can't be used
+     */
+    public static String getSshCommand(StepContext context, String sshCommand) throws InterruptedException {
+        if (sshCommand == null || sshCommand.trim().isEmpty()) {
+            sshCommand = "ssh";
+        }
+        if (!isUsable(context) || !isOpenSsh(sshCommand)) {
+            return null;
+        }
+        String owner = getOwner(context.getRun());
+        String name = context.getNode().getNodeName();
+        String directory;
+        synchronized (BUILDS) {
+            directory = getBuild(owner).directories.get(name);
+        }
+        if (directory == null) {
+            FilePath root = context.getNode().getRootPath();
+            try {
+                if (root == null) {
+                    return null;
+                }
+                directory = root.act(new PrivateDirectory());
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Could not create the SSH control socket directory on " + name + ".", e);
+                return null;
+            }
+            synchronized (BUILDS) {
+                getBuild(owner).directories.put(name, directory);
+            }
+        }
+        return addOptions(sshCommand, directory + "/" + getSocketPrefix(owner) + "%C");
+    }
+
+    static String addOptions(String sshCommand, String controlPath) {
+        return sshCommand.trim() + " -o ControlMaster=auto -o ControlPath=" + controlPath
+                + " -o ControlPersist=" + CONTROL_PERSIST;
+    }
+
+    /**
+     * Options are only added to the OpenSSH client, other programs like plink don't know them.
+     */
+    static boolean isOpenSsh(String sshCommand) {
+        String program = sshCommand.trim().split("\\s+")[0].replace("\"", "").replace("'", "");
+        return program.equals("ssh") || program.endsWith("/ssh");
+    }
+
+    /**
+     * Control paths have to stay short, as unix socket paths are limited to about 100 characters.
+     */
+    static String getSocketPrefix(String owner) {
+        return Util.getDigestOf(owner).substring(0, 12) + "-";
+    }
+
+    private static String getOwner(Run<?, ?> run) {
+        return run.getParent().getFullName() + "#" + run.getNumber();
+    }
+
+    /**
+     * Creates the control socket directory in ~/.ssh on the node, accessible by its user only.
+     */
+    private static class PrivateDirectory implements FilePath.FileCallable<String> {
+        private static final long serialVersionUID = 1L;
+
+        public String invoke(File f, VirtualChannel channel) throws IOException {
+            File directory = new File(new File(System.getProperty("user.home"), ".ssh"), DIRECTORY);
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Could not create " + directory + ".");
+            }
+            // 0700, so other users can't create or replace sockets in it
+            if (!directory.setReadable(false, false) || !directory.setWritable(false, false)
+                    || !directory.setExecutable(false, false) || !directory.setReadable(true, true)
+                    || !directory.setWritable(true, true) || !directory.setExecutable(true, true)) {
+                throw new IOException("Could not restrict the permissions of " + directory + ".");
+            }
+            return directory.getAbsolutePath();
+        }
+    }
+
+    /**
+     * Close the master connections of a build on all nodes it ran network commands on.
+     * Failures are only logged, idle masters exit by themselves.
+     */
+    static void close(Run<?, ?> run, TaskListener listener) {
+        String owner = getOwner(run);
+        Build build;
+        synchronized (BUILDS) {
+            build = BUILDS.remove(owner);
+        }
+        if (build == null) {
+            return;
+        }
+        for (Map.Entry<String, String> entry : build.directories.entrySet()) {
+            String name = entry.getKey();
+            Node node = name.isEmpty() ? Jenkins.getInstance() : Jenkins.getInstance().getNode(name);
+            FilePath directory = node == null ? null : node.createPath(entry.getValue());
+            if (directory == null) {
+                continue;
+            }
+            try {
+                for (FilePath socket : directory.list()) {
+                    if (socket.getName().startsWith(getSocketPrefix(owner))) {
+                        // the host is not used when the control path is given
+                        node.createLauncher(listener).launch()
+                                .cmds("ssh", "-o", "ControlPath=" + socket.getRemote(), "-O", "exit", "localhost")
+                                .stdout(listener).join();
+                    }
+                }
+            } catch (Exception e) {
+                log.log(Level.WARNING, "Closing SSH connections of " + owner + " on " + name + " failed.", e);
+            }
+        }
+    }
+
+    /**
+     * Closes the master connections when the build completes.
+     */
+    @Extension
+    public static class CloseOnCompletion extends RunListener<Run> {
+        public CloseOnCompletion() {
+            super(Run.class);
+        }
+
+        @Override
+        public void onCompleted(Run run, TaskListener listener) {
+            close(run, listener);
+        }
+    }
+}
@@ -0,0 +1,335 @@
+package org.paylogic.jenkins.gatekeeper;
+
+import hudson.Extension;
+import hudson.model.Project;
+import hudson.model.Queue;
+import hudson.model.queue.QueueSorter;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import lombok.extern.java.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+
+/**
+ * Matrix of the queued Gatekeeper merges into the same target branch which conflict with each other.
+ * Every pair of feature branches is merged into the target branch one after the other in the precheck repository,
+ * the pairs are checked in parallel. Outcomes are kept per target and feature head, so only pairs with new
+ * commits are checked again. The queue is sorted with the matrix: merges which conflict with no other merge
+ * go first, and of merges which conflict with each other the one with the fewest conflicts goes first,
+ * so as few builds as possible fail because of a merge which went before them.
+ */
+@Log
+public class ConflictMatrix {
+
+    public static int MAX_PARALLEL_CHECKS = Integer.getInteger(ConflictMatrix.class.getName() + ".maxParallelChecks", 4);
+
+    /**
+     * Merges per target branch which are checked against each other, as the number of pairs grows quadratically.
+     */
+    public static int MAX_FEATURES = Integer.getInteger(ConflictMatrix.class.getName() + ".maxFeatures", 20);
+
+    private static final ConflictMatrix INSTANCE = new ConflictMatrix();
+
+    /**
+     * Conflicting pairs of merges per group of merges into the same target branch.
+     */
+    private final Map<String, Set<String>> conflicts = new HashMap<String, Set<String>>();
+
+    /**
+     * Outcome per pair of feature heads and target head, per group.
+     */
+    private final Map<String, Map<String, Boolean>> outcomes = new HashMap<String, Map<String, Boolean>>();
+
+    /**
+     * Get the matrix shared by all builds on this Jenkins master.
+     * @return ConflictMatrix instance
+     */
+    public static ConflictMatrix getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Get the group of merges a queued build belongs to: merges of the same job into the same target branch.
+     * @param item : Queue.Item of the build
+     * @return String key of the group, or null if the build does not ask for a precheck
+     */
+    static String getGroup(Queue.Item item) {
+        if (MergeabilityPrecheck.getMerge(item) == null) {
+            return null;
+        }
+        return ((Project<?, ?>) item.task).getFullName() + "#" + FeaturePrefetcher.getParameter(item, "REPO_SUBDIR")
+                + "#" + FeaturePrefetcher.getParameter(item, "REPO_URL")
+                + "#" + FeaturePrefetcher.getParameter(item, "TARGET_BRANCH");
+    }
+
+    /**
+     * Get the key of a pair, which is the same in both orders.
+     */
+    static String pair(String first, String second) {
+        return first.compareTo(second) <= 0 ? first + "\n" + second : second + "\n" + first;
+    }
+
+    /**
+     * Record the conflicting pairs of a group.
+     * @param group : String key of the group
+     * @param pairs : Set of String pair keys of the merges which conflict
+     */
+    public synchronized void record(String group, Set<String> pairs) {
+        conflicts.put(group, new HashSet<String>(pairs));
+    }
+
+    /**
+     * @return whether two merges of a group are known to conflict with each other
+     */
+    public synchronized boolean conflict(String group, String first, String second) {
+        Set<String> pairs = conflicts.get(group);
+        return pairs != null && pairs.contains(pair(first, second));
+    }
+
+    /**
+     * @return Set of String pair keys of the merges of a group which conflict, empty when not checked
+     */
+    public synchronized Set<String> getConflicts(String group) {
+        Set<String> pairs = conflicts.get(group);
+        return pairs == null ? new HashSet<String>() : new HashSet<String>(pairs);
+    }
+
+    /**
+     * Forget all groups but given ones, e.g. because their builds left the queue.
+     */
+    public synchronized void retain(Set<String> groups) {
+        conflicts.keySet().retainAll(groups);
+        outcomes.keySet().retainAll(groups);
+    }
+
+    private synchronized Map<String, Boolean> getOutcomes(String group) {
+        Map<String, Boolean> known = outcomes.get(group);
+        return known == null ? new HashMap<String, Boolean>() : new HashMap<String, Boolean>(known);
+    }
+
+    private synchronized void setOutcomes(String group, Map<String, Boolean> known) {
+        outcomes.put(group, known);
+    }
+
+    /**
+     * Check the merges of a group against each other, and record the conflicting pairs.
+     * Failures are only logged, builds are never held back or reordered because of a failing check.
+     * @param group : String key of the group
+     * @param items : List of Queue.Item of the builds of the group, which merge on their own, in queue order
+     * @param updated : Map of the branches per repository updated during the pass over the queue
+     */
+    static void check(String group, List<Queue.Item> items, Map<String, List<String>> updated) {
+        if (items.size() < 2) {
+            getInstance().record(group, new HashSet<String>());
+            return;
+        }
+        if (items.size() > MAX_FEATURES) {
+            items = items.subList(0, MAX_FEATURES);
+        }
+        try {
+            PrecheckRepository repository = MergeabilityPrecheck.getRepository(items.get(0));
+            if (repository == null) {
+                return;
+            }
+            long start = System.currentTimeMillis();
+            Set<String> pairs;
+            synchronized (MergeabilityPrecheck.getLock(repository)) {
+                MergeabilityPrecheck.update(repository, updated);
+                String targetBranch = FeaturePrefetcher.getParameter(items.get(0), "TARGET_BRANCH");
+                Map<String, String> features = new LinkedHashMap<String, String>();
+                for (Queue.Item item : items) {
+                    features.put(MergeabilityPrecheck.getMerge(item), repository.fetchFeature(
+                            FeaturePrefetcher.getParameter(item, "REPO_URL"),
+                            FeaturePrefetcher.getParameter(item, "FEATURE_BRANCH")));
+                }
+                Map<String, Boolean> known = getInstance().getOutcomes(group);
+                pairs = compute(repository, targetBranch, features, known);
+                getInstance().setOutcomes(group, known);
+            }
+            getInstance().record(group, pairs);
+            log.log(Level.INFO, "Checked " + items.size() + " merges of " + group + " against each other in "
+                    + (System.currentTimeMillis() - start) + " ms, " + pairs.size() + " pairs conflict.");
+        } catch (Exception e) {
+            log.log(Level.WARNING, "Conflict matrix for " + group + " failed.", e);
+        }
+    }
+
+    /**
+     * Check every pair of features in parallel.
+     * @param repository : PrecheckRepository with the target branch and features
+     * @param targetBranch : String name of the target branch
+     * @param features : Map of the head of the feature branch per merge
+     * @param known : Map of outcomes of earlier checks, which is updated to hold the outcomes of these features
+     * @return Set of String pair keys of the merges which conflict
+     */
+    static Set<String> compute(final PrecheckRepository repository, String targetBranch,
+                               Map<String, String> features, Map<String, Boolean> known)
+            throws Exception {
+        // resolved once, so every pair is merged into the same revision
+        final String target = repository.getHead(targetBranch);
+        List<String> merges = new ArrayList<String>(features.keySet());
+        Map<String, Boolean> outcomes = new HashMap<String, Boolean>();
+        Map<String, Future<Boolean>> running = new HashMap<String, Future<Boolean>>();
+        Map<String, String> keys = new HashMap<String, String>();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, MAX_PARALLEL_CHECKS),
+                new NamingThreadFactory(new DaemonThreadFactory(), "Gatekeeper conflict matrix"));
+        try {
+            for (int i = 0; i < merges.size(); i++) {
+                for (int j = i + 1; j < merges.size(); j++) {
+                    final String first = features.get(merges.get(i));
+                    final String second = features.get(merges.get(j));
+                    String key = target + "\n" + pair(first, second);
+                    keys.put(pair(merges.get(i), merges.get(j)), key);
+                    if (known.containsKey(key)) {
+                        outcomes.put(key, known.get(key));
+                    } else if (!running.containsKey(key)) {
+                        running.put(key, executor.submit(new Callable<Boolean>() {
+                            public Boolean call() throws Exception {
+                                return repository.conflicts(target, first, second);
+                            }
+                        }));
+                    }
+                }
+            }
+            for (Map.Entry<String, Future<Boolean>> check : running.entrySet()) {
+                try {
+                    outcomes.put(check.getKey(), check.getValue().get());
+                } catch (ExecutionException e) {
+                    // not known to conflict, and checked again next time
+                    log.log(Level.FINE, "Checking a pair of merges failed.", e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        known.clear();
+        known.putAll(outcomes);
+        Set<String> pairs = new HashSet<String>();
+        for (Map.Entry<String, String> pair : keys.entrySet()) {
+            if (Boolean.TRUE.equals(outcomes.get(pair.getValue()))) {
+                pairs.add(pair.getKey());
+            }
+        }
+        return pairs;
+    }
+
+    /**
+     * Order merges so conflicts fail as few of them as possible. Merges are taken in rounds of merges which
+     * don't conflict with each other, picking merges with the fewest conflicts first, and ties in given order.
+     * Within a round merges keep their given order.
+     * @param merges : List of String keys of merges, in queue order
+     * @param pairs : Set of String pair keys of the merges which conflict
+     * @return List of String keys of the merges in the order to merge them
+     */
+    static List<String> order(List<String> merges, Set<String> pairs) {
+        Map<String, String> keys = new HashMap<String, String>();
+        for (String merge : merges) {
+            keys.put(merge, merge);
+        }
+        return order(merges, keys, pairs);
+    }
+
+    /**
+     * Order queued builds by the merges they do, see {@link #order(List, Set)}.
+     * Builds can do the same merge, e.g. with other parameters which don't change the merge.
+     * @param ids : List of String ids of the queued builds, in queue order
+     * @param merges : Map of the String key of the merge per id
+     * @param pairs : Set of String pair keys of the merges which conflict
+     * @return List of String ids in the order to merge them
+     */
+    static List<String> order(List<String> ids, Map<String, String> merges, Set<String> pairs) {
+        List<String> remaining = new ArrayList<String>(ids);
+        List<String> result = new ArrayList<String>();
+        while (!remaining.isEmpty()) {
+            final Map<String, Integer> counts = new HashMap<String, Integer>();
+            for (String id : remaining) {
+                int count = 0;
+                for (String other : remaining) {
+                    if (pairs.contains(pair(merges.get(id), merges.get(other))) && !id.equals(other)) {
+                        count++;
+                    }
+                }
+                counts.put(id, count);
+            }
+            List<String> candidates = new ArrayList<String>(remaining);
+            // stable, so ties keep the given order
+            Collections.sort(candidates, new Comparator<String>() {
+                public int compare(String first, String second) {
+                    return counts.get(first).compareTo(counts.get(second));
+                }
+            });
+            Set<String> round = new HashSet<String>();
+            for (String candidate : candidates) {
+                boolean independent = true;
+                for (String taken : round) {
+                    if (pairs.contains(pair(merges.get(candidate), merges.get(taken)))) {
+                        independent = false;
+                        break;
+                    }
+                }
+                if (independent) {
+                    round.add(candidate);
+                }
+            }
+            for (String id : new ArrayList<String>(remaining)) {
+                if (round.contains(id)) {
+                    result.add(id);
+                    remaining.remove(id);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Sorts queued Gatekeeper builds of the same group by {@link #order}, within the places they take in the queue,
+     * so other builds keep their place. It has a low ordinal, so a queue sorter of another plugin is used instead.
+     */
+    @Extension(ordinal = -100)
+    public static class Sorter extends QueueSorter {
+        @Override
+        public void sortBuildableItems(List<Queue.BuildableItem> items) {
+            Map<String, List<Integer>> places = new LinkedHashMap<String, List<Integer>>();
+            Map<String, Queue.BuildableItem> byId = new HashMap<String, Queue.BuildableItem>();
+            Map<String, String> merges = new HashMap<String, String>();
+            for (int i = 0; i < items.size(); i++) {
+                String group = getGroup(items.get(i));
+                if (group == null || getInstance().getConflicts(group).isEmpty()) {
+                    continue;
+                }
+                if (!places.containsKey(group)) {
+                    places.put(group, new ArrayList<Integer>());
+                }
+                places.get(group).add(i);
+                // builds with other parameters can do the same merge, so they are told apart by id
+                String id = String.valueOf(items.get(i).getId());
+                byId.put(id, items.get(i));
+                merges.put(id, MergeabilityPrecheck.getMerge(items.get(i)));
+            }
+            for (Map.Entry<String, List<Integer>> group : places.entrySet()) {
+                List<String> ids = new ArrayList<String>();
+                for (int place : group.getValue()) {
+                    ids.add(String.valueOf(items.get(place).getId()));
+                }
+                List<String> ordered = order(ids, merges, getInstance().getConflicts(group.getKey()));
+                for (int i = 0; i < ordered.size(); i++) {
+                    items.set(group.getValue().get(i), byId.get(ordered.get(i)));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package org.paylogic.jenkins.gatekeeper;
+
+import hudson.model.AbstractProject;
+import hudson.model.Cause;
+import hudson.model.ParameterDefinition;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
+import hudson.model.ParametersDefinitionProperty;
+import hudson.model.StringParameterValue;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+import lombok.extern.java.Log;
+import org.apache.commons.lang.StringUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Triggers downstream builds of pushed branches, coalescing triggers per job and branch.
+ * A trigger waits for a quiet period, which starts again with every next push of the same branch,
+ * so a burst of upmerges starts one build per branch instead of one per push.
+ * A branch which keeps being pushed is still built after MAX_DELAY_SECONDS.
+ */
+@Log
+public class DownstreamTrigger {
+
+    public static long MAX_DELAY_SECONDS = Long.getLong(DownstreamTrigger.class.getName() + ".maxDelaySeconds", 10 * 60);
+
+    private static final DownstreamTrigger INSTANCE = new DownstreamTrigger();
+
+    /**
+     * Triggers which are waiting for their quiet period, per job and branch.
+     */
+    private final Map<String, Pending> pending = new HashMap<String, Pending>();
+
+    /**
+     * Get the triggers shared by all builds on this Jenkins master.
+     * @return DownstreamTrigger instance
+     */
+    public static DownstreamTrigger getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Trigger a build of a pushed branch, after the quiet period.
+     * @param job : String full name of the downstream job
+     * @param parameter : String name of the parameter to pass the branch with
+     * @param branch : String name of the pushed branch
+     * @param quietPeriod : seconds to wait for more pushes of the branch
+     * @param upstream : String name of the build which pushed the branch
+     */
+    public void trigger(String job, String parameter, String branch, int quietPeriod, String upstream) {
+        final String key = getKey(job, parameter, branch);
+        long now = System.currentTimeMillis();
+        long due = add(key, job, parameter, branch, upstream, quietPeriod, now);
+        Timer.get().schedule(new Runnable() {
+            public void run() {
+                fire(key);
+            }
+        }, due - now, TimeUnit.MILLISECONDS);
+    }
+
+    static String getKey(String job, String parameter, String branch) {
+        return job + "#" + parameter + "#" + branch;
+    }
+
+    /**
+     * Add a push to the pending trigger of its job and branch.
+     * @return time in milliseconds the trigger is due
+     */
+    synchronized long add(String key, String job, String parameter, String branch, String upstream,
+                          int quietPeriod, long now) {
+        Pending trigger = pending.get(key);
+        if (trigger == null) {
+            trigger = new Pending(job, parameter, branch, now);
+            pending.put(key, trigger);
+        }
+        trigger.upstreams.add(upstream);
+        trigger.due = Math.min(now + TimeUnit.SECONDS.toMillis(Math.max(0, quietPeriod)),
+                trigger.first + TimeUnit.SECONDS.toMillis(MAX_DELAY_SECONDS));
+        return trigger.due;
+    }
+
+    /**
+     * Take the pending trigger of a job and branch, if it's due.
+     * @return Pending trigger, or null when it's not due yet or was fired already
+     */
+    synchronized Pending take(String key, long now) {
+        Pending trigger = pending.get(key);
+        if (trigger == null || trigger.due > now) {
+            return null;
+        }
+        pending.remove(key);
+        return trigger;
+    }
+
+    private void fire(String key) {
+        Pending trigger = take(key, System.currentTimeMillis());
+        if (trigger == null) {
+            // a later push moved the trigger, or it was fired by another timer
+            return;
+        }
+        AbstractProject<?, ?> project = Jenkins.getInstance().getItemByFullName(trigger.job, AbstractProject.class);
+        if (project == null) {
+            log.log(Level.WARNING, "Downstream job " + trigger.job + " of " + trigger.branch + " does not exist.");
+            return;
+        }
+        // a build of the branch which is still queued takes this one in
+        project.scheduleBuild2(0, new PushCause(trigger.branch, new ArrayList<String>(trigger.upstreams)),
+                new ParametersAction(getParameters(project, trigger.parameter, trigger.branch)));
+        log.log(Level.INFO, "Triggered " + trigger.job + " for " + trigger.branch + " after "
+                + trigger.upstreams.size() + " pushes.");
+    }
+
+    /**
+     * Get the parameters of a downstream build: the branch, and the defaults of all other parameters of the job,
+     * as the build only gets the parameters it's scheduled with.
+     * @param project : AbstractProject of the downstream job
+     * @param parameter : String name of the parameter which gets the branch
+     * @param branch : String name of the pushed branch
+     * @return List of ParameterValue
+     */
+    static List<ParameterValue> getParameters(AbstractProject<?, ?> project, String parameter, String branch) {
+        List<ParameterValue> parameters = new ArrayList<ParameterValue>();
+        parameters.add(new StringParameterValue(parameter, branch));
+        ParametersDefinitionProperty property = project.getProperty(ParametersDefinitionProperty.class);
+        if (property == null) {
+            return parameters;
+        }
+        for (ParameterDefinition definition : property.getParameterDefinitions()) {
+            ParameterValue value = definition.getDefaultParameterValue();
+            if (!definition.getName().equals(parameter) && value != null) {
+                parameters.add(value);
+            }
+        }
+        return parameters;
+    }
+
+    static class Pending {
+        private final String job;
+        private final String parameter;
+        private final String branch;
+        private final long first;
+        private final Set<String> upstreams = new LinkedHashSet<String>();
+        private long due;
+
+        Pending(String job, String parameter, String branch, long first) {
+            this.job = job;
+            this.parameter = parameter;
+            this.branch = branch;
+            this.first = first;
+        }
+
+        Set<String> getUpstreams() {
+            return upstreams;
+        }
+    }
+
+    /**
+     * Cause of a downstream build, with all builds which pushed the branch since the last trigger.
+     */
+    public static class PushCause extends Cause {
+        private final String branch;
+        private final List<String> upstreams;
+
+        public PushCause(String branch, List<String> upstreams) {
+            this.branch = branch;
+            this.upstreams = upstreams;
+        }
+
+        public String getBranch() {
+            return branch;
+        }
+
+        public List<String> getUpstreams() {
+            return upstreams;
+        }
+
+        @Override
+        public String getShortDescription() {
+            return "Gatekeeper pushed " + branch + " in " + StringUtils.join(upstreams, ", ");
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package org.paylogic.jenkins.gatekeeper;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.AbstractProject;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
+import hudson.model.Project;
+import hudson.model.Queue;
+import hudson.model.StringParameterValue;
+import hudson.model.TaskListener;
+import hudson.model.TopLevelItem;
+import hudson.model.queue.QueueListener;
+import hudson.plugins.git.GitSCM;
+import hudson.plugins.mercurial.MercurialSCM;
+import hudson.scm.SCM;
+import hudson.util.ArgumentListBuilder;
+import hudson.util.LogTaskListener;
+import lombok.extern.java.Log;
+import org.jenkinsci.plugins.multiplescms.MultiSCM;
+import org.paylogic.jenkins.advancedscm.StepContext;
+import org.paylogic.jenkins.advancedscm.backends.GitBackend;
+import org.paylogic.jenkins.advancedscm.backends.MercurialBackend;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Fetches the feature branch of queued Gatekeeper builds into the workspace on the node the build will most
+ * likely run on, which is the node of the last build. When the build starts, pulling the feature branch then
+ * finds everything local, so the time spent waiting in the queue is used for the fetch.
+ * Fetched changes are only stored, the working copy is left alone, so this is safe while a build is running.
+ */
+@Log
+public class FeaturePrefetcher {
+
+    public static int PREFETCH_TIMEOUT = Integer.getInteger(FeaturePrefetcher.class.getName() + ".timeout", 30 * 60); // seconds
+
+    /**
+     * Prefetch the feature branch of given queue item, if it's a Gatekeeper build which asks for it.
+     * @param item : Queue.Item which just entered the queue
+     */
+    public static void prefetch(Queue.Item item) {
+        if (!(item.task instanceof Project) || !(item.task instanceof TopLevelItem)) {
+            return;
+        }
+        Project<?, ?> project = (Project<?, ?>) item.task;
+        GatekeeperMerge merge = project.getBuildersList().get(GatekeeperMerge.class);
+        if (merge == null || !merge.prefetch) {
+            return;
+        }
+        String featureBranch = getParameter(item, "FEATURE_BRANCH");
+        String okRevision = getParameter(item, "APPROVED_REVISION");
+        if (featureBranch.isEmpty() && okRevision.isEmpty()) {
+            return;
+        }
+        String subdir = getParameter(item, "REPO_SUBDIR");
+        SCM scm = getScm(project, subdir);
+        Node node = project.getLastBuiltOn();
+        if (scm == null || node == null) {
+            return;
+        }
+        Computer computer = node.toComputer();
+        if (computer == null || computer.isOffline()) {
+            return;
+        }
+
+        TaskListener listener = new LogTaskListener(log, Level.FINE);
+        try {
+            FilePath workspace = node.getWorkspaceFor((TopLevelItem) project);
+            if (workspace == null) {
+                return;
+            }
+            FilePath repository = subdir.isEmpty() ? workspace : workspace.child(subdir);
+            if (!repository.exists()) {
+                // cold workspace, the build has to clone anyway
+                return;
+            }
+            String remote = getParameter(item, "REPO_URL");
+            Launcher launcher = node.createLauncher(listener);
+            long start = System.currentTimeMillis();
+            String outcome;
+            if (scm instanceof MercurialSCM) {
+                // through the backend, so changesets of a fork are made draft like when the build pulls them
+                new MercurialBackend(new StepContext(null, workspace, node, launcher, listener, new EnvVars(), scm),
+                        (MercurialSCM) scm).pull(remote.isEmpty() ? "default" : remote,
+                        okRevision.isEmpty() ? featureBranch : okRevision);
+                outcome = ".";
+            } else if (scm instanceof GitSCM && !featureBranch.isEmpty()) {
+                // a separate ref namespace, so refs and config used by a running build are not touched
+                ArgumentListBuilder args = new ArgumentListBuilder(((GitSCM) scm).getGitExe(node, listener));
+                args.add("fetch", "--no-tags", remote.isEmpty() ? "origin" : remote,
+                        "+refs/heads/" + featureBranch + ":" + GitBackend.PREFETCH_REFS + featureBranch);
+                int exitCode = launcher.launch().cmds(args).pwd(repository).stdout(listener)
+                        .start().joinWithTimeout(PREFETCH_TIMEOUT, TimeUnit.SECONDS, listener);
+                outcome = ", exit code " + exitCode + ".";
+            } else {
+                return;
+            }
+            log.log(Level.INFO, "Prefetched " + (okRevision.isEmpty() ? featureBranch : okRevision)
+                    + " for " + item.task.getFullDisplayName() + " on " + node.getDisplayName()
+                    + " in " + (System.currentTimeMillis() - start) + " ms" + outcome);
+        } catch (Exception e) {
+            log.log(Level.WARNING, "Prefetch for " + item.task.getFullDisplayName() + " failed.", e);
+        }
+    }
+
+    static String getParameter(Queue.Item item, String name) {
+        ParametersAction parameters = item.getAction(ParametersAction.class);
+        if (parameters == null) {
+            return "";
+        }
+        ParameterValue value = parameters.getParameter(name);
+        if (value instanceof StringParameterValue && ((StringParameterValue) value).value != null) {
+            return ((StringParameterValue) value).value;
+        }
+        return "";
+    }
+
+    /**
+     * Get the SCM of the repository the build will merge in, like SCMManagerFactory does.
+     */
+    static SCM getScm(AbstractProject<?, ?> project, String subdir) {
+        SCM scm = project.getScm();
+        if (!(scm instanceof MultiSCM)) {
+            return scm;
+        }
+        for (SCM s : ((MultiSCM) scm).getConfiguredSCMs()) {
+            if (s instanceof MercurialSCM && subdir.equals(((MercurialSCM) s).getSubdir())) {
+                return s;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Starts prefetching when a build enters the queue, without blocking the queue.
+     */
+    @Extension
+    public static class QueueListenerImpl extends QueueListener {
+        @Override
+        public void onEnterWaiting(final Queue.WaitingItem item) {
+            Computer.threadPoolForRemoting.submit(new Runnable() {
+                public void run() {
+                    prefetch(item);
+                }
+            });
+        }
+    }
+}
@@ -2,10 +2,13 @@ package org.paylogic.jenkins.gatekeeper;
 
 import hudson.EnvVars;
 import hudson.Extension;
+import hudson.FilePath;
 import hudson.Launcher;
+import hudson.Util;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.BuildListener;
+import hudson.model.TaskListener;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
 import hudson.util.FormValidation;
@@ -13,10 +16,13 @@ import lombok.extern.java.Log;
 import org.apache.commons.lang.StringUtils;
 import org.jenkinsci.plugins.envinject.EnvInjectBuilderContributionAction;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 import org.paylogic.jenkins.LogMessageSearcher;
 import org.paylogic.jenkins.advancedscm.AdvancedSCMManager;
+import org.paylogic.jenkins.advancedscm.AgentSequence;
 import org.paylogic.jenkins.advancedscm.SCMManagerFactory;
+import org.paylogic.jenkins.advancedscm.StepContext;
 import org.paylogic.jenkins.advancedscm.exceptions.AdvancedSCMException;
 import org.paylogic.jenkins.advancedscm.exceptions.MergeConflictException;
 import org.paylogic.jenkins.upmerge.releasebranch.ReleaseBranchImpl;
@@ -28,8 +34,18 @@ import com.github.jknack.handlebars.Context;
 
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 
 
@@ -39,10 +55,67 @@ import java.util.logging.Level;
 @Log
 public class GatekeeperMerge extends Builder {
 
+    public static int MAX_PARALLEL_MERGES = Integer.getInteger(GatekeeperMerge.class.getName() + ".maxParallelMerges", 4);
+
     public final String commitUsername;
     public final String releaseFilePath;
     public final String releaseFileContentTemplate;
 
+    /**
+     * Minutes to wait for the merge lock on the target branch, 0 to merge without locking.
+     */
+    public int mergeLockTimeout;
+
+    /**
+     * Paths to check out, one per line, empty to check out the whole tree.
+     */
+    public String sparseCheckoutPaths;
+
+    /**
+     * Paths to keep when cleaning the workspace, one per line, empty to remove all untracked and ignored files.
+     */
+    public String keepCleanPaths;
+
+    /**
+     * Fetch the feature branch without file contents and history shared with the target branch.
+     */
+    public boolean partialFetch;
+
+    /**
+     * Run the SCM operations on the agent as one callable, instead of one remote call per command.
+     */
+    public boolean runOnAgent;
+
+    /**
+     * Merge the feature branch in all repositories of a MultiSCM build at once, instead of only in REPO_SUBDIR.
+     */
+    public boolean mergeAllRepositories;
+
+    /**
+     * Replay merges of the same revisions with the same settings from the merge result cache.
+     */
+    public boolean cacheMergeResults;
+
+    /**
+     * Fetch the feature branch into the workspace of the last build while the build waits in the queue.
+     */
+    public boolean prefetch;
+
+    /**
+     * Seconds a queued build waits for a node with a warm workspace, 0 to run on any node right away.
+     */
+    public int workspaceAffinityWait;
+
+    /**
+     * Maintain the repository in the background after the build completed.
+     */
+    public boolean maintainWorkspace;
+
+    /**
+     * Check in the background whether queued builds will merge, and keep builds which will conflict queued.
+     */
+    public boolean precheckMergeability;
+
     @DataBoundConstructor
     public GatekeeperMerge(String commitUsername, String releaseFilePath, String releaseFileContentTemplate) {
         this.commitUsername = commitUsername;
@@ -50,6 +123,61 @@ public class GatekeeperMerge extends Builder {
         this.releaseFileContentTemplate = releaseFileContentTemplate;
     }
 
+    @DataBoundSetter
+    public void setMergeLockTimeout(int mergeLockTimeout) {
+        this.mergeLockTimeout = mergeLockTimeout;
+    }
+
+    @DataBoundSetter
+    public void setSparseCheckoutPaths(String sparseCheckoutPaths) {
+        this.sparseCheckoutPaths = sparseCheckoutPaths;
+    }
+
+    @DataBoundSetter
+    public void setKeepCleanPaths(String keepCleanPaths) {
+        this.keepCleanPaths = keepCleanPaths;
+    }
+
+    @DataBoundSetter
+    public void setPartialFetch(boolean partialFetch) {
+        this.partialFetch = partialFetch;
+    }
+
+    @DataBoundSetter
+    public void setRunOnAgent(boolean runOnAgent) {
+        this.runOnAgent = runOnAgent;
+    }
+
+    @DataBoundSetter
+    public void setMergeAllRepositories(boolean mergeAllRepositories) {
+        this.mergeAllRepositories = mergeAllRepositories;
+    }
+
+    @DataBoundSetter
+    public void setCacheMergeResults(boolean cacheMergeResults) {
+        this.cacheMergeResults = cacheMergeResults;
+    }
+
+    @DataBoundSetter
+    public void setPrefetch(boolean prefetch) {
+        this.prefetch = prefetch;
+    }
+
+    @DataBoundSetter
+    public void setWorkspaceAffinityWait(int workspaceAffinityWait) {
+        this.workspaceAffinityWait = workspaceAffinityWait;
+    }
+
+    @DataBoundSetter
+    public void setMaintainWorkspace(boolean maintainWorkspace) {
+        this.maintainWorkspace = maintainWorkspace;
+    }
+
+    @DataBoundSetter
+    public void setPrecheckMergeability(boolean precheckMergeability) {
+        this.precheckMergeability = precheckMergeability;
+    }
+
     @Override
     public boolean perform(AbstractBuild build, Launcher launcher, BuildListener listener) {
         PrintStream l = listener.getLogger();
@@ -74,8 +202,41 @@ public class GatekeeperMerge extends Builder {
     }
 
     private boolean doPerform(AbstractBuild build, Launcher launcher, BuildListener listener) throws Exception {
+        StepContext context = StepContext.of(build, launcher, listener);
+        MergeResult result = merge(context);
+        if (!result.getRepositoryBranchesToPush().isEmpty()) {
+            // GatekeeperPush pushes every repository with its own branches
+            MergedRepositoriesAction action = new MergedRepositoriesAction();
+            action.getBranchesToPush().putAll(result.getRepositoryBranchesToPush());
+            build.addAction(action);
+        }
+
+        // let later build steps skip testing a tree which was already tested
+        build.addAction(new MergedTreeAction(result.getTreeId(), context.getEnvironment().get("TARGET_BRANCH", "")));
+        String testedBy = TestedTreeIndex.getInstance().getTestedBy(build.getParent().getFullName(), result.getTreeId());
+        if (testedBy != null) {
+            listener.getLogger().append("Merged tree " + result.getTreeId() + " was already tested by " + testedBy + ".\n");
+        }
+
+        // pass branches to push to later build actions
+        Map<String, String> vars = new HashMap<String, String>();
+        vars.put("BRANCHES_TO_PUSH", StringUtils.join(result.getBranchesToPush(), ","));
+        vars.put("MERGED_TREE_ID", result.getTreeId());
+        vars.put("MERGED_TREE_TESTED_BY", testedBy == null ? "" : testedBy);
+        build.addAction(new EnvInjectBuilderContributionAction(vars));
+        return true;
+    }
+
+    /**
+     * Merge the feature branch into the target branch, with the parameters and workspace of given context.
+     * The build is not changed, so this can run as a step of any kind of build, also in another workspace.
+     * @param context : StepContext with FEATURE_BRANCH, TARGET_BRANCH and the other parameters in its environment
+     * @return MergeResult with the branches to push, the merge revision and the merged tree
+     */
+    public MergeResult merge(StepContext context) throws Exception {
         /* Set up enviroment and resolve some variables. */
-        EnvVars envVars = build.getEnvironment(listener);
+        TaskListener listener = context.getListener();
+        EnvVars envVars = context.getEnvironment();
         String featureBranch = envVars.get("FEATURE_BRANCH", "");
         String targetBranch = envVars.get("TARGET_BRANCH", "");
         String featureRepoUrl = envVars.get("REPO_URL", "");
@@ -83,42 +244,251 @@ public class GatekeeperMerge extends Builder {
         int usableCaseId = 0;
 
         String repo_path = envVars.get("REPO_PATH", "");
-        AdvancedSCMManager amm = SCMManagerFactory.getManager(build, launcher, listener);
-        amm.stripLocal();
+        List<String> sparsePaths = new ArrayList<String>();
+        if (sparseCheckoutPaths != null && !sparseCheckoutPaths.trim().isEmpty()) {
+            sparsePaths.addAll(Arrays.asList(sparseCheckoutPaths.trim().split("\\s*\n\\s*")));
+            if (releaseFilePath != null && !releaseFilePath.isEmpty()) {
+                // release file has to be written when a new release branch is created
+                sparsePaths.add(releaseFilePath);
+            }
+        }
+        List<String> keepPaths = new ArrayList<String>();
+        if (keepCleanPaths != null && !keepCleanPaths.trim().isEmpty()) {
+            keepPaths.addAll(Arrays.asList(keepCleanPaths.trim().split("\\s*\n\\s*")));
+        }
 
-        listener.getLogger().append("Ensuring target release branch " + targetBranch + ".\n");
-        ensureReleaseBranch(amm, targetBranch);
+        MergeResult result;
+        if (mergeAllRepositories) {
+            if (!okRevision.isEmpty()) {
+                throw new AdvancedSCMException("Merging all repositories needs FEATURE_BRANCH, " +
+                        "APPROVED_REVISION " + okRevision + " only names a revision in one repository.");
+            }
+            List<AdvancedSCMManager> managers = SCMManagerFactory.getManagers(context);
+            List<MergeSequence> sequences = new ArrayList<MergeSequence>();
+            for (AdvancedSCMManager amm : managers) {
+                // every repository is pulled from its own remote
+                MergeSequence sequence = new MergeSequence(
+                        "", featureBranch, targetBranch, okRevision, commitUsername,
+                        releaseFilePath, renderReleaseFileContent(amm, targetBranch), sparsePaths, partialFetch);
+                sequence.setOptionalSource(true);
+                sequence.setKeepPaths(keepPaths);
+                sequences.add(sequence);
+            }
+            result = mergeRepositories(context, listener, managers, sequences, targetBranch);
+        } else {
+            AdvancedSCMManager amm = SCMManagerFactory.getManager(context);
+            MergeSequence sequence = new MergeSequence(
+                    featureRepoUrl, featureBranch, targetBranch, okRevision, commitUsername,
+                    releaseFilePath, renderReleaseFileContent(amm, targetBranch), sparsePaths, partialFetch);
+            sequence.setKeepPaths(keepPaths);
 
-        /* Actual Gatekeepering logic. Seperated to work differently when Rietveld support is active. */
-        boolean runNormalMerge = okRevision.isEmpty();
-        if (!runNormalMerge) { // Use Rietveld support.
+            boolean prepared = false;
+            if (mergeLockTimeout > 0) {
+                // only the merge itself is done while holding the merge lock
+                runPhases(context, amm, listener, sequence, true, false, false, null);
+                acquireMergeLock(context, amm, listener, targetBranch);
+                sequence.setRefreshTarget(true);
+                prepared = true;
+            }
+            result = mergeRepository(context, amm, listener, sequence, prepared);
+        }
+        return result;
+    }
 
-            listener.getLogger().append("Trying to merge with revision " + okRevision + ".\n");
-            listener.getLogger().append("Which should be in repo " + featureRepoUrl + ", which we will pull.\n");
+    /**
+     * Fetch and merge one repository, using the merge result cache if configured to.
+     * @param prepared : whether the prepare phase was already run
+     */
+    private MergeResult mergeRepository(StepContext context, AdvancedSCMManager amm, TaskListener listener,
+                                        MergeSequence sequence, boolean prepared) throws Exception {
+        if (cacheMergeResults) {
+            MergeResult fetched = runPhases(context, amm, listener, sequence, !prepared, true, false, null);
+            if (fetched.getSourceRevision() == null) {
+                // nothing to merge in this repository
+                return runPhases(context, amm, listener, sequence, false, false, true, fetched);
+            }
+            return mergeWithCache(context, amm, listener, sequence, fetched);
+        }
+        return runPhases(context, amm, listener, sequence, !prepared, true, true, null);
+    }
 
-            /* Actual gatekeepering commands.*/
-            amm.pull(featureRepoUrl, featureBranch);
-            amm.updateClean(targetBranch);
-            amm.mergeWorkspaceWith(okRevision, null);
-            LogMessageSearcher.logMessage(listener, "Gatekeeper merge merged " +
-                    okRevision + " from " + featureRepoUrl + " to " + targetBranch + ".");
-        } else {
-            amm.pull(featureRepoUrl, featureBranch);
-            amm.updateClean(targetBranch);
-            amm.mergeWorkspaceWith(featureBranch, null);
-            LogMessageSearcher.logMessage(listener, "Gatekeeper merge merged " +
-                    featureBranch + " to " + targetBranch + ".");
+    /**
+     * Merge all repositories of the build concurrently. The merge fails when one of the repositories
+     * fails to merge, so nothing is pushed unless all repositories were merged.
+     * Merge locks are taken in a fixed order, so builds locking the same repositories can't deadlock.
+     * @return MergeResult with the branches to push of all repositories and a combined tree id
+     */
+    private MergeResult mergeRepositories(final StepContext context, final TaskListener listener,
+                                          final List<AdvancedSCMManager> managers,
+                                          final List<MergeSequence> sequences, String targetBranch)
+            throws Exception {
+        final boolean prepared = mergeLockTimeout > 0;
+        if (prepared) {
+            List<Callable<MergeResult>> prepares = new ArrayList<Callable<MergeResult>>();
+            for (int i = 0; i < managers.size(); i++) {
+                final AdvancedSCMManager amm = managers.get(i);
+                final MergeSequence sequence = sequences.get(i);
+                prepares.add(new Callable<MergeResult>() {
+                    public MergeResult call() throws Exception {
+                        return runPhases(context, amm, listener, sequence, true, false, false, null);
+                    }
+                });
+            }
+            inParallel(prepares);
+
+            List<AdvancedSCMManager> lockOrder = new ArrayList<AdvancedSCMManager>(managers);
+            Collections.sort(lockOrder, new Comparator<AdvancedSCMManager>() {
+                public int compare(AdvancedSCMManager a, AdvancedSCMManager b) {
+                    return String.valueOf(a.getRepositoryUrl()).compareTo(String.valueOf(b.getRepositoryUrl()));
+                }
+            });
+            for (AdvancedSCMManager amm : lockOrder) {
+                acquireMergeLock(context, amm, listener, targetBranch);
+            }
+            for (MergeSequence sequence : sequences) {
+                sequence.setRefreshTarget(true);
+            }
         }
-        commit(amm, listener, envVars, targetBranch, featureBranch, commitUsername);
 
-        // pass branches to push to later build actions
-        Map<String, String> vars = new HashMap<String, String>();
-        vars.put("BRANCHES_TO_PUSH", targetBranch);
-        build.addAction(new EnvInjectBuilderContributionAction(vars));
-        return true;
+        List<Callable<MergeResult>> merges = new ArrayList<Callable<MergeResult>>();
+        for (int i = 0; i < managers.size(); i++) {
+            final AdvancedSCMManager amm = managers.get(i);
+            final MergeSequence sequence = sequences.get(i);
+            merges.add(new Callable<MergeResult>() {
+                public MergeResult call() throws Exception {
+                    return mergeRepository(context, amm, listener, sequence, prepared);
+                }
+            });
+        }
+        List<MergeResult> results = inParallel(merges);
+
+        MergeResult combined = new MergeResult();
+        List<String> treeIds = new ArrayList<String>();
+        for (int i = 0; i < managers.size(); i++) {
+            MergeResult result = results.get(i);
+            combined.getRepositoryBranchesToPush().put(managers.get(i).getRepositoryUrl(), result.getBranchesToPush());
+            for (String branch : result.getBranchesToPush()) {
+                if (!combined.getBranchesToPush().contains(branch)) {
+                    combined.getBranchesToPush().add(branch);
+                }
+            }
+            treeIds.add(result.getTreeId());
+        }
+        combined.setTreeId(Util.getDigestOf(StringUtils.join(treeIds, ",")));
+        return combined;
     }
 
-    private void ensureReleaseBranch(AdvancedSCMManager amm, String targetBranch) throws AdvancedSCMException, ReleaseBranchInvalidException{
+    /**
+     * Run given tasks on a bounded pool of threads and wait for all of them.
+     * @return results in the order of the tasks
+     * @throws Exception of the first failed task, after all tasks finished
+     */
+    private static <T> List<T> inParallel(List<Callable<T>> tasks) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(tasks.size(), MAX_PARALLEL_MERGES)));
+        try {
+            List<Future<T>> futures = new ArrayList<Future<T>>();
+            for (Callable<T> task : tasks) {
+                futures.add(executor.submit(task));
+            }
+            List<T> results = new ArrayList<T>();
+            Exception failure = null;
+            for (Future<T> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                    }
+                    results.add(null);
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Run given phases of the merge sequence, on the agent in one callable if configured to.
+     */
+    private MergeResult runPhases(StepContext context, AdvancedSCMManager amm, TaskListener listener,
+                                  MergeSequence sequence, boolean prepare, boolean fetch, boolean merge,
+                                  MergeResult fetched) throws Exception {
+        MergeSequence.OnAgent phases = new MergeSequence.OnAgent(
+                amm, listener, sequence, prepare, fetch, merge, fetched);
+        if (runOnAgent) {
+            return AgentSequence.act(context.getWorkspace(), phases);
+        }
+        return phases.run(amm, listener);
+    }
+
+    /**
+     * Replay the merge from the merge result cache when the same revisions were merged before,
+     * otherwise merge and store the result in the cache.
+     */
+    private MergeResult mergeWithCache(StepContext context, AdvancedSCMManager amm, TaskListener listener,
+                                       MergeSequence sequence, MergeResult fetched) throws Exception {
+        MergeResultCache cache = MergeResultCache.getInstance();
+        String key = sequence.getCacheKey(amm.getRepositoryUrl(), fetched);
+        MergeResultCache.Entry entry = cache.get(key);
+        FilePath bundle = context.getWorkspace().createTempFile("gatekeeper-merge", ".bundle");
+        try {
+            boolean cached = false;
+            if (entry != null) {
+                try {
+                    new FilePath(entry.getBundle()).copyTo(bundle);
+                    cached = true;
+                } catch (IOException e) {
+                    // the cache can evict the bundle after handing out the entry
+                    log.log(Level.WARNING, "Could not read cached merge result " + key + ".", e);
+                }
+            }
+            if (cached) {
+                sequence.replayFrom(bundle.getRemote(), entry.getRevision());
+                try {
+                    return runPhases(context, amm, listener, sequence, false, false, true, fetched);
+                } catch (AdvancedSCMException e) {
+                    log.log(Level.WARNING, "Could not replay cached merge result " + key + ".", e);
+                    // importing is atomic, so the workspace is still at the target revision
+                    listener.getLogger().append("Replaying cached merge result failed, merging again.\n");
+                }
+            }
+            sequence.exportTo(bundle.getRemote());
+            MergeResult result = runPhases(context, amm, listener, sequence, false, false, true, fetched);
+            cache.put(key, bundle, result.getMergeRevision());
+            return result;
+        } finally {
+            bundle.delete();
+        }
+    }
+
+    /**
+     * Serialize merging up to pushing with other builds into the same target branch.
+     * The lock is released by GatekeeperPush, or when the build completes.
+     */
+    private void acquireMergeLock(StepContext context, AdvancedSCMManager amm, TaskListener listener, String targetBranch)
+            throws InterruptedException, MergeLockTimeoutException {
+        MergeLockManager locks = MergeLockManager.getInstance();
+        String repository = amm.getRepositoryUrl();
+        int ahead = locks.getQueueDepth(repository, targetBranch);
+        listener.getLogger().append("Acquiring merge lock on " + targetBranch + ", " + ahead + " build(s) ahead.\n");
+        long waited;
+        try {
+            waited = locks.acquire(repository, targetBranch, MergeLockManager.getOwner(context.getRun()),
+                    mergeLockTimeout * 60L * 1000L);
+        } catch (MergeLockTimeoutException e) {
+            log.log(Level.WARNING, e.getMessage() + " " + locks.getTimeouts() + " merge lock timeout(s) so far.");
+            throw e;
+        }
+        listener.getLogger().append("Acquired merge lock on " + targetBranch + " after " + waited / 1000
+                + " seconds, builds waited " + locks.getAverageWaitMillis() / 1000 + " seconds on average for "
+                + locks.getAcquisitions() + " merge lock(s).\n");
+    }
+
+    private String renderReleaseFileContent(AdvancedSCMManager amm, String targetBranch) throws AdvancedSCMException, ReleaseBranchInvalidException{
         String releaseFileContent = null;
         if (releaseFileContentTemplate != null && !releaseFileContentTemplate.isEmpty()
                 && releaseFilePath != null && !releaseFilePath.isEmpty()) {
@@ -133,21 +503,7 @@ public class GatekeeperMerge extends Builder {
                 throw new AdvancedSCMException("Error rendering release file content template");
             }
         }
-        amm.ensureReleaseBranch(
-                targetBranch, releaseFilePath, releaseFileContent,
-                "[Jenkins Integration Merge] " + targetBranch + " release", commitUsername);
-    }
-
-    private void commit(AdvancedSCMManager amm, BuildListener listener, EnvVars envVars, String targetBranch, String featureBranch, String commitUsername) throws AdvancedSCMException {
-        amm.commit("[Jenkins Integration Merge] Merged " + featureBranch + " into "
-                        + targetBranch,
-                commitUsername);
-        if (amm.getBranchNames(false).contains(featureBranch)) {
-            // we have to close feature branch
-            amm.closeBranch(featureBranch, "[Jenkins Integration Merge] Closing feature branch " + featureBranch, commitUsername);
-            amm.updateClean(targetBranch);
-        }
-        LogMessageSearcher.logMessage(listener, "Gatekeeper merge was committed.");
+        return releaseFileContent;
     }
 
     @Override
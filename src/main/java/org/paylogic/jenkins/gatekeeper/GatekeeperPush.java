@@ -1,20 +1,34 @@
 package org.paylogic.jenkins.gatekeeper;
 
-import hudson.EnvVars;
 import hudson.Extension;
 import hudson.Launcher;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.BuildListener;
+import hudson.model.Project;
+import hudson.model.TaskListener;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
+import hudson.util.FormValidation;
+import jenkins.model.Jenkins;
 import lombok.extern.java.Log;
+import org.apache.commons.lang.StringUtils;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
 import org.paylogic.jenkins.LogMessageSearcher;
 import org.paylogic.jenkins.advancedscm.AdvancedSCMManager;
 import org.paylogic.jenkins.advancedscm.SCMManagerFactory;
+import org.paylogic.jenkins.advancedscm.StepContext;
+import org.paylogic.jenkins.advancedscm.exceptions.AdvancedSCMException;
+import org.paylogic.jenkins.advancedscm.exceptions.PushCreatesNewRemoteHeadException;
+import org.paylogic.jenkins.upmerge.ReleaseContainmentIndex;
 
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 
 /**
@@ -23,10 +37,72 @@ import java.util.logging.Level;
 @Log
 public class GatekeeperPush extends Builder {
 
+    public static long MAX_RETRY_DELAY = 5 * 60 * 1000; // 5 minutes (time is in milliseconds)
+
+    /**
+     * How many times to merge new remote heads and push again when somebody pushed in the meantime.
+     */
+    public int pushRetries;
+
+    /**
+     * Seconds to wait before the first retry, doubled for every next one.
+     */
+    public int retryDelay = 5;
+
+    /**
+     * User name to commit merges of new remote heads with, the one of GatekeeperMerge when empty.
+     */
+    public String commitUsername;
+
+    /**
+     * Jobs to build for every pushed branch, comma separated, empty to trigger nothing.
+     */
+    public String downstreamJobs;
+
+    /**
+     * Name of the parameter the pushed branch is passed to downstream jobs with.
+     */
+    public String downstreamParameter = "BRANCH";
+
+    /**
+     * Seconds to wait for more pushes of a branch before triggering its downstream builds.
+     */
+    public int downstreamQuietPeriod = 60;
+
     @DataBoundConstructor
     public GatekeeperPush() {
     }
 
+    @DataBoundSetter
+    public void setPushRetries(int pushRetries) {
+        this.pushRetries = pushRetries;
+    }
+
+    @DataBoundSetter
+    public void setRetryDelay(int retryDelay) {
+        this.retryDelay = retryDelay;
+    }
+
+    @DataBoundSetter
+    public void setCommitUsername(String commitUsername) {
+        this.commitUsername = commitUsername;
+    }
+
+    @DataBoundSetter
+    public void setDownstreamJobs(String downstreamJobs) {
+        this.downstreamJobs = downstreamJobs;
+    }
+
+    @DataBoundSetter
+    public void setDownstreamParameter(String downstreamParameter) {
+        this.downstreamParameter = downstreamParameter;
+    }
+
+    @DataBoundSetter
+    public void setDownstreamQuietPeriod(int downstreamQuietPeriod) {
+        this.downstreamQuietPeriod = downstreamQuietPeriod;
+    }
+
     @Override
     public boolean perform(AbstractBuild build, Launcher launcher, BuildListener listener) {
         PrintStream l = listener.getLogger();
@@ -44,15 +120,218 @@ public class GatekeeperPush extends Builder {
     }
 
     private boolean doPerform(AbstractBuild build, Launcher launcher, BuildListener listener) throws Exception {
-        /* Set up enviroment and resolve some variables. */
-        AdvancedSCMManager amm = SCMManagerFactory.getManager(build, launcher, listener);
-        EnvVars envVars = build.getEnvironment(listener);
-        String branches_to_push = envVars.get("BRANCHES_TO_PUSH", "");
-        amm.push(branches_to_push.split(","));
+        StepContext context = StepContext.of(build, launcher, listener);
+        MergedRepositoriesAction merged = build.getAction(MergedRepositoriesAction.class);
+        if (merged != null) {
+            pushRepositories(context, merged.getBranchesToPush());
+        } else {
+            push(context, Arrays.asList(context.getEnvironment().get("BRANCHES_TO_PUSH", "").split(",")));
+        }
         LogMessageSearcher.logMessage(listener, "Gatekeeper push is done.");
         return true;
     }
 
+    /**
+     * Push branches of the repository REPO_SUBDIR of given context, and release the merge lock
+     * on its TARGET_BRANCH. The build is not changed, so this can run as a step of any kind of build.
+     * @param branches : List of String names of the branches to push, e.g. MergeResult.getBranchesToPush
+     */
+    public void push(StepContext context, List<String> branches) throws Exception {
+        AdvancedSCMManager amm = SCMManagerFactory.getManager(context);
+        String[] names = branches.toArray(new String[branches.size()]);
+        try {
+            push(amm, context.getListener(), names, getCommitUsername(context));
+            ReleaseContainmentIndex.update(amm, names, context.getListener());
+            triggerDownstream(context, names);
+        } finally {
+            // no-op when GatekeeperMerge didn't lock the target branch
+            MergeLockManager.getInstance().release(amm.getRepositoryUrl(),
+                    context.getEnvironment().get("TARGET_BRANCH", ""), MergeLockManager.getOwner(context.getRun()));
+        }
+    }
+
+    /**
+     * Push all repositories merged by GatekeeperMerge, and release all merge locks of the run.
+     * Nothing is pushed when one of the merges failed, as the build stops before this step.
+     * Pushes to separate servers can't be made atomic, so when a push fails the repositories
+     * which were already pushed are reported.
+     * @param branchesToPush : Map of the branches to push per repository url, e.g. MergeResult.getRepositoryBranchesToPush
+     */
+    public void pushRepositories(StepContext context, Map<String, List<String>> branchesToPush) throws Exception {
+        TaskListener listener = context.getListener();
+        String username = getCommitUsername(context);
+        List<String> pushed = new ArrayList<String>();
+        try {
+            for (AdvancedSCMManager amm : SCMManagerFactory.getManagers(context)) {
+                List<String> branches = branchesToPush.get(amm.getRepositoryUrl());
+                if (branches == null || branches.isEmpty()) {
+                    continue;
+                }
+                try {
+                    push(amm, listener, branches.toArray(new String[branches.size()]), username);
+                    ReleaseContainmentIndex.update(amm, branches.toArray(new String[branches.size()]), listener);
+                    triggerDownstream(context, branches.toArray(new String[branches.size()]));
+                } catch (Exception e) {
+                    if (!pushed.isEmpty()) {
+                        listener.error("Push of " + amm.getRepositoryUrl() + " failed after pushing "
+                                + StringUtils.join(pushed, ", ") + ".");
+                    }
+                    throw e;
+                }
+                pushed.add(amm.getRepositoryUrl());
+            }
+        } finally {
+            MergeLockManager.getInstance().releaseAll(MergeLockManager.getOwner(context.getRun()));
+        }
+    }
+
+    /**
+     * Push given branches. When the push would create new remote heads, the new remote heads are pulled
+     * and merged with the already merged and tested local heads, which are then pushed again.
+     * This way a concurrent push only costs a merge instead of a rerun of the whole build.
+     */
+    private void push(AdvancedSCMManager amm, TaskListener listener, String[] branches, String username)
+            throws AdvancedSCMException, InterruptedException {
+        int attempt = 0;
+        while (true) {
+            try {
+                amm.push(branches);
+                return;
+            } catch (PushCreatesNewRemoteHeadException e) {
+                if (attempt >= pushRetries) {
+                    throw e;
+                }
+                if (StringUtils.isBlank(username)) {
+                    throw new AdvancedSCMException("Push creates new remote heads, but they can't be merged "
+                            + "without a commit user name: " + e.getMessage());
+                }
+                // the shift is capped, as the delay would overflow after about 40 doublings
+                long delay = Math.min(MAX_RETRY_DELAY, Math.max(0, retryDelay) * 1000L << Math.min(attempt, 20));
+                attempt++;
+                listener.getLogger().append("Push creates new remote heads, merging them and retrying in "
+                        + delay / 1000 + " seconds (attempt " + attempt + " of " + pushRetries + ").\n");
+                Thread.sleep(delay);
+                mergeRemoteHeads(amm, branches, username);
+            }
+        }
+    }
+
+    /**
+     * Get the user name to commit merges of new remote heads with. Falls back to the one of the GatekeeperMerge step
+     * of the job, so it only has to be configured once.
+     * @return String user name, or null when there is none
+     */
+    private String getCommitUsername(StepContext context) {
+        if (StringUtils.isNotBlank(commitUsername)) {
+            return commitUsername;
+        }
+        if (context.getRun() != null && context.getRun().getParent() instanceof Project) {
+            GatekeeperMerge merge = ((Project<?, ?>) context.getRun().getParent()).getBuildersList()
+                    .get(GatekeeperMerge.class);
+            if (merge != null) {
+                return merge.commitUsername;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Trigger the downstream jobs for every pushed branch. Triggers of the same branch are coalesced
+     * by DownstreamTrigger, so the builds start once the branch is not pushed anymore for the quiet period.
+     */
+    private void triggerDownstream(StepContext context, String[] branches) {
+        TaskListener listener = context.getListener();
+        if (downstreamJobs == null || downstreamJobs.trim().isEmpty()) {
+            return;
+        }
+        String parameter = StringUtils.isEmpty(downstreamParameter) ? "BRANCH" : downstreamParameter;
+        for (String name : downstreamJobs.split(",")) {
+            if (name.trim().isEmpty()) {
+                continue;
+            }
+            AbstractProject<?, ?> job = Jenkins.getInstance().getItem(
+                    name.trim(), context.getRun().getParent(), AbstractProject.class);
+            if (job == null) {
+                listener.error("Downstream job " + name.trim() + " does not exist.");
+                continue;
+            }
+            for (String branch : branches) {
+                if (branch.isEmpty()) {
+                    continue;
+                }
+                DownstreamTrigger.getInstance().trigger(
+                        job.getFullName(), parameter, branch, downstreamQuietPeriod, context.getRun().getFullDisplayName());
+                listener.getLogger().append("Triggering " + job.getFullDisplayName() + " for " + branch
+                        + " in " + downstreamQuietPeriod + " seconds, unless it is pushed again.\n");
+            }
+        }
+    }
+
+    /**
+     * Pull new remote heads, and merge them with the local heads of given branches.
+     * Merging fails on conflicts, but a clean merge can still change the tested changes, e.g. when the remote
+     * made some of them too. So the changes of every merge of remote heads have to be the same as the tested
+     * ones, otherwise the pushed tree would be one which was never tested.
+     */
+    private void mergeRemoteHeads(AdvancedSCMManager amm, String[] branches, String username)
+            throws AdvancedSCMException {
+        // Mercurial resolves branch names to the newest head, so the tested heads are looked up before pulling
+        String[] tested = new String[branches.length];
+        for (int i = 0; i < branches.length; i++) {
+            tested[i] = branches[i].isEmpty() ? null : amm.getHeadId(branches[i]);
+        }
+        amm.pull();
+        for (int i = 0; i < branches.length; i++) {
+            if (tested[i] == null) {
+                continue;
+            }
+            amm.update(branches[i]);
+            amm.mergeHeads("[Jenkins Integration Merge] Merged remote heads on " + branches[i], username);
+            String merged = amm.getWorkspaceRevisionId();
+            if (merged.equals(tested[i])) {
+                continue;
+            }
+            String remote = getOtherParent(amm, merged, tested[i]);
+            if (remote == null) {
+                continue;
+            }
+            String testedChanges = getChanges(amm.getDiff(amm.getMergeBase(tested[i], remote), tested[i]));
+            if (!testedChanges.equals(getChanges(amm.getDiff(remote, merged)))) {
+                throw new AdvancedSCMException("Merging the new remote heads of " + branches[i]
+                        + " changes the tested changes, so it is not pushed untested.");
+            }
+        }
+    }
+
+    /**
+     * @return String id of the parent of given merge which is not the tested head,
+     * or null when it's no merge of the tested head
+     */
+    private static String getOtherParent(AdvancedSCMManager amm, String merge, String tested)
+            throws AdvancedSCMException {
+        List<String> commits = amm.getCommits(Arrays.asList(merge), Arrays.asList(tested));
+        if (commits.isEmpty()) {
+            return null;
+        }
+        String[] ids = commits.get(commits.size() - 1).split(" ");
+        if (ids.length < 3 || !ids[0].equals(merge)) {
+            return null;
+        }
+        return ids[1].equals(tested) ? ids[2] : ids[2].equals(tested) ? ids[1] : null;
+    }
+
+    /**
+     * Leave out the hunk headers and blob ids of a diff, which depend on the revision the changes are applied to.
+     */
+    static String getChanges(String diff) {
+        StringBuilder changes = new StringBuilder();
+        for (String line : diff.split("\n")) {
+            if (!line.startsWith("@@") && !line.startsWith("index ")) {
+                changes.append(line).append('\n');
+            }
+        }
+        return changes.toString();
+    }
 
     @Override
     public DescriptorImpl getDescriptor() {
@@ -76,5 +355,23 @@ public class GatekeeperPush extends Builder {
             super();
             load();
         }
+
+        public FormValidation doCheckPushRetries(@QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
+        public FormValidation doCheckRetryDelay(@QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
+        public FormValidation doCheckCommitUsername(@QueryParameter String value, @QueryParameter String pushRetries) {
+            if (!value.trim().isEmpty() || pushRetries == null || !pushRetries.trim().matches("[1-9]\\d*")) {
+                return FormValidation.ok();
+            }
+            else {
+                return FormValidation.warning("Required to retry pushes, unless the Gatekeeper merge step of the job "
+                        + "has a commit user name");
+            }
+        }
     }
 }
@@ -0,0 +1,55 @@
+package org.paylogic.jenkins.gatekeeper;
+
+import hudson.Extension;
+import hudson.model.RootAction;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * REST endpoint with the merge locks of the MergeLockManager and their metrics:
+ * GET /merge-locks/
+ * The answer is JSON, with the builds holding and waiting for every lock, the amount of acquisitions and timeouts,
+ * and the average time builds waited for a lock since Jenkins started.
+ */
+@Extension
+public class MergeLockApi implements RootAction {
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return null;
+    }
+
+    public String getUrlName() {
+        return "merge-locks";
+    }
+
+    public void doIndex(StaplerResponse rsp) throws IOException {
+        Jenkins.getInstance().checkPermission(Jenkins.READ);
+        MergeLockManager manager = MergeLockManager.getInstance();
+        JSONArray locks = new JSONArray();
+        for (Map.Entry<String, List<String>> queue : manager.getQueues().entrySet()) {
+            JSONObject lock = new JSONObject();
+            lock.put("lock", queue.getKey());
+            lock.put("holder", queue.getValue().get(0));
+            lock.put("waiting", JSONArray.fromObject(queue.getValue().subList(1, queue.getValue().size())));
+            locks.add(lock);
+        }
+        JSONObject result = new JSONObject();
+        result.put("locks", locks);
+        result.put("queueDepth", manager.getTotalQueueDepth());
+        result.put("acquisitions", manager.getAcquisitions());
+        result.put("timeouts", manager.getTimeouts());
+        result.put("averageWaitMillis", manager.getAverageWaitMillis());
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().print(result.toString());
+    }
+}
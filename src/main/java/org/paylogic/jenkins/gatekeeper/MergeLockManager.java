@@ -0,0 +1,203 @@
+package org.paylogic.jenkins.gatekeeper;
+
+import hudson.Extension;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import lombok.extern.java.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+
+/**
+ * Plugin-wide locks on (repository, target branch) pairs.
+ * Gatekeeper merges into the same target branch are serialized from the merge up to the push,
+ * so they can't create new remote heads for each other, while merges into other targets run in parallel.
+ * Waiting builds get the lock in the order they asked for it.
+ */
+@Log
+public class MergeLockManager {
+
+    private static final MergeLockManager INSTANCE = new MergeLockManager();
+
+    /**
+     * Owners per lock, the first one holds the lock and the others wait in order of arrival.
+     */
+    private final Map<String, LinkedList<String>> queues = new HashMap<String, LinkedList<String>>();
+
+    private long acquisitions = 0;
+    private long timeouts = 0;
+    private long totalWaitMillis = 0;
+
+    /**
+     * Get the lock manager shared by all builds on this Jenkins master.
+     * @return MergeLockManager instance
+     */
+    public static MergeLockManager getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Get owner name for locks of given build.
+     * @param build : Run which will hold the lock
+     * @return String unique name of the build
+     */
+    public static String getOwner(Run<?, ?> build) {
+        return build.getParent().getFullName() + "#" + build.getNumber();
+    }
+
+    private static String key(String repository, String targetBranch) {
+        return repository + "#" + targetBranch;
+    }
+
+    /**
+     * Acquire the lock for given target branch, waiting behind builds which asked for it earlier.
+     * Acquiring a lock that is already held by the same owner returns immediately.
+     * @param repository : String repository url
+     * @param targetBranch : String branch name
+     * @param owner : String name of the build acquiring the lock
+     * @param timeoutMillis : maximum time to wait, 0 to wait forever
+     * @return time waited in milliseconds
+     * @throws MergeLockTimeoutException when the lock could not be acquired in time
+     */
+    public synchronized long acquire(String repository, String targetBranch, String owner, long timeoutMillis)
+            throws InterruptedException, MergeLockTimeoutException {
+        String key = key(repository, targetBranch);
+        LinkedList<String> queue = queues.get(key);
+        if (queue == null) {
+            queue = new LinkedList<String>();
+            queues.put(key, queue);
+        }
+        if (owner.equals(queue.peek())) {
+            return 0;
+        }
+        queue.addLast(owner);
+
+        long start = System.currentTimeMillis();
+        try {
+            while (!owner.equals(queue.peek())) {
+                long waited = System.currentTimeMillis() - start;
+                if (timeoutMillis > 0 && waited >= timeoutMillis) {
+                    queue.remove(owner);
+                    timeouts++;
+                    throw new MergeLockTimeoutException("Timed out after " + waited + " ms waiting for merge lock on "
+                            + targetBranch + ", held by " + queue.peek() + ".");
+                }
+                wait(timeoutMillis > 0 ? timeoutMillis - waited : 0);
+            }
+        } catch (InterruptedException e) {
+            queue.remove(owner);
+            notifyAll();
+            throw e;
+        }
+
+        long waited = System.currentTimeMillis() - start;
+        acquisitions++;
+        totalWaitMillis += waited;
+        return waited;
+    }
+
+    /**
+     * Release the lock for given target branch, if held by given owner.
+     * @param repository : String repository url
+     * @param targetBranch : String branch name
+     * @param owner : String name of the build releasing the lock
+     */
+    public synchronized void release(String repository, String targetBranch, String owner) {
+        String key = key(repository, targetBranch);
+        LinkedList<String> queue = queues.get(key);
+        if (queue != null && owner.equals(queue.peek())) {
+            queue.removeFirst();
+            if (queue.isEmpty()) {
+                queues.remove(key);
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * Release all locks held by given owner and stop waiting for others.
+     * @param owner : String name of the build
+     */
+    public synchronized void releaseAll(String owner) {
+        Iterator<Map.Entry<String, LinkedList<String>>> it = queues.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, LinkedList<String>> entry = it.next();
+            if (entry.getValue().remove(owner)) {
+                log.log(Level.INFO, owner + " released merge lock " + entry.getKey() + " on completion.");
+            }
+            if (entry.getValue().isEmpty()) {
+                it.remove();
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * @return amount of builds holding or waiting for the lock on given target branch
+     */
+    public synchronized int getQueueDepth(String repository, String targetBranch) {
+        LinkedList<String> queue = queues.get(key(repository, targetBranch));
+        return queue == null ? 0 : queue.size();
+    }
+
+    /**
+     * @return amount of builds holding or waiting for any lock
+     */
+    public synchronized int getTotalQueueDepth() {
+        int depth = 0;
+        for (LinkedList<String> queue : queues.values()) {
+            depth += queue.size();
+        }
+        return depth;
+    }
+
+    /**
+     * @return snapshot of the builds holding or waiting for every lock, per repository url and target branch
+     * joined by #, where the first build holds the lock
+     */
+    public synchronized Map<String, List<String>> getQueues() {
+        Map<String, List<String>> snapshot = new TreeMap<String, List<String>>();
+        for (Map.Entry<String, LinkedList<String>> entry : queues.entrySet()) {
+            if (entry.getValue().isEmpty()) {
+                // left behind by a build which stopped waiting
+                continue;
+            }
+            snapshot.put(entry.getKey(), new ArrayList<String>(entry.getValue()));
+        }
+        return snapshot;
+    }
+
+    public synchronized long getAcquisitions() {
+        return acquisitions;
+    }
+
+    public synchronized long getTimeouts() {
+        return timeouts;
+    }
+
+    public synchronized long getAverageWaitMillis() {
+        return acquisitions == 0 ? 0 : totalWaitMillis / acquisitions;
+    }
+
+    /**
+     * Makes sure builds which did not reach the push step don't keep their target branch locked.
+     */
+    @Extension
+    public static class ReleaseOnCompletion extends RunListener<Run> {
+        public ReleaseOnCompletion() {
+            super(Run.class);
+        }
+
+        @Override
+        public void onCompleted(Run build, TaskListener listener) {
+            getInstance().releaseAll(getOwner(build));
+        }
+    }
+}
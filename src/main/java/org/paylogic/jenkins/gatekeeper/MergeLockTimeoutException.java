@@ -0,0 +1,10 @@
+package org.paylogic.jenkins.gatekeeper;
+
+/**
+ * Exception to throw when the merge lock on a target branch could not be acquired in time.
+ */
+public class MergeLockTimeoutException extends Exception {
+    public MergeLockTimeoutException(String message) {
+        super(message);
+    }
+}
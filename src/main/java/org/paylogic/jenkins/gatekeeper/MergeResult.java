@@ -0,0 +1,44 @@
+package org.paylogic.jenkins.gatekeeper;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Result of a Gatekeeper merge, which can be sent back from the agent the merge ran on.
+ */
+public class MergeResult implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    @Getter private final List<String> branchesToPush = new ArrayList<String>();
+
+    /**
+     * Branches to push per repository url, when all repositories of a MultiSCM build were merged.
+     */
+    @Getter private final Map<String, List<String>> repositoryBranchesToPush = new LinkedHashMap<String, List<String>>();
+
+    /**
+     * Revision which is merged into the target branch.
+     */
+    @Getter @Setter private String sourceRevision;
+
+    /**
+     * Revision of the target branch the merge is done on.
+     */
+    @Getter @Setter private String targetRevision;
+
+    /**
+     * Revision of the merge commit.
+     */
+    @Getter @Setter private String mergeRevision;
+
+    /**
+     * Id of the merged file tree.
+     */
+    @Getter @Setter private String treeId;
+}
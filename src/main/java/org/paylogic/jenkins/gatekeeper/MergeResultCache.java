@@ -0,0 +1,175 @@
+package org.paylogic.jenkins.gatekeeper;
+
+import hudson.FilePath;
+import jenkins.model.Jenkins;
+import lombok.Getter;
+import lombok.extern.java.Log;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Persistent cache of Gatekeeper merge results on the master, so retried builds can replay a merge
+ * instead of doing it again. Results are stored as bundles under a key which covers the repository,
+ * the merged heads and the merge settings. Entries expire after a while, and the least recently used
+ * entries are evicted first when the cache grows too big.
+ */
+@Log
+public class MergeResultCache {
+
+    public static long MAX_AGE_HOURS = Long.getLong(MergeResultCache.class.getName() + ".maxAgeHours", 7 * 24);
+    public static long MAX_SIZE_MB = Long.getLong(MergeResultCache.class.getName() + ".maxSizeMB", 1024);
+
+    private static final String BUNDLE = ".bundle";
+    private static final String REVISION = ".revision";
+
+    private static MergeResultCache instance;
+
+    private final File directory;
+    private final long maxAgeMillis;
+    private final long maxSizeBytes;
+
+    public MergeResultCache(File directory, long maxAgeMillis, long maxSizeBytes) {
+        this.directory = directory;
+        this.maxAgeMillis = maxAgeMillis;
+        this.maxSizeBytes = maxSizeBytes;
+    }
+
+    /**
+     * Get the cache shared by all builds on this Jenkins master.
+     * @return MergeResultCache instance
+     */
+    public static synchronized MergeResultCache getInstance() {
+        if (instance == null) {
+            instance = new MergeResultCache(
+                    new File(Jenkins.getInstance().getRootDir(), "gatekeeper-merge-cache"),
+                    TimeUnit.HOURS.toMillis(MAX_AGE_HOURS), MAX_SIZE_MB * 1024 * 1024);
+        }
+        return instance;
+    }
+
+    /**
+     * Get a cached merge result.
+     * @param key : String key of the merge
+     * @return Entry with the bundle and merge revision, or null if there is none
+     */
+    public synchronized Entry get(String key) {
+        File bundle = new File(directory, key + BUNDLE);
+        File revision = new File(directory, key + REVISION);
+        if (!bundle.isFile() || !revision.isFile()) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (now - bundle.lastModified() > maxAgeMillis) {
+            delete(key);
+            return null;
+        }
+        try {
+            Entry entry = new Entry(bundle, FileUtils.readFileToString(revision, "UTF-8").trim());
+            // last modification time is the last use, for eviction
+            bundle.setLastModified(now);
+            return entry;
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Could not read cached merge result " + key + ", dropping it.", e);
+            delete(key);
+            return null;
+        }
+    }
+
+    /**
+     * Store a merge result, evicting old entries when the cache is full.
+     * @param key : String key of the merge
+     * @param bundle : FilePath bundle with the merge result, can be on an agent
+     * @param revision : String merge revision in the bundle
+     */
+    public void put(String key, FilePath bundle, String revision) throws IOException, InterruptedException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create merge result cache directory " + directory);
+        }
+        // copy outside of the lock, bundles can be big
+        File temp = File.createTempFile(key, ".tmp", directory);
+        try {
+            bundle.copyTo(new FilePath(temp));
+            synchronized (this) {
+                FileUtils.writeStringToFile(new File(directory, key + REVISION), revision, "UTF-8");
+                File target = new File(directory, key + BUNDLE);
+                if (target.exists() && !target.delete() || !temp.renameTo(target)) {
+                    throw new IOException("Could not store cached merge result " + target);
+                }
+                evict();
+            }
+        } finally {
+            temp.delete();
+        }
+    }
+
+    /**
+     * @return total size of the cached bundles in bytes
+     */
+    public synchronized long getSize() {
+        long size = 0;
+        for (File bundle : bundles()) {
+            size += bundle.length();
+        }
+        return size;
+    }
+
+    private void evict() {
+        List<File> bundles = new ArrayList<File>(Arrays.asList(bundles()));
+        Collections.sort(bundles, new Comparator<File>() {
+            public int compare(File a, File b) {
+                return Long.valueOf(a.lastModified()).compareTo(b.lastModified());
+            }
+        });
+        long now = System.currentTimeMillis();
+        long size = 0;
+        for (File bundle : bundles) {
+            size += bundle.length();
+        }
+        for (File bundle : bundles) {
+            if (size <= maxSizeBytes && now - bundle.lastModified() <= maxAgeMillis) {
+                continue;
+            }
+            size -= bundle.length();
+            String key = bundle.getName().substring(0, bundle.getName().length() - BUNDLE.length());
+            log.log(Level.FINE, "Evicting merge result " + key + " from the cache.");
+            delete(key);
+        }
+    }
+
+    private File[] bundles() {
+        File[] bundles = directory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(BUNDLE);
+            }
+        });
+        return bundles == null ? new File[0] : bundles;
+    }
+
+    private void delete(String key) {
+        new File(directory, key + BUNDLE).delete();
+        new File(directory, key + REVISION).delete();
+    }
+
+    /**
+     * Cached merge result.
+     */
+    public static class Entry {
+        @Getter private final File bundle;
+        @Getter private final String revision;
+
+        private Entry(File bundle, String revision) {
+            this.bundle = bundle;
+            this.revision = revision;
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package org.paylogic.jenkins.gatekeeper;
+
+import hudson.Util;
+import hudson.model.TaskListener;
+import org.apache.commons.lang.StringUtils;
+import org.paylogic.jenkins.LogMessageSearcher;
+import org.paylogic.jenkins.advancedscm.AdvancedSCMManager;
+import org.paylogic.jenkins.advancedscm.AgentSequence;
+import org.paylogic.jenkins.advancedscm.AsyncSCMManager;
+import org.paylogic.jenkins.advancedscm.exceptions.AdvancedSCMException;
+import org.paylogic.jenkins.upmerge.releasebranch.ReleaseBranchInvalidException;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * SCM operations of a Gatekeeper merge. Can run on the master, issuing the commands one by one,
+ * or be sent to the agent owning the workspace to run there in one go.
+ */
+public class MergeSequence implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String featureRepoUrl;
+    private final String featureBranch;
+    private final String targetBranch;
+    private final String okRevision;
+    private final String commitUsername;
+    private final String releaseFilePath;
+    private final String releaseFileContent;
+    private final List<String> sparsePaths;
+    private final boolean partialFetch;
+    private boolean optionalSource;
+    private boolean refreshTarget;
+    private List<String> keepPaths = new ArrayList<String>();
+    private String bundleFile;
+    private String replayRevision;
+
+    public MergeSequence(String featureRepoUrl, String featureBranch, String targetBranch, String okRevision,
+                         String commitUsername, String releaseFilePath, String releaseFileContent,
+                         List<String> sparsePaths, boolean partialFetch) {
+        this.featureRepoUrl = featureRepoUrl;
+        this.featureBranch = featureBranch;
+        this.targetBranch = targetBranch;
+        this.okRevision = okRevision;
+        this.commitUsername = commitUsername;
+        this.releaseFilePath = releaseFilePath;
+        this.releaseFileContent = releaseFileContent;
+        this.sparsePaths = sparsePaths;
+        this.partialFetch = partialFetch;
+    }
+
+    /**
+     * Clean up the workspace and make sure the target release branch exists.
+     */
+    public void prepare(AdvancedSCMManager amm, TaskListener listener)
+            throws AdvancedSCMException, ReleaseBranchInvalidException {
+        if (sparsePaths != null && !sparsePaths.isEmpty()) {
+            amm.setSparseCheckout(sparsePaths);
+        }
+        amm.stripLocal();
+
+        listener.getLogger().append("Ensuring target release branch " + targetBranch + ".\n");
+        amm.ensureReleaseBranch(
+                targetBranch, releaseFilePath, releaseFileContent,
+                "[Jenkins Integration Merge] " + targetBranch + " release", commitUsername);
+    }
+
+    /**
+     * Get the feature branch or approved revision and update to the target branch.
+     * @return MergeResult with the revisions which will be merged
+     */
+    public MergeResult fetch(AdvancedSCMManager amm, TaskListener listener)
+            throws AdvancedSCMException, InterruptedException {
+        if (!okRevision.isEmpty()) { // Use Rietveld support.
+            listener.getLogger().append("Trying to merge with revision " + okRevision + ".\n");
+            listener.getLogger().append("Which should be in repo " + featureRepoUrl + ", which we will pull.\n");
+        }
+        // with git the feature is fetched while the working copy is updated to the target branch,
+        // Mercurial's locks serialize both
+        AsyncSCMManager async = new AsyncSCMManager(amm);
+        try {
+            Future<Void> pull = pullFeature(async);
+            if (refreshTarget) {
+                amm.updateToRemote(targetBranch);
+            } else {
+                amm.updateClean(targetBranch);
+            }
+            AsyncSCMManager.get(pull);
+        } finally {
+            async.shutdown();
+        }
+
+        MergeResult result = new MergeResult();
+        result.setTargetRevision(amm.getWorkspaceRevisionId());
+        if (optionalSource && okRevision.isEmpty() && !amm.getBranchNames(true).contains(featureBranch)) {
+            listener.getLogger().append("Feature branch " + featureBranch + " is not in "
+                    + amm.getRepositoryUrl() + ", nothing to merge.\n");
+            return result;
+        }
+        result.setSourceRevision(amm.getRevisionId(getSource()));
+        return result;
+    }
+
+    /**
+     * Merge the feature branch or approved revision into the target branch and commit it.
+     * When a cached merge result is set with replayFrom, it is imported instead.
+     * When a bundle is set with exportTo, the merge result is written to it.
+     * @param fetched : MergeResult returned by fetch
+     * @return MergeResult with the branches to push
+     */
+    public MergeResult merge(AdvancedSCMManager amm, TaskListener listener, MergeResult fetched)
+            throws AdvancedSCMException {
+        if (fetched.getSourceRevision() == null) {
+            // optional source is missing, the target stays as it is
+            fetched.setTreeId(amm.getWorkspaceTreeId());
+            return fetched;
+        }
+        if (replayRevision != null) {
+            listener.getLogger().append("Replaying cached merge result " + replayRevision + ".\n");
+            amm.importChanges(bundleFile, replayRevision);
+            fetched.setMergeRevision(replayRevision);
+            LogMessageSearcher.logMessage(listener, "Gatekeeper merge replayed the earlier merge of " +
+                    getSource() + " to " + targetBranch + ".");
+        } else {
+            /* Actual gatekeepering commands.*/
+            amm.mergeWorkspaceWith(getSource(), null);
+            if (!okRevision.isEmpty()) {
+                LogMessageSearcher.logMessage(listener, "Gatekeeper merge merged " +
+                        okRevision + " from " + featureRepoUrl + " to " + targetBranch + ".");
+            } else {
+                LogMessageSearcher.logMessage(listener, "Gatekeeper merge merged " +
+                        featureBranch + " to " + targetBranch + ".");
+            }
+            commit(amm, listener, fetched);
+        }
+
+        fetched.setTreeId(amm.getWorkspaceTreeId());
+        fetched.getBranchesToPush().add(targetBranch);
+        return fetched;
+    }
+
+    /**
+     * Skip the merge when the feature branch does not exist, instead of failing.
+     * Used when merging a feature branch which only exists in some of the repositories of a build.
+     */
+    public void setOptionalSource(boolean optionalSource) {
+        this.optionalSource = optionalSource;
+    }
+
+    /**
+     * Update to the remote head of the target branch instead of the one in the workspace. Used after taking the
+     * merge lock, as the target branch can have been pushed by other builds while this one was waiting for it.
+     */
+    public void setRefreshTarget(boolean refreshTarget) {
+        this.refreshTarget = refreshTarget;
+    }
+
+    /**
+     * Keep given paths when the workspace is cleaned, e.g. ignored build caches.
+     * @param keepPaths : List of String paths relative to the repository root, which may use * and **
+     */
+    public void setKeepPaths(List<String> keepPaths) {
+        this.keepPaths = keepPaths;
+    }
+
+    /**
+     * Replay a cached merge result instead of merging.
+     * @param bundleFile : String absolute path of the bundle in the workspace
+     * @param revision : String merge revision in the bundle
+     */
+    public void replayFrom(String bundleFile, String revision) {
+        this.bundleFile = bundleFile;
+        this.replayRevision = revision;
+    }
+
+    /**
+     * Write the merge result to a bundle, so it can be cached.
+     * @param bundleFile : String absolute path of the bundle in the workspace
+     */
+    public void exportTo(String bundleFile) {
+        this.bundleFile = bundleFile;
+        this.replayRevision = null;
+    }
+
+    /**
+     * Get a key for caching the result of merging given revisions with the settings of this merge.
+     * @param repository : String repository url
+     * @param fetched : MergeResult returned by fetch
+     * @return String key
+     */
+    public String getCacheKey(String repository, MergeResult fetched) {
+        return Util.getDigestOf(StringUtils.join(new Object[]{
+                repository, fetched.getSourceRevision(), fetched.getTargetRevision(),
+                featureBranch, targetBranch, okRevision.isEmpty(), commitUsername,
+                releaseFilePath, releaseFileContent}, "\n"));
+    }
+
+    private String getSource() {
+        return okRevision.isEmpty() ? featureBranch : okRevision;
+    }
+
+    private Future<Void> pullFeature(AsyncSCMManager async) {
+        if (partialFetch) {
+            return async.pullForMerge(featureRepoUrl, featureBranch, targetBranch);
+        }
+        return async.pull(featureRepoUrl, featureBranch);
+    }
+
+    private void commit(AdvancedSCMManager amm, TaskListener listener, MergeResult fetched)
+            throws AdvancedSCMException {
+        amm.commit("[Jenkins Integration Merge] Merged " + featureBranch + " into "
+                        + targetBranch,
+                commitUsername);
+        List<String> revisions = new ArrayList<String>();
+        fetched.setMergeRevision(amm.getWorkspaceRevisionId());
+        revisions.add(fetched.getMergeRevision());
+        if (amm.getBranchNames(false).contains(featureBranch)) {
+            // we have to close feature branch
+            amm.closeBranch(featureBranch, "[Jenkins Integration Merge] Closing feature branch " + featureBranch, commitUsername);
+            revisions.add(amm.getRevisionId(featureBranch));
+            amm.updateClean(targetBranch);
+        }
+        LogMessageSearcher.logMessage(listener, "Gatekeeper merge was committed.");
+
+        if (bundleFile != null) {
+            amm.exportChanges(fetched.getTargetRevision(), bundleFile, revisions.toArray(new String[revisions.size()]));
+        }
+    }
+
+    /**
+     * Runs a part of the phases prepare, fetch and merge on the agent.
+     */
+    public static class OnAgent extends AgentSequence<MergeResult> {
+        private static final long serialVersionUID = 1L;
+
+        private final MergeSequence sequence;
+        private final boolean prepare;
+        private final boolean fetch;
+        private final boolean merge;
+        private final MergeResult fetched;
+
+        /**
+         * @param fetched : MergeResult of an earlier fetch, null when fetch is part of this run
+         */
+        public OnAgent(AdvancedSCMManager amm, TaskListener listener, MergeSequence sequence,
+                       boolean prepare, boolean fetch, boolean merge, MergeResult fetched) {
+            super(amm, listener);
+            this.sequence = sequence;
+            this.prepare = prepare;
+            this.fetch = fetch;
+            this.merge = merge;
+            this.fetched = fetched;
+        }
+
+        @Override
+        protected MergeResult run(AdvancedSCMManager amm, TaskListener listener) throws Exception {
+            // the manager can be a new one on the agent, so the clean policy is set for every run
+            amm.setCleanKeepPaths(sequence.keepPaths);
+            if (prepare) {
+                sequence.prepare(amm, listener);
+            }
+            MergeResult result = fetch ? sequence.fetch(amm, listener) : fetched;
+            return merge ? sequence.merge(amm, listener, result) : result;
+        }
+    }
+}
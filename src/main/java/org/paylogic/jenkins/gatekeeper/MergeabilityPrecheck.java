@@ -0,0 +1,320 @@
+package org.paylogic.jenkins.gatekeeper;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.Project;
+import hudson.model.Queue;
+import hudson.model.TaskListener;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.QueueListener;
+import hudson.model.queue.QueueTaskDispatcher;
+import hudson.plugins.git.GitSCM;
+import hudson.plugins.mercurial.MercurialSCM;
+import hudson.scm.SCM;
+import hudson.util.LogTaskListener;
+import jenkins.model.Jenkins;
+import lombok.extern.java.Log;
+import org.paylogic.jenkins.upmerge.UpmergeBuilder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Checks in the background whether the feature branches of queued Gatekeeper builds merge into their target
+ * branch, and when the job upmerges, into every release branch the merge is upmerged into.
+ * Builds whose merge is known to conflict are kept in the queue instead of taking an executor only to fail,
+ * with the conflict as the reason they are waiting. Their merges are checked again periodically,
+ * so they start as soon as the conflict is resolved in the feature branch.
+ * Merges are checked in a repository next to the workspaces on the node of the last build.
+ * Merges which merge on their own are then checked against each other, see {@link ConflictMatrix}.
+ */
+@Log
+public class MergeabilityPrecheck {
+
+    public static long RECHECK_MINUTES = Long.getLong(MergeabilityPrecheck.class.getName() + ".recheckMinutes", 5);
+
+    private static final MergeabilityPrecheck INSTANCE = new MergeabilityPrecheck();
+
+    /**
+     * Branch the merge conflicts with per merge, an empty string when it merges.
+     */
+    private final Map<String, String> conflicts = new HashMap<String, String>();
+
+    /**
+     * Merges which are being checked, so a merge is not checked twice at the same time.
+     */
+    private final Set<String> running = new HashSet<String>();
+
+    /**
+     * Precheck repositories, so only one check runs per repository and node.
+     */
+    private final Map<String, Object> repositories = new HashMap<String, Object>();
+
+    /**
+     * Get the precheck bookkeeping shared by all builds on this Jenkins master.
+     * @return MergeabilityPrecheck instance
+     */
+    public static MergeabilityPrecheck getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Record the outcome of a check.
+     * @param merge : String key of the merge
+     * @param conflict : String branch the merge conflicts with, null when it merges
+     */
+    public synchronized void record(String merge, String conflict) {
+        conflicts.put(merge, conflict == null ? "" : conflict);
+    }
+
+    /**
+     * Get the branch a merge conflicts with.
+     * @param merge : String key of the merge
+     * @return String branch name, or null when the merge merges or was not checked yet
+     */
+    public synchronized String getConflict(String merge) {
+        String conflict = conflicts.get(merge);
+        return conflict == null || conflict.isEmpty() ? null : conflict;
+    }
+
+    /**
+     * Forget the outcomes of all merges but given ones, e.g. because their builds left the queue.
+     * @param merges : Set of String keys of the merges to keep
+     */
+    public synchronized void retain(Set<String> merges) {
+        conflicts.keySet().retainAll(merges);
+    }
+
+    private synchronized boolean start(String merge) {
+        return running.add(merge);
+    }
+
+    private synchronized void finish(String merge) {
+        running.remove(merge);
+    }
+
+    private synchronized Object getRepositoryLock(String repository) {
+        Object lock = repositories.get(repository);
+        if (lock == null) {
+            lock = new Object();
+            repositories.put(repository, lock);
+        }
+        return lock;
+    }
+
+    /**
+     * Get the key of the merge a queued build will do, if it's a Gatekeeper build which asks for a precheck.
+     * @param item : Queue.Item of the build
+     * @return String key of the merge, or null
+     */
+    static String getMerge(Queue.Item item) {
+        if (!(item.task instanceof Project)) {
+            return null;
+        }
+        GatekeeperMerge merge = ((Project<?, ?>) item.task).getBuildersList().get(GatekeeperMerge.class);
+        String featureBranch = FeaturePrefetcher.getParameter(item, "FEATURE_BRANCH");
+        String targetBranch = FeaturePrefetcher.getParameter(item, "TARGET_BRANCH");
+        if (merge == null || !merge.precheckMergeability || featureBranch.isEmpty() || targetBranch.isEmpty()) {
+            return null;
+        }
+        return ((Project<?, ?>) item.task).getFullName() + "#" + FeaturePrefetcher.getParameter(item, "REPO_SUBDIR")
+                + "#" + FeaturePrefetcher.getParameter(item, "REPO_URL") + "#" + featureBranch + "#" + targetBranch;
+    }
+
+    /**
+     * Get the precheck repository for a queued Gatekeeper build, on the node of the last build.
+     * @param item : Queue.Item of the build
+     * @return PrecheckRepository, or null when the repository or node is not known, or the node is offline
+     */
+    static PrecheckRepository getRepository(Queue.Item item) throws IOException, InterruptedException {
+        Project<?, ?> project = (Project<?, ?>) item.task;
+        SCM scm = FeaturePrefetcher.getScm(project, FeaturePrefetcher.getParameter(item, "REPO_SUBDIR"));
+        String url = null;
+        if (scm instanceof MercurialSCM) {
+            url = ((MercurialSCM) scm).getSource();
+        } else if (scm instanceof GitSCM && !((GitSCM) scm).getUserRemoteConfigs().isEmpty()) {
+            url = ((GitSCM) scm).getUserRemoteConfigs().get(0).getUrl();
+        }
+        Node node = project.getLastBuiltOn();
+        if (url == null || node == null) {
+            return null;
+        }
+        Computer computer = node.toComputer();
+        if (computer == null || computer.isOffline()) {
+            return null;
+        }
+        return new PrecheckRepository(scm, url, node, new LogTaskListener(log, Level.FINE));
+    }
+
+    /**
+     * Get the lock to hold while using a precheck repository, so only one check runs per repository.
+     */
+    static Object getLock(PrecheckRepository repository) {
+        return getInstance().getRepositoryLock(repository.getId());
+    }
+
+    /**
+     * Update a precheck repository, unless it was updated already during the current pass over the queue.
+     * Has to be called while holding the lock of the repository.
+     * @param repository : PrecheckRepository to update
+     * @param updated : Map of the branches per repository updated during the pass, null to always update
+     * @return List of String names of all branches
+     */
+    static List<String> update(PrecheckRepository repository, Map<String, List<String>> updated)
+            throws IOException, InterruptedException {
+        List<String> branches = updated == null ? null : updated.get(repository.getId());
+        if (branches == null) {
+            branches = repository.update();
+            if (updated != null) {
+                updated.put(repository.getId(), branches);
+            }
+        }
+        return branches;
+    }
+
+    /**
+     * Check the merge of given queued build, if it's a Gatekeeper build which asks for it.
+     * @param item : Queue.Item of the build
+     */
+    public static void check(Queue.Item item) {
+        check(item, null);
+    }
+
+    /**
+     * Check the merge of given queued build, as part of a pass over the queue.
+     * @param item : Queue.Item of the build
+     * @param updated : Map of the branches per repository updated during the pass, null to always update
+     */
+    static void check(Queue.Item item, Map<String, List<String>> updated) {
+        String merge = getMerge(item);
+        if (merge == null || !getInstance().start(merge)) {
+            return;
+        }
+        try {
+            PrecheckRepository repository = getRepository(item);
+            if (repository == null) {
+                return;
+            }
+            String featureBranch = FeaturePrefetcher.getParameter(item, "FEATURE_BRANCH");
+            boolean upmerge = ((Project<?, ?>) item.task).getBuildersList().get(UpmergeBuilder.class) != null;
+            long start = System.currentTimeMillis();
+            String conflict;
+            synchronized (getLock(repository)) {
+                List<String> branches = update(repository, updated);
+                String feature = repository.fetchFeature(FeaturePrefetcher.getParameter(item, "REPO_URL"),
+                        featureBranch);
+                conflict = repository.check(branches, feature, FeaturePrefetcher.getParameter(item, "TARGET_BRANCH"),
+                        upmerge);
+            }
+            getInstance().record(merge, conflict);
+            log.log(Level.INFO, "Checked merge of " + featureBranch + " for " + item.task.getFullDisplayName()
+                    + " in " + (System.currentTimeMillis() - start) + " ms"
+                    + (conflict == null ? ", it merges." : ", it conflicts with " + conflict + "."));
+        } catch (Exception e) {
+            // builds are never held back because of a failing check
+            getInstance().record(merge, null);
+            log.log(Level.WARNING, "Merge check for " + item.task.getFullDisplayName() + " failed.", e);
+        } finally {
+            getInstance().finish(merge);
+        }
+    }
+
+    /**
+     * Reason a build is kept in the queue.
+     */
+    public static class Conflicts extends CauseOfBlockage {
+        private final String branch;
+
+        public Conflicts(String branch) {
+            this.branch = branch;
+        }
+
+        @Override
+        public String getShortDescription() {
+            return "The feature branch conflicts with " + branch + ", waiting for the conflict to be resolved";
+        }
+    }
+
+    /**
+     * Keeps builds whose merge is known to conflict in the queue.
+     */
+    @Extension
+    public static class Dispatcher extends QueueTaskDispatcher {
+        @Override
+        public CauseOfBlockage canRun(Queue.Item item) {
+            String merge = getMerge(item);
+            String conflict = merge == null ? null : getInstance().getConflict(merge);
+            return conflict == null ? null : new Conflicts(conflict);
+        }
+    }
+
+    /**
+     * Starts checking when a build enters the queue, without blocking the queue.
+     */
+    @Extension
+    public static class QueueListenerImpl extends QueueListener {
+        @Override
+        public void onEnterWaiting(final Queue.WaitingItem item) {
+            Computer.threadPoolForRemoting.submit(new Runnable() {
+                public void run() {
+                    check(item);
+                }
+            });
+        }
+    }
+
+    /**
+     * Checks the merges of all queued builds again, and forgets the merges of builds which left the queue.
+     * Every precheck repository is updated once per pass, and all merges are checked against that state.
+     */
+    @Extension
+    public static class Recheck extends AsyncPeriodicWork {
+        public Recheck() {
+            super("Gatekeeper merge precheck");
+        }
+
+        @Override
+        public long getRecurrencePeriod() {
+            return TimeUnit.MINUTES.toMillis(RECHECK_MINUTES);
+        }
+
+        @Override
+        protected void execute(TaskListener listener) {
+            Set<String> queued = new HashSet<String>();
+            Map<String, List<String>> updated = new HashMap<String, List<String>>();
+            Map<String, List<Queue.Item>> groups = new LinkedHashMap<String, List<Queue.Item>>();
+            for (Queue.Item item : Jenkins.getInstance().getQueue().getItems()) {
+                String merge = getMerge(item);
+                if (merge != null) {
+                    queued.add(merge);
+                    check(item, updated);
+                    if (getInstance().getConflict(merge) == null) {
+                        String group = ConflictMatrix.getGroup(item);
+                        if (!groups.containsKey(group)) {
+                            groups.put(group, new ArrayList<Queue.Item>());
+                        }
+                        groups.get(group).add(item);
+                    }
+                }
+            }
+            getInstance().retain(queued);
+            // the queue lists the oldest items last
+            for (Map.Entry<String, List<Queue.Item>> group : groups.entrySet()) {
+                Collections.reverse(group.getValue());
+                ConflictMatrix.check(group.getKey(), group.getValue(), updated);
+            }
+            ConflictMatrix.getInstance().retain(groups.keySet());
+        }
+    }
+}
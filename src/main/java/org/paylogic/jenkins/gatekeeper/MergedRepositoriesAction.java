@@ -0,0 +1,19 @@
+package org.paylogic.jenkins.gatekeeper;
+
+import hudson.model.InvisibleAction;
+import lombok.Getter;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records the branches to push per repository when GatekeeperMerge merged all repositories of a MultiSCM build.
+ */
+public class MergedRepositoriesAction extends InvisibleAction {
+
+    /**
+     * Branches to push by repository url.
+     */
+    @Getter private final Map<String, List<String>> branchesToPush = new LinkedHashMap<String, List<String>>();
+}
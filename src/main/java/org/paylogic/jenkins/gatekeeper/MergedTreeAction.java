@@ -0,0 +1,18 @@
+package org.paylogic.jenkins.gatekeeper;
+
+import hudson.model.InvisibleAction;
+import lombok.Getter;
+
+/**
+ * Records which file tree a Gatekeeper merge produced, so builds testing the same tree can be recognized.
+ */
+public class MergedTreeAction extends InvisibleAction {
+
+    @Getter private final String treeId;
+    @Getter private final String targetBranch;
+
+    public MergedTreeAction(String treeId, String targetBranch) {
+        this.treeId = treeId;
+        this.targetBranch = targetBranch;
+    }
+}
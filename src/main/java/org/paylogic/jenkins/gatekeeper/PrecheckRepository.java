@@ -0,0 +1,310 @@
+package org.paylogic.jenkins.gatekeeper;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.plugins.git.GitSCM;
+import hudson.plugins.mercurial.HgExe;
+import hudson.plugins.mercurial.MercurialSCM;
+import hudson.scm.SCM;
+import hudson.util.ArgumentListBuilder;
+import org.paylogic.jenkins.upmerge.releasebranch.ReleaseBranch;
+import org.paylogic.jenkins.upmerge.releasebranch.ReleaseBranchImpl;
+import org.paylogic.jenkins.upmerge.releasebranch.ReleaseBranchInvalidException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Repository on a node, next to the workspaces, in which merges are checked without running a build.
+ * Git merges in memory with merge-tree (Git 2.38 or newer), so no working copy is needed.
+ * Mercurial can't merge in memory, so it merges in the working copy of this repository
+ * and strips the merges afterwards. Callers have to make sure only one update or check runs per repository,
+ * pairs of features of one repository can be checked in parallel.
+ */
+class PrecheckRepository {
+
+    public static int TIMEOUT = Integer.getInteger(PrecheckRepository.class.getName() + ".timeout", 30 * 60); // seconds
+
+    private final SCM scm;
+    private final String id;
+    private final Launcher launcher;
+    private final TaskListener listener;
+    private final String url;
+    private final FilePath directory;
+    private final ArgumentListBuilder base;
+
+    /**
+     * Commits made by Mercurial merges, which are stripped after the check.
+     */
+    private final List<String> merges = new ArrayList<String>();
+
+    PrecheckRepository(SCM scm, String url, Node node, TaskListener listener) throws IOException, InterruptedException {
+        FilePath root = node.getRootPath();
+        if (root == null) {
+            throw new IOException(node.getDisplayName() + " is offline.");
+        }
+        this.scm = scm;
+        this.id = node.getNodeName() + "#" + url;
+        this.url = url;
+        this.listener = listener;
+        this.launcher = node.createLauncher(listener);
+        this.directory = root.child("gatekeeper-precheck").child(Util.getDigestOf(url));
+        if (scm instanceof MercurialSCM) {
+            this.base = new HgExe((MercurialSCM) scm, launcher, node, listener, new EnvVars()).seed(false);
+        } else {
+            this.base = new ArgumentListBuilder(((GitSCM) scm).getGitExe(node, listener));
+        }
+    }
+
+    /**
+     * @return String identifying the repository on its node
+     */
+    String getId() {
+        return id;
+    }
+
+    private boolean isMercurial() {
+        return scm instanceof MercurialSCM;
+    }
+
+    /**
+     * Create the repository if needed, and get all changes of the remote.
+     * @return List of String names of all branches
+     */
+    List<String> update() throws IOException, InterruptedException {
+        if (isMercurial()) {
+            if (!directory.child(".hg").exists()) {
+                directory.mkdirs();
+                output(command("init"));
+            }
+            // exit code 1 means there were no changes
+            expect(command("pull", url), 0, 1);
+            return lines(output(command("branches", "-c", "-q")));
+        }
+        if (!directory.child("HEAD").exists()) {
+            directory.mkdirs();
+            output(command("init", "--bare"));
+        }
+        output(command("fetch", "--no-tags", "--prune", url, "+refs/heads/*:refs/heads/*"));
+        return lines(output(command("for-each-ref", "--format=%(refname:short)", "refs/heads")));
+    }
+
+    /**
+     * Get a feature branch.
+     * @param featureRemote : String repository with the feature branch, empty for the repository itself
+     * @param featureBranch : String name of the feature branch
+     * @return String id of the head of the feature branch
+     */
+    String fetchFeature(String featureRemote, String featureBranch) throws IOException, InterruptedException {
+        if (featureRemote.isEmpty()) {
+            featureRemote = url;
+        }
+        if (isMercurial()) {
+            expect(command("pull", "-b", featureBranch, featureRemote), 0, 1);
+            return output(command("log", "-r", featureBranch, "--template", "{node}"));
+        }
+        String featureRef = "refs/gatekeeper/precheck/" + featureBranch;
+        output(command("fetch", "--no-tags", featureRemote, "+refs/heads/" + featureBranch + ":" + featureRef));
+        String feature = output(command("rev-parse", featureRef));
+        // only the id is kept, gc prunes unreferenced objects after two weeks at the earliest
+        output(command("update-ref", "-d", featureRef));
+        return feature;
+    }
+
+    /**
+     * @param branch : String name of a branch
+     * @return String id of the head of the branch
+     */
+    String getHead(String branch) throws IOException, InterruptedException {
+        if (isMercurial()) {
+            return output(command("log", "-r", branch, "--template", "{node}"));
+        }
+        return output(command("rev-parse", branch(branch)));
+    }
+
+    /**
+     * Check whether a feature branch merges into the target branch, and the result into all release branches
+     * it would be upmerged into. The repository has to be updated first.
+     * @param branches : List of String names of all branches
+     * @param feature : String id of the head of the feature branch
+     * @param targetBranch : String name of the target branch
+     * @param upmerge : whether to check the upmerges as well
+     * @return String name of the first branch with conflicts, or null when everything merges
+     */
+    String check(List<String> branches, String feature, String targetBranch, boolean upmerge)
+            throws IOException, InterruptedException {
+        String merged = feature;
+        try {
+            for (String target : getTargets(targetBranch, branches, isMercurial() ? "default" : "master", upmerge)) {
+                // the merge result is merged into the next release, like the upmerge does
+                merged = merge(branch(target), merged);
+                if (merged == null) {
+                    return target;
+                }
+            }
+            return null;
+        } finally {
+            cleanUp();
+        }
+    }
+
+    /**
+     * Check whether two feature branches conflict with each other, by merging them into the target branch
+     * one after the other. Features which conflict with the target branch themselves don't count.
+     * Both features are merged into the same target revision, as Mercurial merges are committed
+     * on the target branch and would move it.
+     * Git checks run in memory and can run in parallel, Mercurial checks are run one at a time.
+     * @param target : String id of the head of the target branch, see getHead
+     * @return whether merging the second feature fails after merging the first one
+     */
+    boolean conflicts(String target, String first, String second) throws IOException, InterruptedException {
+        if (isMercurial()) {
+            synchronized (this) {
+                return checkConflicts(target, first, second);
+            }
+        }
+        return checkConflicts(target, first, second);
+    }
+
+    private boolean checkConflicts(String target, String first, String second)
+            throws IOException, InterruptedException {
+        try {
+            String merged = merge(target, first);
+            if (merged == null || merge(target, second) == null) {
+                return false;
+            }
+            return merge(merged, second) == null;
+        } finally {
+            cleanUp();
+        }
+    }
+
+    private String branch(String name) {
+        return isMercurial() ? name : "refs/heads/" + name;
+    }
+
+    /**
+     * Merge a revision into another one, without a workspace.
+     * @return String id of the merge, or null when the merge conflicts
+     */
+    private String merge(String target, String revision) throws IOException, InterruptedException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (isMercurial()) {
+            output(command("update", "-C", target));
+            int exitCode = run(command("merge", "--tool", "internal:merge", "-r", revision), out);
+            if (exitCode == 1) {
+                return null;
+            } else if (exitCode != 0) {
+                if (!out.toString().contains("nothing to merge") && !out.toString().contains("has no effect")) {
+                    throw new IOException("Merge check failed: " + out);
+                }
+                // already merged
+                return output(command("log", "-r", ".", "--template", "{node}"));
+            }
+            output(command("--config", "ui.username=Gatekeeper", "commit", "-m", "Gatekeeper precheck"));
+            String merge = output(command("log", "-r", ".", "--template", "{node}"));
+            merges.add(merge);
+            return merge;
+        }
+        int exitCode = run(command("merge-tree", "--write-tree", "--no-messages", target, revision), out);
+        if (exitCode == 1) {
+            return null;
+        } else if (exitCode != 0) {
+            throw new IOException("Merge check failed, it needs Git 2.38 or newer: " + out);
+        }
+        List<String> output = lines(out.toString());
+        if (output.isEmpty()) {
+            throw new IOException("Merge check gave no tree.");
+        }
+        // an unreferenced commit, which is pruned by Git eventually
+        return output(command("-c", "user.name=Gatekeeper", "-c", "user.email=gatekeeper@localhost",
+                "commit-tree", output.get(0), "-p", target, "-p", revision, "-m", "Gatekeeper precheck"));
+    }
+
+    /**
+     * Drop the Mercurial merges, strip also removes merges made on top of them.
+     */
+    private void cleanUp() throws IOException, InterruptedException {
+        if (!isMercurial()) {
+            return;
+        }
+        expect(command("update", "-C", "null"), 0, 255);
+        if (!merges.isEmpty()) {
+            ArgumentListBuilder strip = command("--config", "extensions.strip=", "strip", "--no-backup");
+            for (String merge : merges) {
+                strip.add("-r", merge);
+            }
+            merges.clear();
+            expect(strip, 0, 255);
+        }
+    }
+
+    /**
+     * Get the branches a merge into the target branch ends up in: the target branch,
+     * followed by the release branches it is upmerged into when asked for.
+     */
+    static List<String> getTargets(String targetBranch, List<String> branches, String defaultBranch, boolean upmerge) {
+        List<String> targets = new ArrayList<String>();
+        targets.add(targetBranch);
+        if (!upmerge) {
+            return targets;
+        }
+        try {
+            ReleaseBranch releaseBranch = new ReleaseBranchImpl(targetBranch, defaultBranch);
+            ReleaseBranch nextBranch = releaseBranch.copy();
+            nextBranch.next(branches);
+            while (!nextBranch.getName().equals(releaseBranch.getName())) {
+                targets.add(nextBranch.getName());
+                releaseBranch.next(branches);
+                nextBranch.next(branches);
+            }
+        } catch (ReleaseBranchInvalidException e) {
+            // no release branch, so nothing is upmerged
+        } catch (NoSuchElementException e) {
+            // there are no release branches
+        }
+        return targets;
+    }
+
+    private ArgumentListBuilder command(String... args) {
+        return base.clone().add(args);
+    }
+
+    private int run(ArgumentListBuilder args, ByteArrayOutputStream output) throws IOException, InterruptedException {
+        return launcher.launch().cmds(args).envs("HGPLAIN=true").pwd(directory).stdout(output)
+                .stderr(listener.getLogger()).start().joinWithTimeout(TIMEOUT, TimeUnit.SECONDS, listener);
+    }
+
+    private String expect(ArgumentListBuilder args, int... returnCodes) throws IOException, InterruptedException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        int exitCode = run(args, output);
+        for (int returnCode : returnCodes) {
+            if (exitCode == returnCode) {
+                return output.toString().trim();
+            }
+        }
+        throw new IOException("Failed to run " + args + ": " + output);
+    }
+
+    private String output(ArgumentListBuilder args) throws IOException, InterruptedException {
+        return expect(args, 0);
+    }
+
+    private static List<String> lines(String output) {
+        List<String> lines = new ArrayList<String>();
+        for (String line : output.split("\n")) {
+            if (!line.trim().isEmpty()) {
+                lines.add(line.trim());
+            }
+        }
+        return lines;
+    }
+}
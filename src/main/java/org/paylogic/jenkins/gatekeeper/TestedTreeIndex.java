@@ -0,0 +1,87 @@
+package org.paylogic.jenkins.gatekeeper;
+
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.Result;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Jenkins-global index of merged trees which were tested by a successful build, per job.
+ * Lets later build steps skip testing a tree which was already tested, e.g. by a retried build.
+ * The index is kept in memory and bounded, the least recently used tree is evicted first.
+ */
+public class TestedTreeIndex {
+
+    public static int MAX_TREES = Integer.getInteger(TestedTreeIndex.class.getName() + ".maxTrees", 1024);
+
+    private static final TestedTreeIndex INSTANCE = new TestedTreeIndex(MAX_TREES);
+
+    private final Map<String, String> builds;
+
+    public TestedTreeIndex(final int maxTrees) {
+        this.builds = new LinkedHashMap<String, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > maxTrees;
+            }
+        };
+    }
+
+    /**
+     * Get the index shared by all builds on this Jenkins master.
+     * @return TestedTreeIndex instance
+     */
+    public static TestedTreeIndex getInstance() {
+        return INSTANCE;
+    }
+
+    private static String key(String job, String treeId) {
+        return job + "#" + treeId;
+    }
+
+    /**
+     * Record that a successful build of given job tested given tree.
+     * @param job : String full name of the job
+     * @param treeId : String id of the merged tree
+     * @param build : String name of the build
+     */
+    public synchronized void record(String job, String treeId, String build) {
+        builds.put(key(job, treeId), build);
+    }
+
+    /**
+     * Get the successful build of given job which tested given tree.
+     * @param job : String full name of the job
+     * @param treeId : String id of the merged tree
+     * @return String name of the build, or null if the tree was not tested yet
+     */
+    public synchronized String getTestedBy(String job, String treeId) {
+        if (treeId == null) {
+            return null;
+        }
+        return builds.get(key(job, treeId));
+    }
+
+    /**
+     * Records successful builds which did a Gatekeeper merge.
+     */
+    @Extension
+    public static class RecordOnCompletion extends RunListener<AbstractBuild> {
+        public RecordOnCompletion() {
+            super(AbstractBuild.class);
+        }
+
+        @Override
+        public void onCompleted(AbstractBuild build, TaskListener listener) {
+            MergedTreeAction action = build.getAction(MergedTreeAction.class);
+            if (action != null && build.getResult() == Result.SUCCESS) {
+                getInstance().record(
+                        build.getParent().getFullName(), action.getTreeId(), MergeLockManager.getOwner(build));
+            }
+        }
+    }
+}
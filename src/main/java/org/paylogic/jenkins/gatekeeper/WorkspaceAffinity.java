@@ -0,0 +1,191 @@
+package org.paylogic.jenkins.gatekeeper;
+
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.Project;
+import hudson.model.Queue;
+import hudson.model.TaskListener;
+import hudson.model.WorkspaceListener;
+import hudson.model.listeners.RunListener;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.QueueTaskDispatcher;
+import jenkins.model.Jenkins;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Keeps Gatekeeper builds on nodes which have a warm workspace for the job, so they don't have to clone first.
+ * Nodes are ranked by when they last completed a build of the job: the more recent, the closer their
+ * repository is to the current head of the target branch. During the first half of the configured wait,
+ * a build only runs on the warmest online node, then on any warm node, and after the wait on any node.
+ * Only bookkeeping from completed builds is used, as dispatchers are asked while the queue is locked.
+ */
+public class WorkspaceAffinity {
+
+    private static final WorkspaceAffinity INSTANCE = new WorkspaceAffinity();
+
+    /**
+     * Completion time of the last build per node name, per job.
+     */
+    private final Map<String, Map<String, Long>> warmNodes = new HashMap<String, Map<String, Long>>();
+
+    /**
+     * Get the affinity bookkeeping shared by all builds on this Jenkins master.
+     * @return WorkspaceAffinity instance
+     */
+    public static WorkspaceAffinity getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Record that given node has a workspace of given job, up to date as of given time.
+     * @param job : String full name of the job
+     * @param node : String name of the node, empty for the master
+     * @param time : long completion time of the build
+     */
+    public synchronized void record(String job, String node, long time) {
+        Map<String, Long> nodes = warmNodes.get(job);
+        if (nodes == null) {
+            nodes = new HashMap<String, Long>();
+            warmNodes.put(job, nodes);
+        }
+        nodes.put(node, time);
+    }
+
+    /**
+     * Forget the workspaces of given job, e.g. because they were deleted.
+     * @param job : String full name of the job
+     */
+    public synchronized void forget(String job) {
+        warmNodes.remove(job);
+    }
+
+    /**
+     * Get the nodes with a workspace of given job, warmest first.
+     * @param job : String full name of the job
+     * @return List of node names
+     */
+    public synchronized List<String> getWarmNodes(String job) {
+        final Map<String, Long> nodes = warmNodes.get(job);
+        List<String> result = new ArrayList<String>();
+        if (nodes == null) {
+            return result;
+        }
+        result.addAll(nodes.keySet());
+        Collections.sort(result, new Comparator<String>() {
+            public int compare(String a, String b) {
+                return nodes.get(b).compareTo(nodes.get(a));
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Decide whether a build of given job may run on given node.
+     * @param job : String full name of the job
+     * @param node : String name of the node
+     * @param onlineNodes : Set of names of nodes which are online
+     * @param waitedMillis : how long the build is waiting for a node
+     * @param maxWaitMillis : how long to wait for a warm node at most
+     * @return whether the node is acceptable
+     */
+    public boolean canRun(String job, String node, Set<String> onlineNodes, long waitedMillis, long maxWaitMillis) {
+        if (waitedMillis >= maxWaitMillis) {
+            return true;
+        }
+        List<String> candidates = getWarmNodes(job);
+        candidates.retainAll(onlineNodes);
+        if (candidates.isEmpty()) {
+            // no warm workspace available anywhere, waiting doesn't help
+            return true;
+        }
+        if (waitedMillis < maxWaitMillis / 2) {
+            return candidates.get(0).equals(node);
+        }
+        return candidates.contains(node);
+    }
+
+    /**
+     * Reason a build is not started on a node without warm workspace.
+     */
+    public static class WaitingForWarmWorkspace extends CauseOfBlockage {
+        private final String node;
+
+        public WaitingForWarmWorkspace(String node) {
+            this.node = node;
+        }
+
+        @Override
+        public String getShortDescription() {
+            return "Waiting for a node with a warm workspace instead of " + (node.isEmpty() ? "master" : node);
+        }
+    }
+
+    /**
+     * Only lets Gatekeeper builds which ask for it wait for nodes with a warm workspace.
+     */
+    @Extension
+    public static class Dispatcher extends QueueTaskDispatcher {
+        @Override
+        public CauseOfBlockage canTake(Node node, Queue.BuildableItem item) {
+            if (!(item.task instanceof Project)) {
+                return null;
+            }
+            GatekeeperMerge merge = ((Project<?, ?>) item.task).getBuildersList().get(GatekeeperMerge.class);
+            if (merge == null || merge.workspaceAffinityWait <= 0) {
+                return null;
+            }
+            Set<String> onlineNodes = new TreeSet<String>();
+            for (Computer computer : Jenkins.getInstance().getComputers()) {
+                if (computer.isOnline() && computer.isAcceptingTasks()) {
+                    onlineNodes.add(computer.getName());
+                }
+            }
+            String job = ((AbstractProject<?, ?>) item.task).getFullName();
+            long waited = System.currentTimeMillis() - item.getInQueueSince();
+            if (getInstance().canRun(job, node.getNodeName(), onlineNodes, waited, merge.workspaceAffinityWait * 1000L)) {
+                return null;
+            }
+            return new WaitingForWarmWorkspace(node.getNodeName());
+        }
+    }
+
+    /**
+     * Records the node of every completed Gatekeeper build.
+     */
+    @Extension
+    public static class RecordOnCompletion extends RunListener<AbstractBuild> {
+        public RecordOnCompletion() {
+            super(AbstractBuild.class);
+        }
+
+        @Override
+        public void onCompleted(AbstractBuild build, TaskListener listener) {
+            Node node = build.getBuiltOn();
+            if (node != null && build.getAction(MergedTreeAction.class) != null) {
+                getInstance().record(build.getParent().getFullName(), node.getNodeName(), System.currentTimeMillis());
+            }
+        }
+    }
+
+    /**
+     * Forgets workspaces of jobs when they are wiped out.
+     */
+    @Extension
+    public static class ForgetOnDelete extends WorkspaceListener {
+        @Override
+        public void afterDelete(AbstractProject project) {
+            getInstance().forget(project.getFullName());
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package org.paylogic.jenkins.gatekeeper;
+
+import hudson.Extension;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.Project;
+import hudson.model.StreamBuildListener;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.slaves.WorkspaceList;
+import lombok.extern.java.Log;
+import org.paylogic.jenkins.advancedscm.AdvancedSCMManager;
+import org.paylogic.jenkins.advancedscm.SCMManagerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Runs repository maintenance in workspaces of Gatekeeper builds in the background after the build completed,
+ * so it doesn't add to build times. Every workspace is maintained at most once per interval.
+ * The workspace is leased for the whole run, like a build does, and the run is skipped when it's in use.
+ * The output, with the time spent per step, is written to gatekeeper-maintenance.log in the build directory.
+ */
+@Log
+public class WorkspaceMaintenance {
+
+    public static long INTERVAL_HOURS = Long.getLong(WorkspaceMaintenance.class.getName() + ".intervalHours", 6);
+
+    private static final WorkspaceMaintenance INSTANCE = new WorkspaceMaintenance();
+
+    /**
+     * Start time of the last maintenance per node and workspace.
+     */
+    private final Map<String, Long> lastRuns = new HashMap<String, Long>();
+
+    /**
+     * Get the maintenance bookkeeping shared by all builds on this Jenkins master.
+     * @return WorkspaceMaintenance instance
+     */
+    public static WorkspaceMaintenance getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Claim the maintenance of a workspace, if it was not maintained during the last interval.
+     * @param workspace : String node name and workspace path
+     * @param now : long current time
+     * @param intervalMillis : long minimal time between maintenance runs
+     * @return whether the caller should run the maintenance
+     */
+    public synchronized boolean claim(String workspace, long now, long intervalMillis) {
+        Long lastRun = lastRuns.get(workspace);
+        if (lastRun != null && now - lastRun < intervalMillis) {
+            return false;
+        }
+        lastRuns.put(workspace, now);
+        return true;
+    }
+
+    /**
+     * Forget the last claim of a workspace, so the next completed build maintains it again.
+     * @param workspace : String node name and workspace path
+     */
+    public synchronized void unclaim(String workspace) {
+        lastRuns.remove(workspace);
+    }
+
+    /**
+     * Maintain the repository of given build, unless a build is using its workspace.
+     * @param build : AbstractBuild which completed
+     * @param workspace : String node name and workspace path, as claimed
+     */
+    public static void maintain(AbstractBuild build, String workspace) {
+        long start = System.currentTimeMillis();
+        Computer computer = build.getBuiltOn() == null ? null : build.getBuiltOn().toComputer();
+        WorkspaceList.Lease lease = computer == null ? null
+                : computer.getWorkspaceList().tryAcquire(build.getWorkspace());
+        if (lease == null) {
+            log.log(Level.INFO, "Skipped maintenance of workspace of " + build.getFullDisplayName()
+                    + ", it is in use.");
+            getInstance().unclaim(workspace);
+            return;
+        }
+        BuildListener listener = null;
+        try {
+            listener = new StreamBuildListener(
+                    new FileOutputStream(new File(build.getRootDir(), "gatekeeper-maintenance.log")));
+            Launcher launcher = build.getBuiltOn().createLauncher(listener);
+            for (AdvancedSCMManager amm : SCMManagerFactory.getManagers(build, launcher, listener)) {
+                amm.maintain();
+            }
+            log.log(Level.INFO, "Maintained workspace of " + build.getFullDisplayName() + " in "
+                    + (System.currentTimeMillis() - start) + " ms.");
+        } catch (Exception e) {
+            log.log(Level.WARNING, "Maintenance of workspace of " + build.getFullDisplayName() + " failed.", e);
+        } finally {
+            if (listener != null) {
+                listener.getLogger().close();
+            }
+            lease.release();
+        }
+    }
+
+    /**
+     * Schedules maintenance after Gatekeeper builds of jobs which ask for it.
+     */
+    @Extension
+    public static class MaintainOnCompletion extends RunListener<AbstractBuild> {
+        public MaintainOnCompletion() {
+            super(AbstractBuild.class);
+        }
+
+        @Override
+        public void onCompleted(final AbstractBuild build, TaskListener listener) {
+            if (!(build.getParent() instanceof Project)) {
+                return;
+            }
+            GatekeeperMerge merge = ((Project<?, ?>) build.getParent()).getBuildersList().get(GatekeeperMerge.class);
+            Node node = build.getBuiltOn();
+            if (merge == null || !merge.maintainWorkspace || node == null || build.getWorkspace() == null) {
+                return;
+            }
+            Computer computer = node.toComputer();
+            if (computer == null || computer.isOffline()) {
+                return;
+            }
+            final String workspace = node.getNodeName() + ":" + build.getWorkspace().getRemote();
+            if (!getInstance().claim(workspace, System.currentTimeMillis(), TimeUnit.HOURS.toMillis(INTERVAL_HOURS))) {
+                return;
+            }
+            listener.getLogger().append("Scheduled maintenance of the workspace, see gatekeeper-maintenance.log.\n");
+            Computer.threadPoolForRemoting.submit(new Runnable() {
+                public void run() {
+                    maintain(build, workspace);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package org.paylogic.jenkins.upmerge;
+
+import hudson.Extension;
+import hudson.model.RootAction;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * REST endpoint answering which release branches contain a commit, from the ReleaseContainmentIndex:
+ * GET /release-containment/contains?repository=&lt;repository url&gt;&amp;commit=&lt;commit id&gt;
+ * The answer is JSON, with indexed false when the repository or commit is not indexed (yet).
+ */
+@Extension
+public class ReleaseContainmentApi implements RootAction {
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return null;
+    }
+
+    public String getUrlName() {
+        return "release-containment";
+    }
+
+    public void doContains(StaplerResponse rsp, @QueryParameter String repository, @QueryParameter String commit)
+            throws IOException {
+        Jenkins.getInstance().checkPermission(Jenkins.READ);
+        ReleaseContainmentIndex index = ReleaseContainmentIndex.find(repository);
+        List<String> branches = null;
+        String id = index != null && commit != null && !commit.isEmpty() ? index.resolve(commit) : null;
+        if (id != null) {
+            commit = id;
+            branches = index.getContaining(id);
+        }
+        JSONObject result = new JSONObject();
+        result.put("repository", repository);
+        result.put("commit", commit);
+        result.put("indexed", branches != null);
+        result.put("branches", branches != null ? JSONArray.fromObject(branches) : new JSONArray());
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().print(result.toString());
+    }
+}
@@ -0,0 +1,332 @@
+package org.paylogic.jenkins.upmerge;
+
+import hudson.Util;
+import hudson.model.TaskListener;
+import jenkins.model.Jenkins;
+import lombok.extern.java.Log;
+import org.apache.commons.lang.StringUtils;
+import org.paylogic.jenkins.advancedscm.AdvancedSCMManager;
+import org.paylogic.jenkins.advancedscm.exceptions.AdvancedSCMException;
+import org.paylogic.jenkins.upmerge.releasebranch.ReleaseBranchInvalidException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.logging.Level;
+
+/**
+ * Index of the release branches which contain a commit, per repository, kept on the master.
+ * Every commit gets a position, and every release branch a bitmap of the positions of the commits reachable
+ * from its head, so a query is a bit lookup per release branch. The index is updated incrementally after
+ * Gatekeeper pushes: only commits which are new since the indexed heads are listed in the workspace,
+ * and the bitmaps of new heads are built from the bitmaps of the indexed heads they contain.
+ * Indexes are stored in JENKINS_HOME/gatekeeper-release-index.
+ */
+@Log
+public class ReleaseContainmentIndex implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private static final Map<String, ReleaseContainmentIndex> INSTANCES = new HashMap<String, ReleaseContainmentIndex>();
+
+    /**
+     * Updates list commits in the workspace before adding them, which is done one update at a time,
+     * so a batch is never added before the batch with its parents.
+     */
+    private static final Object UPDATE_LOCK = new Object();
+
+    /**
+     * Position of every commit, sorted so abbreviated ids can be resolved.
+     */
+    private final TreeMap<String, Integer> positions = new TreeMap<String, Integer>();
+
+    /**
+     * Positions of the parents of the commit at every position.
+     */
+    private final List<int[]> parents = new ArrayList<int[]>();
+
+    /**
+     * Indexed head commit per release branch.
+     */
+    private final Map<String, String> heads = new TreeMap<String, String>();
+
+    /**
+     * Positions of the commits reachable from the head per release branch.
+     */
+    private final Map<String, BitSet> contained = new TreeMap<String, BitSet>();
+
+    private transient File file;
+
+    /**
+     * Get the index of given repository, shared by all builds on this Jenkins master.
+     * @param repositoryUrl : String url of the repository
+     * @return ReleaseContainmentIndex instance, empty when the repository was not indexed yet
+     */
+    public static synchronized ReleaseContainmentIndex getInstance(String repositoryUrl) {
+        ReleaseContainmentIndex index = INSTANCES.get(repositoryUrl);
+        if (index == null) {
+            File file = getFile(repositoryUrl);
+            index = load(file);
+            index.file = file;
+            INSTANCES.put(repositoryUrl, index);
+        }
+        return index;
+    }
+
+    /**
+     * Get the index of given repository, if it was indexed.
+     * @param repositoryUrl : String url of the repository
+     * @return ReleaseContainmentIndex instance, or null
+     */
+    public static synchronized ReleaseContainmentIndex find(String repositoryUrl) {
+        if (!INSTANCES.containsKey(repositoryUrl) && !getFile(repositoryUrl).isFile()) {
+            return null;
+        }
+        return getInstance(repositoryUrl);
+    }
+
+    private static File getFile(String repositoryUrl) {
+        return new File(new File(Jenkins.getInstance().getRootDir(), "gatekeeper-release-index"),
+                Util.getDigestOf(String.valueOf(repositoryUrl)) + ".ser");
+    }
+
+    private static ReleaseContainmentIndex load(File file) {
+        if (file.isFile()) {
+            try {
+                ObjectInputStream stream = new ObjectInputStream(new FileInputStream(file));
+                try {
+                    return (ReleaseContainmentIndex) stream.readObject();
+                } finally {
+                    stream.close();
+                }
+            } catch (Exception e) {
+                log.log(Level.WARNING, "Loading release containment index " + file + " failed, rebuilding it.", e);
+            }
+        }
+        return new ReleaseContainmentIndex();
+    }
+
+    /**
+     * Store the index, when it belongs to a repository.
+     */
+    public synchronized void save() throws IOException {
+        if (file == null) {
+            return;
+        }
+        file.getParentFile().mkdirs();
+        File temporary = new File(file.getPath() + ".tmp");
+        ObjectOutputStream stream = new ObjectOutputStream(new FileOutputStream(temporary));
+        try {
+            stream.writeObject(this);
+        } finally {
+            stream.close();
+        }
+        if (!temporary.renameTo(file)) {
+            file.delete();
+            if (!temporary.renameTo(file)) {
+                throw new IOException("Failed to replace " + file);
+            }
+        }
+    }
+
+    /**
+     * @return number of indexed commits
+     */
+    public synchronized int getSize() {
+        return parents.size();
+    }
+
+    /**
+     * Add commits to the index. Commits which are already indexed, and parents which are not, are skipped.
+     * @param commits : List of String commit ids followed by the ids of their parents, parents first,
+     *                as listed by AdvancedSCMManager.getCommits
+     */
+    public synchronized void add(List<String> commits) {
+        for (String line : commits) {
+            String[] ids = line.trim().split("\\s+");
+            if (ids[0].isEmpty() || positions.containsKey(ids[0])) {
+                continue;
+            }
+            List<Integer> known = new ArrayList<Integer>();
+            for (int i = 1; i < ids.length; i++) {
+                Integer parent = positions.get(ids[i]);
+                if (parent != null) {
+                    known.add(parent);
+                }
+            }
+            int[] commitParents = new int[known.size()];
+            for (int i = 0; i < commitParents.length; i++) {
+                commitParents[i] = known.get(i);
+            }
+            positions.put(ids[0], parents.size());
+            parents.add(commitParents);
+        }
+    }
+
+    /**
+     * Set the head of a release branch, and build the bitmap of the commits it contains.
+     * @param branch : String name of the release branch
+     * @param commit : String full id of the indexed head commit
+     * @return false when the commit is not indexed
+     */
+    public synchronized boolean setHead(String branch, String commit) {
+        Integer start = positions.get(commit);
+        if (start == null) {
+            return false;
+        }
+        Map<Integer, BitSet> indexed = new HashMap<Integer, BitSet>();
+        for (Map.Entry<String, String> head : heads.entrySet()) {
+            indexed.put(positions.get(head.getValue()), contained.get(head.getKey()));
+        }
+        BitSet bits = new BitSet();
+        Deque<Integer> stack = new ArrayDeque<Integer>();
+        stack.push(start);
+        while (!stack.isEmpty()) {
+            int position = stack.pop();
+            if (bits.get(position)) {
+                continue;
+            }
+            BitSet known = indexed.get(position);
+            if (known != null) {
+                // everything reachable from an indexed head is in its bitmap already
+                bits.or(known);
+                continue;
+            }
+            bits.set(position);
+            for (int parent : parents.get(position)) {
+                if (!bits.get(parent)) {
+                    stack.push(parent);
+                }
+            }
+        }
+        heads.put(branch, commit);
+        contained.put(branch, bits);
+        return true;
+    }
+
+    /**
+     * @return Map of indexed head commit per release branch
+     */
+    public synchronized Map<String, String> getHeads() {
+        return new TreeMap<String, String>(heads);
+    }
+
+    /**
+     * Resolve a commit id, which may be abbreviated.
+     * @param commit : String full or abbreviated commit id
+     * @return String full commit id, or null when it's not indexed or ambiguous
+     */
+    public synchronized String resolve(String commit) {
+        if (positions.containsKey(commit)) {
+            return commit;
+        }
+        String match = positions.ceilingKey(commit);
+        if (match == null || !match.startsWith(commit)) {
+            return null;
+        }
+        String next = positions.higherKey(match);
+        if (next != null && next.startsWith(commit)) {
+            return null;
+        }
+        return match;
+    }
+
+    /**
+     * Get the release branches which contain a commit.
+     * @param commit : String full or abbreviated commit id
+     * @return List of release branch names, or null when the commit is not indexed
+     */
+    public synchronized List<String> getContaining(String commit) {
+        String id = resolve(commit);
+        if (id == null) {
+            return null;
+        }
+        int position = positions.get(id);
+        List<String> branches = new ArrayList<String>();
+        for (Map.Entry<String, BitSet> entry : contained.entrySet()) {
+            if (entry.getValue().get(position)) {
+                branches.add(entry.getKey());
+            }
+        }
+        return branches;
+    }
+
+    /**
+     * Get the release branches which contain the indexed head of every release branch, as input for upmerges.
+     * @return Map of the branches containing it per indexed head commit
+     */
+    public synchronized Map<String, List<String>> getContainingHeads() {
+        Map<String, List<String>> result = new TreeMap<String, List<String>>();
+        for (String head : heads.values()) {
+            result.put(head, getContaining(head));
+        }
+        return result;
+    }
+
+    /**
+     * Index the release branches among given pushed branches. Failures are only logged, as the index
+     * is not needed for pushing.
+     * @param amm : AdvancedSCMManager of the workspace the branches were pushed from
+     * @param branches : String[] names of the pushed branches
+     */
+    public static void update(AdvancedSCMManager amm, String[] branches, TaskListener listener) {
+        try {
+            Map<String, String> pushed = new LinkedHashMap<String, String>();
+            for (String branch : branches) {
+                if (branch.isEmpty()) {
+                    continue;
+                }
+                try {
+                    amm.getReleaseBranch(branch);
+                } catch (ReleaseBranchInvalidException e) {
+                    continue;
+                }
+                pushed.put(branch, amm.getHeadId(branch));
+            }
+            if (pushed.isEmpty()) {
+                return;
+            }
+            ReleaseContainmentIndex index = getInstance(amm.getRepositoryUrl());
+            synchronized (UPDATE_LOCK) {
+                List<String> newHeads = new ArrayList<String>();
+                for (String head : pushed.values()) {
+                    if (index.resolve(head) == null) {
+                        newHeads.add(head);
+                    }
+                }
+                if (!newHeads.isEmpty()) {
+                    List<String> known = new ArrayList<String>(new TreeSet<String>(index.getHeads().values()));
+                    List<String> commits;
+                    try {
+                        commits = amm.getCommits(newHeads, known);
+                    } catch (AdvancedSCMException e) {
+                        // indexed heads can be gone, e.g. after a forced push
+                        commits = amm.getCommits(newHeads, new ArrayList<String>());
+                    }
+                    index.add(commits);
+                }
+                for (Map.Entry<String, String> head : pushed.entrySet()) {
+                    index.setHead(head.getKey(), head.getValue());
+                }
+                index.save();
+            }
+            listener.getLogger().append("Indexed release branches " + StringUtils.join(pushed.keySet(), ", ")
+                    + ", " + index.getSize() + " commits are indexed.\n");
+        } catch (Exception e) {
+            log.log(Level.WARNING, "Indexing release branches of " + amm.getRepositoryUrl() + " failed.", e);
+        }
+    }
+}
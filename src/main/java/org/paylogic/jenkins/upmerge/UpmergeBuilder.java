@@ -6,6 +6,7 @@ import hudson.Launcher;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.BuildListener;
+import hudson.model.TaskListener;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
 import hudson.util.FormValidation;
@@ -14,15 +15,19 @@ import net.sf.json.JSONObject;
 import org.apache.commons.lang.StringUtils;
 import org.jenkinsci.plugins.envinject.EnvInjectBuilderContributionAction;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 import org.paylogic.jenkins.LogMessageSearcher;
 import org.paylogic.jenkins.advancedscm.AdvancedSCMManager;
+import org.paylogic.jenkins.advancedscm.AgentSequence;
+import org.paylogic.jenkins.advancedscm.ResolutionStore;
 import org.paylogic.jenkins.advancedscm.SCMManagerFactory;
-import org.paylogic.jenkins.upmerge.releasebranch.ReleaseBranch;
+import org.paylogic.jenkins.advancedscm.StepContext;
 
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -36,11 +41,62 @@ public class UpmergeBuilder extends Builder {
 
     public final String commitUsername;
 
+    /**
+     * Paths to check out, one per line, empty to check out the whole tree.
+     */
+    public String sparseCheckoutPaths;
+
+    /**
+     * Paths to keep when cleaning the workspace, one per line, empty to remove all untracked and ignored files.
+     */
+    public String keepCleanPaths;
+
+    /**
+     * Run the SCM operations on the agent as one callable, instead of one remote call per command.
+     */
+    public boolean runOnAgent;
+
+    /**
+     * Push every upmerge as soon as it is committed, so a rerun resumes where a failed upmerge stopped.
+     * Without it, a failed upmerge pushes nothing.
+     */
+    public boolean pushEachStep;
+
+    /**
+     * Resolve conflicts which were resolved before the same way, with resolutions shared by all workspaces.
+     */
+    public boolean reuseResolutions;
+
     @DataBoundConstructor
     public UpmergeBuilder(String commitUsername) {
         this.commitUsername = commitUsername;
     }
 
+    @DataBoundSetter
+    public void setSparseCheckoutPaths(String sparseCheckoutPaths) {
+        this.sparseCheckoutPaths = sparseCheckoutPaths;
+    }
+
+    @DataBoundSetter
+    public void setKeepCleanPaths(String keepCleanPaths) {
+        this.keepCleanPaths = keepCleanPaths;
+    }
+
+    @DataBoundSetter
+    public void setRunOnAgent(boolean runOnAgent) {
+        this.runOnAgent = runOnAgent;
+    }
+
+    @DataBoundSetter
+    public void setPushEachStep(boolean pushEachStep) {
+        this.pushEachStep = pushEachStep;
+    }
+
+    @DataBoundSetter
+    public void setReuseResolutions(boolean reuseResolutions) {
+        this.reuseResolutions = reuseResolutions;
+    }
+
     /**
      * Here we should do upmerging.
      *
@@ -57,7 +113,7 @@ public class UpmergeBuilder extends Builder {
      * - In some post-build thingy, push these new branches if all went well.
      * - We SHOULD not have to do any cleanup actions, because workspace is updated every build.
      * - Rely on the FogbugzPlugin (dependency, see pom.xml) to do reporting of our upmerges.
-     * - Trigger new builds on all branches that have been merged.
+     * - Trigger new builds on all branches that have been merged, GatekeeperPush does this after pushing.
      */
     @Override
     public boolean perform(AbstractBuild build, Launcher launcher, BuildListener listener) {
@@ -76,8 +132,28 @@ public class UpmergeBuilder extends Builder {
     }
 
     private boolean doPerform(AbstractBuild build, Launcher launcher, BuildListener listener) throws Exception {
-        PrintStream l = listener.getLogger();
-        EnvVars envVars = build.getEnvironment(listener);
+        UpmergeResult result = upmerge(StepContext.of(build, launcher, listener));
+        if (result.getFailure() != null) {
+            // later build actions don't run, completed upmerges were only pushed with pushEachStep
+            throw result.getFailure();
+        }
+
+        // pass branches to push to later build actions
+        Map<String, String> vars = new HashMap<String, String>();
+        vars.put("BRANCHES_TO_PUSH", StringUtils.join(result.getBranchesToPush(), ","));
+        build.addAction(new EnvInjectBuilderContributionAction(vars));
+        return true;
+    }
+
+    /**
+     * Upmerge the target branch into the next release branches, with the parameters and workspace of given context.
+     * The build is not changed, so this can run as a step of any kind of build, also in another workspace.
+     * @param context : StepContext with FEATURE_BRANCH and TARGET_BRANCH in its environment
+     * @return UpmergeResult with the branches to push, and the failure when an upmerge failed
+     */
+    public UpmergeResult upmerge(StepContext context) throws Exception {
+        TaskListener listener = context.getListener();
+        EnvVars envVars = context.getEnvironment();
         String featureBranch = envVars.get("FEATURE_BRANCH", "");
         String targetBranch = envVars.get("TARGET_BRANCH", "");
         int usableCaseId = 0;
@@ -86,51 +162,38 @@ public class UpmergeBuilder extends Builder {
             usableCaseId = Integer.parseInt(givenCaseId);
         }
         /* Get branch name using AdvancedSCMManager, which we'll need later on as well. */
-        AdvancedSCMManager amm = SCMManagerFactory.getManager(build, launcher, listener);
-
-        /* Get a ReleaseBranch compatible object to bump release branch versions with. */
-        ReleaseBranch releaseBranch = amm.getReleaseBranch(targetBranch);
-        String releaseBranchName = releaseBranch.getName();
-        /*
-         Do actual upmerging in this loop, until we can't upmerge no more.
-         Will not attempt to Upmerge to branches that were not in the repo branch list.
-        */
-
-        // Pull to also get new releases created during tests.
-        amm.pull(null, targetBranch);
-        amm.update("");
-        amm.mergeHeads("[Jenkins Upmerging] Merged heads on " + releaseBranchName, commitUsername);
-
-        List<String> branchList = amm.getBranchNames(true);
-        List<String> branchesToPush = new ArrayList<String>();
-        branchesToPush.add(targetBranch);
-        if (branchList.contains(featureBranch)) {
-            // can be not a branch, but a bookmark
-            branchesToPush.add(featureBranch);
+        AdvancedSCMManager amm = SCMManagerFactory.getManager(context);
+        List<String> sparsePaths = new ArrayList<String>();
+        if (sparseCheckoutPaths != null && !sparseCheckoutPaths.trim().isEmpty()) {
+            sparsePaths.addAll(Arrays.asList(sparseCheckoutPaths.trim().split("\\s*\n\\s*")));
+        }
+        UpmergeSequence sequence = new UpmergeSequence(featureBranch, targetBranch, commitUsername, sparsePaths);
+        sequence.setPushEachStep(pushEachStep);
+        sequence.setReuseResolutions(reuseResolutions);
+        if (keepCleanPaths != null && !keepCleanPaths.trim().isEmpty()) {
+            sequence.setKeepPaths(Arrays.asList(keepCleanPaths.trim().split("\\s*\n\\s*")));
+        }
+        ReleaseContainmentIndex index = ReleaseContainmentIndex.find(amm.getRepositoryUrl());
+        if (index != null) {
+            sequence.setContainment(index.getContainingHeads());
         }
-        ReleaseBranch nextBranch = releaseBranch.copy();
-        nextBranch.next(branchList);
-        String nextBranchName = nextBranch.getName();
-        while(nextBranchName != releaseBranchName) {
-            amm.mergeWorkspaceWith(releaseBranchName, nextBranchName);
-            amm.commit("[Jenkins Upmerging] Merged " + releaseBranchName + " into " + nextBranchName,
-                    commitUsername);
-            amm.mergeHeads("[Jenkins Upmerging] Merged heads on " + nextBranchName, commitUsername);
-            LogMessageSearcher.logMessage(
-                    listener, "Upmerged " + releaseBranchName + " into " + nextBranchName + ".");
-            branchesToPush.add(nextBranchName);
-            // Bump releases
-            releaseBranch.next(branchList);
-            releaseBranchName = releaseBranch.getName();
-            nextBranch.next(branchList);
-            nextBranchName = nextBranch.getName();
+        if (reuseResolutions) {
+            ResolutionStore.download(amm);
         }
 
-        // pass branches to push to later build actions
-        Map<String, String> vars = new HashMap<String, String>();
-        vars.put("BRANCHES_TO_PUSH", StringUtils.join(branchesToPush, ","));
-        build.addAction(new EnvInjectBuilderContributionAction(vars));
-        return true;
+        UpmergeResult result;
+        try {
+            if (runOnAgent) {
+                result = AgentSequence.act(context.getWorkspace(), new UpmergeSequence.OnAgent(amm, listener, sequence));
+            } else {
+                result = sequence.run(amm, listener);
+            }
+        } finally {
+            if (reuseResolutions) {
+                ResolutionStore.upload(amm);
+            }
+        }
+        return result;
     }
 
     public DescriptorImpl getDescriptor() {
@@ -0,0 +1,31 @@
+package org.paylogic.jenkins.upmerge;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Result of an upmerge, which can be sent back from the agent the upmerge ran on.
+ * Also describes the progress of an upmerge which failed halfway.
+ */
+public class UpmergeResult implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Branches with upmerges to push, up to the failed step of a failed upmerge.
+     */
+    @Getter private final List<String> branchesToPush = new ArrayList<String>();
+
+    /**
+     * Release branches which were already upmerged into by an earlier run, and were skipped.
+     */
+    @Getter private final List<String> skipped = new ArrayList<String>();
+
+    /**
+     * Exception the upmerge failed with, null if it completed.
+     */
+    @Getter @Setter private Exception failure;
+}
@@ -0,0 +1,186 @@
+package org.paylogic.jenkins.upmerge;
+
+import hudson.model.TaskListener;
+import org.paylogic.jenkins.LogMessageSearcher;
+import org.paylogic.jenkins.advancedscm.AdvancedSCMManager;
+import org.paylogic.jenkins.advancedscm.AgentSequence;
+import org.paylogic.jenkins.advancedscm.AsyncSCMManager;
+import org.paylogic.jenkins.advancedscm.exceptions.AdvancedSCMException;
+import org.paylogic.jenkins.upmerge.releasebranch.ReleaseBranch;
+import org.paylogic.jenkins.upmerge.releasebranch.ReleaseBranchInvalidException;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * SCM operations of an upmerge. Can run on the master, issuing the commands one by one,
+ * or be sent to the agent owning the workspace to run there in one go.
+ */
+public class UpmergeSequence implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String featureBranch;
+    private final String targetBranch;
+    private final String commitUsername;
+    private final List<String> sparsePaths;
+    private boolean pushEachStep;
+    private boolean reuseResolutions;
+    private List<String> keepPaths = new ArrayList<String>();
+    private Map<String, List<String>> containment;
+
+    public UpmergeSequence(String featureBranch, String targetBranch, String commitUsername, List<String> sparsePaths) {
+        this.featureBranch = featureBranch;
+        this.targetBranch = targetBranch;
+        this.commitUsername = commitUsername;
+        this.sparsePaths = sparsePaths;
+    }
+
+    /**
+     * Push every upmerge right after it was committed, so a later run can resume after a failure
+     * even when it runs in another workspace.
+     */
+    public void setPushEachStep(boolean pushEachStep) {
+        this.pushEachStep = pushEachStep;
+    }
+
+    /**
+     * Resolve conflicts which were resolved before with the recorded resolutions.
+     */
+    public void setReuseResolutions(boolean reuseResolutions) {
+        this.reuseResolutions = reuseResolutions;
+    }
+
+    /**
+     * Keep given paths when the workspace is cleaned, e.g. ignored build caches.
+     * @param keepPaths : List of String paths relative to the repository root, which may use * and **
+     */
+    public void setKeepPaths(List<String> keepPaths) {
+        this.keepPaths = keepPaths;
+    }
+
+    /**
+     * Release branches containing indexed release branch heads, from the ReleaseContainmentIndex.
+     * Lets upmerges skip release branches which already contain the previous one without an ancestry query.
+     * @param containment : Map of the release branches containing it per indexed head commit
+     */
+    public void setContainment(Map<String, List<String>> containment) {
+        this.containment = containment;
+    }
+
+    /**
+     * Upmerge the target branch into all next release branches.
+     * Release branches which already contain the previous release are skipped. With pushEachStep the completed
+     * upmerges of a failed run are pushed, so a rerun resumes with the first release branch which was not
+     * upmerged into yet. Without it nothing is pushed, the next build cleans the workspace and starts over.
+     * @return UpmergeResult with the branches to push, and the failure when an upmerge failed
+     */
+    public UpmergeResult run(AdvancedSCMManager amm, TaskListener listener)
+            throws AdvancedSCMException, ReleaseBranchInvalidException, InterruptedException {
+        /* Get a ReleaseBranch compatible object to bump release branch versions with. */
+        ReleaseBranch releaseBranch = amm.getReleaseBranch(targetBranch);
+        String releaseBranchName = releaseBranch.getName();
+        /*
+         Do actual upmerging in this loop, until we can't upmerge no more.
+         Will not attempt to Upmerge to branches that were not in the repo branch list.
+        */
+
+        amm.setCleanKeepPaths(keepPaths);
+        // Pull to also get new releases created during tests, while the sparse checkout is set up.
+        AsyncSCMManager async = new AsyncSCMManager(amm);
+        try {
+            Future<Void> pull = async.pull(null, targetBranch);
+            if (sparsePaths != null && !sparsePaths.isEmpty()) {
+                amm.setSparseCheckout(sparsePaths);
+            }
+            if (reuseResolutions) {
+                amm.setReuseResolutions(true);
+            }
+            AsyncSCMManager.get(pull);
+        } finally {
+            async.shutdown();
+        }
+        amm.update("");
+        amm.mergeHeads("[Jenkins Upmerging] Merged heads on " + releaseBranchName, commitUsername);
+
+        List<String> branchList = amm.getBranchNames(true);
+        UpmergeResult result = new UpmergeResult();
+        List<String> branchesToPush = result.getBranchesToPush();
+        branchesToPush.add(targetBranch);
+        if (branchList.contains(featureBranch)) {
+            // can be not a branch, but a bookmark
+            branchesToPush.add(featureBranch);
+        }
+        ReleaseBranch nextBranch = releaseBranch.copy();
+        nextBranch.next(branchList);
+        String nextBranchName = nextBranch.getName();
+        try {
+            while(nextBranchName != releaseBranchName) {
+                if (isIndexedAncestor(amm, releaseBranchName, nextBranchName)
+                        || amm.isAncestor(releaseBranchName, nextBranchName)) {
+                    // checkpoint of an earlier run which pushed each step, or upmerged by hand
+                    listener.getLogger().append(releaseBranchName + " is already upmerged into "
+                            + nextBranchName + ", skipping.\n");
+                    result.getSkipped().add(nextBranchName);
+                } else {
+                    amm.mergeWorkspaceWith(releaseBranchName, nextBranchName);
+                    amm.commit("[Jenkins Upmerging] Merged " + releaseBranchName + " into " + nextBranchName,
+                            commitUsername);
+                    amm.mergeHeads("[Jenkins Upmerging] Merged heads on " + nextBranchName, commitUsername);
+                    LogMessageSearcher.logMessage(
+                            listener, "Upmerged " + releaseBranchName + " into " + nextBranchName + ".");
+                    if (pushEachStep) {
+                        List<String> pushed = new ArrayList<String>(branchesToPush);
+                        pushed.add(nextBranchName);
+                        amm.push(pushed.toArray(new String[pushed.size()]));
+                    }
+                }
+                branchesToPush.add(nextBranchName);
+                // Bump releases
+                releaseBranch.next(branchList);
+                releaseBranchName = releaseBranch.getName();
+                nextBranch.next(branchList);
+                nextBranchName = nextBranch.getName();
+            }
+        } catch (AdvancedSCMException e) {
+            listener.getLogger().append("Upmerge into " + nextBranchName + " failed, upmerges up to "
+                    + releaseBranchName + (pushEachStep ? " are pushed.\n" : " are not pushed.\n"));
+            result.setFailure(e);
+        }
+        return result;
+    }
+
+    /**
+     * Check with the index whether the next release branch contains the local head of the release branch.
+     * Only heads which were indexed are known, local commits are not.
+     */
+    private boolean isIndexedAncestor(AdvancedSCMManager amm, String releaseBranchName, String nextBranchName)
+            throws AdvancedSCMException {
+        if (containment == null || containment.isEmpty()) {
+            return false;
+        }
+        List<String> branches = containment.get(amm.getHeadId(releaseBranchName));
+        return branches != null && branches.contains(nextBranchName);
+    }
+
+    /**
+     * Runs the upmerge on the agent.
+     */
+    public static class OnAgent extends AgentSequence<UpmergeResult> {
+        private static final long serialVersionUID = 1L;
+
+        private final UpmergeSequence sequence;
+
+        public OnAgent(AdvancedSCMManager amm, TaskListener listener, UpmergeSequence sequence) {
+            super(amm, listener);
+            this.sequence = sequence;
+        }
+
+        @Override
+        protected UpmergeResult run(AdvancedSCMManager amm, TaskListener listener) throws Exception {
+            return sequence.run(amm, listener);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package org.paylogic.jenkins.advancedscm;
+
+import hudson.FilePath;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class BranchCacheTest {
+
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    private List<Branch> branches(String... names) {
+        List<Branch> list = new ArrayList<Branch>();
+        for (String name : names) {
+            list.add(new Branch(name, null, null));
+        }
+        return list;
+    }
+
+    @Test
+    public void testListingIsOnlyReturnedForSameState() throws Exception {
+        BranchCache cache = new BranchCache(2, 2);
+        cache.put("repo", "heads1", false, branches("default", "r1336"));
+
+        assertEquals(2, cache.get("repo", "heads1", false).size());
+        assertNull(cache.get("repo", "heads1", true));
+        assertNull(cache.get("repo", "heads2", false));
+
+        // new state replaces the old listings
+        cache.put("repo", "heads2", true, branches("default"));
+        assertNull(cache.get("repo", "heads1", false));
+        assertEquals(1, cache.get("repo", "heads2", true).size());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedRepositoryIsEvicted() throws Exception {
+        BranchCache cache = new BranchCache(2, 2);
+        cache.put("repo1", "state", false, branches("default"));
+        cache.put("repo2", "state", false, branches("default"));
+        cache.get("repo1", "state", false);
+        cache.put("repo3", "state", false, branches("default"));
+
+        assertEquals(2, cache.size());
+        assertNotNull(cache.get("repo1", "state", false));
+        assertNull(cache.get("repo2", "state", false));
+        assertNotNull(cache.get("repo3", "state", false));
+    }
+
+    @Test
+    public void testSharedListingsAreKeptPerState() throws Exception {
+        BranchCache cache = new BranchCache(2, 2);
+        cache.putShared("url", "state1", false, branches("default", "r1336"));
+        cache.putShared("url", "state2", false, branches("default"));
+
+        // jobs at different states of the repository don't replace each other's listings
+        assertEquals(2, cache.getShared("url", "state1", false).size());
+        assertEquals(1, cache.getShared("url", "state2", false).size());
+        assertNull(cache.getShared("other", "state1", false));
+        assertNull(cache.getShared("url", "state1", true));
+        assertEquals(2, cache.sharedSize());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testRemoteRefsAreReadFromLooseAndPackedRefs() throws Exception {
+        FilePath repository = new FilePath(tmp.getRoot());
+        repository.child(".git/packed-refs").write("# pack-refs with: peeled fully-peeled\n"
+                + "1111111111111111111111111111111111111111 refs/remotes/origin/default\n"
+                + "2222222222222222222222222222222222222222 refs/remotes/origin/r1336\n"
+                + "3333333333333333333333333333333333333333 refs/tags/v1\n"
+                + "^4444444444444444444444444444444444444444\n", "UTF-8");
+        repository.child(".git/refs/remotes/origin/r1336").write("5555555555555555555555555555555555555555\n", "UTF-8");
+        repository.child(".git/refs/remotes/origin/HEAD").write("ref: refs/remotes/origin/default\n", "UTF-8");
+        repository.child(".git/refs/remotes/fork/c3").write("6666666666666666666666666666666666666666\n", "UTF-8");
+
+        Map<String, String> refs = BranchCache.readRemoteRefs(repository);
+        assertEquals(4, refs.size());
+        assertEquals("1111111111111111111111111111111111111111", refs.get("refs/remotes/origin/default"));
+        assertEquals("1111111111111111111111111111111111111111", refs.get("refs/remotes/origin/HEAD"));
+        assertEquals("5555555555555555555555555555555555555555", refs.get("refs/remotes/origin/r1336"));
+        assertEquals("6666666666666666666666666666666666666666", refs.get("refs/remotes/fork/c3"));
+    }
+
+    @Test
+    public void testStateChangesWithRewrittenRef() throws Exception {
+        FilePath repository = new FilePath(tmp.getRoot());
+        FilePath ref = repository.child(".git/refs/remotes/origin/r1336");
+        ref.write("1111111111111111111111111111111111111111\n", "UTF-8");
+        String state = BranchCache.getState(repository, ".git/packed-refs", ".git/refs/remotes");
+        assertEquals(state, BranchCache.getState(repository, ".git/packed-refs", ".git/refs/remotes"));
+
+        // same size and possibly the same modification time
+        ref.write("2222222222222222222222222222222222222222\n", "UTF-8");
+        assertFalse(state.equals(BranchCache.getState(repository, ".git/packed-refs", ".git/refs/remotes")));
+    }
+}
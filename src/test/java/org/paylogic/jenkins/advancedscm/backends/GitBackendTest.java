@@ -0,0 +1,33 @@
+package org.paylogic.jenkins.advancedscm.backends;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class GitBackendTest {
+
+    @Test
+    public void testNamespaceIsAlwaysFetched() {
+        List<String> refspecs = GitBackend.getRefspecs("origin", Arrays.<String>asList());
+        assertEquals(GitBackend.FETCHED_NAMESPACE.size(), refspecs.size());
+        assertEquals("+refs/heads/r1*:refs/remotes/origin/r1*", refspecs.get(1));
+    }
+
+    @Test
+    public void testBranchesAreFetchedOnce() {
+        List<String> refspecs = GitBackend.getRefspecs("origin", Arrays.asList("main", "r1420", "feature/x", "main"));
+        assertEquals(GitBackend.FETCHED_NAMESPACE.size() + 2, refspecs.size());
+        assertEquals("+refs/heads/main*:refs/remotes/origin/main*", refspecs.get(refspecs.size() - 2));
+        assertEquals("+refs/heads/feature/x*:refs/remotes/origin/feature/x*", refspecs.get(refspecs.size() - 1));
+    }
+
+    @Test
+    public void testAllRefspecsAreGlobs() {
+        for (String refspec : GitBackend.getRefspecs("origin", Arrays.asList("master", "feature/x"))) {
+            assertEquals(refspec, 2, refspec.split("\\*", -1).length - 1);
+        }
+    }
+}
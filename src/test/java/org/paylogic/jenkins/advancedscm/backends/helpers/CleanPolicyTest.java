@@ -0,0 +1,25 @@
+package org.paylogic.jenkins.advancedscm.backends.helpers;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class CleanPolicyTest {
+
+    private static final List<String> KEEP_PATHS = Arrays.asList(".gradle/", "/build/cache", "**/node_modules", "", "../x");
+
+    @Test
+    public void testGitExcludesAreAnchored() {
+        assertEquals(Arrays.asList("/.gradle", "/build/cache", "**/node_modules"),
+                CleanPolicy.getGitExcludes(KEEP_PATHS));
+    }
+
+    @Test
+    public void testHgExcludesUseGlobsOnlyForWildcards() {
+        assertEquals(Arrays.asList("path:.gradle", "path:build/cache", "glob:**/node_modules"),
+                CleanPolicy.getHgExcludes(KEEP_PATHS));
+    }
+}
@@ -0,0 +1,44 @@
+package org.paylogic.jenkins.advancedscm.backends.helpers;
+
+import hudson.FilePath;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class RecordedResolutionsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final String CONFLICTED =
+            "a\n<<<<<<< working copy: 1\nb\n=======\nc\n>>>>>>> merge rev: 2\nd\n";
+
+    @Test
+    public void testRecordedResolutionIsReused() throws Exception {
+        RecordedResolutions resolutions = new RecordedResolutions(new FilePath(folder.newFolder()));
+        assertNull(resolutions.resolve(CONFLICTED));
+
+        assertEquals(1, resolutions.record(CONFLICTED, "a\nb\nc\nd\n"));
+        // same conflict in another version of the file, and merged the other way around
+        assertEquals("x\nb\nc\ny\n", resolutions.resolve(
+                "x\n<<<<<<< working copy: 3\nc\n=======\nb\n>>>>>>> merge rev: 4\ny\n"));
+    }
+
+    @Test
+    public void testUnmatchedResolutionIsNotRecorded() throws Exception {
+        RecordedResolutions resolutions = new RecordedResolutions(new FilePath(folder.newFolder()));
+        assertEquals(0, resolutions.record(CONFLICTED, "a\nb\nc\nchanged\n"));
+        assertNull(resolutions.resolve(CONFLICTED));
+    }
+
+    @Test
+    public void testFileIsOnlyResolvedWhenAllConflictsAreKnown() throws Exception {
+        RecordedResolutions resolutions = new RecordedResolutions(new FilePath(folder.newFolder()));
+        resolutions.record(CONFLICTED, "a\nc\nd\n");
+        assertNull(resolutions.resolve(CONFLICTED + "<<<<<<< working copy: 1\ne\n=======\nf\n>>>>>>> merge rev: 2\n"));
+        assertEquals("a\nc\nd\n", resolutions.resolve(CONFLICTED));
+    }
+}
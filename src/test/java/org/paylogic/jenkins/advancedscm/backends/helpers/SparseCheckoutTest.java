@@ -0,0 +1,31 @@
+package org.paylogic.jenkins.advancedscm.backends.helpers;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SparseCheckoutTest {
+
+    private static final List<String> SPARSE = Arrays.asList("/release.txt", "src/app/", "docs/*.rst");
+
+    @Test
+    public void testPathsUnderSparsePathsAreInside() {
+        assertTrue(SparseCheckout.contains(SPARSE, "release.txt"));
+        assertTrue(SparseCheckout.contains(SPARSE, "src/app"));
+        assertTrue(SparseCheckout.contains(SPARSE, "src/app/main.py"));
+        assertTrue(SparseCheckout.contains(SPARSE, "docs/index.rst"));
+    }
+
+    @Test
+    public void testOtherPathsAreOutside() {
+        assertFalse(SparseCheckout.contains(SPARSE, "src/application.py"));
+        assertFalse(SparseCheckout.contains(SPARSE, "docs/index.txt"));
+        assertEquals(Arrays.asList("lib/util.py"),
+                SparseCheckout.getOutside(SPARSE, Arrays.asList("src/app/main.py", "lib/util.py")));
+    }
+}
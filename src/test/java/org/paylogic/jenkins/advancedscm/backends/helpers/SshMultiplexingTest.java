@@ -0,0 +1,33 @@
+package org.paylogic.jenkins.advancedscm.backends.helpers;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SshMultiplexingTest {
+
+    @Test
+    public void testOpenSshIsRecognized() {
+        assertTrue(SshMultiplexing.isOpenSsh("ssh"));
+        assertTrue(SshMultiplexing.isOpenSsh("/usr/bin/ssh -i key"));
+        assertTrue(SshMultiplexing.isOpenSsh("\"/usr/bin/ssh\" -C"));
+        assertFalse(SshMultiplexing.isOpenSsh("plink -batch"));
+        assertFalse(SshMultiplexing.isOpenSsh("/opt/ssh-wrapper"));
+    }
+
+    @Test
+    public void testOptionsAreAppended() {
+        assertEquals("ssh -i key -o ControlMaster=auto -o ControlPath=/tmp/socket-%C -o ControlPersist="
+                + SshMultiplexing.CONTROL_PERSIST, SshMultiplexing.addOptions(" ssh -i key ", "/tmp/socket-%C"));
+    }
+
+    @Test
+    public void testSocketPrefixIsShortAndPerBuild() {
+        String prefix = SshMultiplexing.getSocketPrefix("folder/a-very-long-job-name-for-a-repository#1234");
+        assertEquals(13, prefix.length());
+        assertEquals(prefix, SshMultiplexing.getSocketPrefix("folder/a-very-long-job-name-for-a-repository#1234"));
+        assertFalse(prefix.equals(SshMultiplexing.getSocketPrefix("folder/a-very-long-job-name-for-a-repository#1235")));
+    }
+}
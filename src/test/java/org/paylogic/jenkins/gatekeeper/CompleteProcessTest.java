@@ -1,21 +1,30 @@
 package org.paylogic.jenkins.gatekeeper;
 
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.FreeStyleBuild;
 import hudson.model.FreeStyleProject;
 import hudson.model.ParameterValue;
 import hudson.model.ParametersAction;
+import hudson.model.Result;
 import hudson.model.StringParameterValue;
+import hudson.model.queue.QueueTaskFuture;
 import hudson.plugins.git.BranchSpec;
 import hudson.plugins.git.GitSCM;
 import hudson.plugins.git.UserRemoteConfig;
 import hudson.plugins.mercurial.MercurialSCM;
 import lombok.extern.java.Log;
 import org.apache.commons.io.IOUtils;
+import org.jenkinsci.plugins.gitclient.CliGitAPIImpl;
 import org.jenkinsci.plugins.gitclient.GitClient;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestBuilder;
+import org.paylogic.jenkins.ABuildCause;
 import org.paylogic.jenkins.advancedscm.GitRule;
 import org.paylogic.jenkins.advancedscm.MercurialRule;
 import org.paylogic.jenkins.upmerge.UpmergeBuilder;
@@ -23,6 +32,7 @@ import org.paylogic.jenkins.upmerge.UpmergeBuilder;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileReader;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -455,4 +465,284 @@ public class CompleteProcessTest {
         assert !g.searchLog(repo, "[Jenkins Upmerging] Merged r1336 into r1338").isEmpty();
     }
 
+    @Test
+    public void testMergeWaitingForLockPushesOnNewTargetGit() throws Exception {
+        /*
+         * So:
+         * set up a repo with 1 release and 1 feature branch
+         * let another build hold the merge lock on the release branch
+         * start the build, and push to the release branch while it waits for the lock
+         * assert the build merges into the pushed release branch, so its own push succeeds
+         */
+        FreeStyleProject p = j.createFreeStyleProject();
+        List<UserRemoteConfig> remotes = new ArrayList<UserRemoteConfig>();
+        remotes.add(new UserRemoteConfig(repo.getPath(), "origin", "master", null));
+        List<BranchSpec> branches = new ArrayList<BranchSpec>();
+        branches.add(new BranchSpec("master"));
+        p.setScm(new GitSCM(remotes, branches, false, null, null, null, null));
+
+        GitClient client = g.gitClient(repo);
+        client.init();
+        g.allowPush(client);
+        g.touchAndCommit(repo, "base");
+        client.checkout().branch("r1336").execute();
+        g.touchAndCommit(repo, "r1336");
+        client.checkout().branch("c3").execute();
+        g.touchAndCommit(repo, "c3");
+
+        GatekeeperMerge mergeBuilder = new GatekeeperMerge("JenkinsTestRunner <test@runner.com>", null, null);
+        mergeBuilder.setMergeLockTimeout(5);
+        p.getBuildersList().add(mergeBuilder);
+        p.getBuildersList().add(new GatekeeperPush());
+
+        ArrayList<ParameterValue> parameters = new ArrayList<ParameterValue>();
+        parameters.add(new StringParameterValue("TARGET_BRANCH", "r1336"));
+        parameters.add(new StringParameterValue("ORIGINAL_BRANCH", "r1336"));
+        parameters.add(new StringParameterValue("FEATURE_BRANCH", "c3"));
+
+        MergeLockManager locks = MergeLockManager.getInstance();
+        locks.acquire(repo.getPath(), "r1336", "other#1", 1000);
+        QueueTaskFuture<FreeStyleBuild> build = p.scheduleBuild2(
+                0, new ABuildCause(), new ParametersAction(parameters));
+        while (locks.getQueueDepth(repo.getPath(), "r1336") < 2) {
+            Thread.sleep(100);
+        }
+
+        // the build holding the lock pushes, after the waiting build checked out the release branch
+        client.checkout().ref("r1336").execute();
+        g.touchAndCommit(repo, "other");
+        client.checkout().ref("c3").execute();
+        locks.releaseAll("other#1");
+
+        j.assertBuildStatusSuccess(build.get());
+        client.checkout().ref("r1336").execute();
+        client.clean();
+        assert new File(repo, "c3").exists();
+        assert new File(repo, "other").exists();
+        assert !g.searchLog(repo, "[Jenkins Integration Merge] Merged c3 into r1336").isEmpty();
+    }
+
+    @Test
+    public void testPushIsRetriedAfterRemotePushGit() throws Exception {
+        /*
+         * So:
+         * set up a repo with 1 release and 1 feature branch
+         * push to the release branch after the merge, while the build is testing
+         * run the push with retries, without a commit user name of its own
+         * assert the remote head is merged and pushed with the user of the merge step
+         */
+        FreeStyleProject p = j.createFreeStyleProject();
+        List<UserRemoteConfig> remotes = new ArrayList<UserRemoteConfig>();
+        remotes.add(new UserRemoteConfig(repo.getPath(), "origin", "master", null));
+        List<BranchSpec> branches = new ArrayList<BranchSpec>();
+        branches.add(new BranchSpec("master"));
+        p.setScm(new GitSCM(remotes, branches, false, null, null, null, null));
+
+        final GitClient client = g.gitClient(repo);
+        client.init();
+        g.allowPush(client);
+        g.touchAndCommit(repo, "base");
+        client.checkout().branch("r1336").execute();
+        g.touchAndCommit(repo, "r1336");
+        client.checkout().branch("c3").execute();
+        g.touchAndCommit(repo, "c3");
+
+        GatekeeperPush pushBuilder = new GatekeeperPush();
+        pushBuilder.setPushRetries(1);
+        pushBuilder.setRetryDelay(0);
+        p.getBuildersList().add(new GatekeeperMerge("JenkinsTestRunner <test@runner.com>", null, null));
+        p.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener)
+                    throws InterruptedException, IOException {
+                try {
+                    client.checkout().ref("r1336").execute();
+                    g.touchAndCommit(repo, "other");
+                    client.checkout().ref("c3").execute();
+                } catch (Exception e) {
+                    throw new IOException(e);
+                }
+                return true;
+            }
+        });
+        p.getBuildersList().add(pushBuilder);
+
+        ArrayList<ParameterValue> parameters = new ArrayList<ParameterValue>();
+        parameters.add(new StringParameterValue("TARGET_BRANCH", "r1336"));
+        parameters.add(new StringParameterValue("ORIGINAL_BRANCH", "r1336"));
+        parameters.add(new StringParameterValue("FEATURE_BRANCH", "c3"));
+        g.buildAndCheck(p, "c3", new ParametersAction(parameters));
+
+        client.checkout().ref("r1336").execute();
+        client.clean();
+        assert new File(repo, "c3").exists();
+        assert new File(repo, "other").exists();
+        assert !g.searchLog(repo, "[Jenkins Integration Merge] Merged remote heads on r1336").isEmpty();
+        assert !g.searchLog(repo, "JenkinsTestRunner").isEmpty();
+    }
+
+    @Test
+    public void testPushIsNotRetriedWhenRemoteMadeTheSameChangesGit() throws Exception {
+        /*
+         * So:
+         * set up a repo with 1 release and 1 feature branch
+         * push the same file as the feature branch adds to the release branch, while the build is testing
+         * run the push with retries
+         * assert the clean merge of the remote head is not pushed, as it drops the tested changes
+         */
+        FreeStyleProject p = j.createFreeStyleProject();
+        List<UserRemoteConfig> remotes = new ArrayList<UserRemoteConfig>();
+        remotes.add(new UserRemoteConfig(repo.getPath(), "origin", "master", null));
+        List<BranchSpec> branches = new ArrayList<BranchSpec>();
+        branches.add(new BranchSpec("master"));
+        p.setScm(new GitSCM(remotes, branches, false, null, null, null, null));
+
+        final GitClient client = g.gitClient(repo);
+        client.init();
+        g.allowPush(client);
+        g.touchAndCommit(repo, "base");
+        client.checkout().branch("r1336").execute();
+        g.touchAndCommit(repo, "r1336");
+        client.checkout().branch("c3").execute();
+        g.touchAndCommit(repo, "c3");
+
+        GatekeeperPush pushBuilder = new GatekeeperPush();
+        pushBuilder.setPushRetries(1);
+        pushBuilder.setRetryDelay(0);
+        p.getBuildersList().add(new GatekeeperMerge("JenkinsTestRunner <test@runner.com>", null, null));
+        p.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener)
+                    throws InterruptedException, IOException {
+                try {
+                    client.checkout().ref("r1336").execute();
+                    g.touchAndCommit(repo, "c3");
+                    client.checkout().ref("c3").execute();
+                } catch (Exception e) {
+                    throw new IOException(e);
+                }
+                return true;
+            }
+        });
+        p.getBuildersList().add(pushBuilder);
+
+        ArrayList<ParameterValue> parameters = new ArrayList<ParameterValue>();
+        parameters.add(new StringParameterValue("TARGET_BRANCH", "r1336"));
+        parameters.add(new StringParameterValue("ORIGINAL_BRANCH", "r1336"));
+        parameters.add(new StringParameterValue("FEATURE_BRANCH", "c3"));
+        FreeStyleBuild b = p.scheduleBuild2(0, new ABuildCause(), new ParametersAction(parameters)).get();
+
+        j.assertBuildStatus(Result.FAILURE, b);
+        j.assertLogContains("changes the tested changes", b);
+    }
+
+    @Test
+    public void testFailedUpmergeResumesOnRerunGit() throws Exception {
+        /*
+         * So:
+         * set up a repo with 3 releases, where the last one conflicts with the one before
+         * run an upmerge which pushes each step, it fails at the last release
+         * resolve the conflict on the remote, and rerun the upmerge in a fresh workspace
+         * assert the rerun skips the pushed upmerge and completes the rest
+         */
+        List<UserRemoteConfig> remotes = new ArrayList<UserRemoteConfig>();
+        remotes.add(new UserRemoteConfig(repo.getPath(), "origin", "master", null));
+        List<BranchSpec> branches = new ArrayList<BranchSpec>();
+        branches.add(new BranchSpec("master"));
+
+        GitClient client = g.gitClient(repo);
+        client.init();
+        g.allowPush(client);
+        g.touchAndCommit(repo, "base");
+        client.checkout().branch("r1336").execute();
+        g.touchAndCommit(repo, "r1336");
+        client.checkout().branch("r1338").execute();
+        g.touchAndCommit(repo, "r1338");
+        client.checkout().branch("r1340").execute();
+        g.touchAndCommit(repo, "r1340");
+        g.touchAndCommit(repo, "conflict");
+        g.touchAndCommit(repo, "conflict");
+        client.checkout().ref("r1338").execute();
+        g.touchAndCommit(repo, "conflict");
+        client.checkout().ref("r1336").execute();
+        g.touchAndCommit(repo, "fix");
+        client.checkout().branch("work").execute();
+
+        ArrayList<ParameterValue> parameters = new ArrayList<ParameterValue>();
+        parameters.add(new StringParameterValue("TARGET_BRANCH", "r1336"));
+        parameters.add(new StringParameterValue("ORIGINAL_BRANCH", "r1336"));
+
+        UpmergeBuilder upmergeBuilder = new UpmergeBuilder("JenkinsTestRunner <test@runner.com>");
+        upmergeBuilder.setPushEachStep(true);
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.setScm(new GitSCM(remotes, branches, false, null, null, null, null));
+        p.getBuildersList().add(upmergeBuilder);
+        p.getBuildersList().add(new GatekeeperPush());
+
+        FreeStyleBuild failed = p.scheduleBuild2(0, new ABuildCause(), new ParametersAction(parameters)).get();
+        j.assertBuildStatus(Result.FAILURE, failed);
+        assert !g.searchLog(repo, "[Jenkins Upmerging] Merged r1336 into r1338").isEmpty();
+
+        // resolve the conflict by hand
+        client.checkout().ref("r1340").execute();
+        ((CliGitAPIImpl) client).launchCommand("rm", "-q", "conflict");
+        client.setAuthor("dummy", "dummy@foo.bar");
+        client.setCommitter("dummy", "dummy@foo.bar");
+        client.commit("removed conflict");
+        client.checkout().ref("work").execute();
+
+        FreeStyleProject rerun = j.createFreeStyleProject();
+        rerun.setScm(new GitSCM(remotes, branches, false, null, null, null, null));
+        rerun.getBuildersList().add(upmergeBuilder);
+        rerun.getBuildersList().add(new GatekeeperPush());
+        FreeStyleBuild resumed = rerun.scheduleBuild2(
+                0, new ABuildCause(), new ParametersAction(parameters)).get();
+        j.assertBuildStatusSuccess(resumed);
+        j.assertLogContains("r1336 is already upmerged into r1338, skipping.", resumed);
+
+        client.checkout().ref("master").execute();
+        client.clean();
+        assert new File(repo, "fix").exists();
+        assert new File(repo, "conflict").exists();
+        assert !g.searchLog(repo, "[Jenkins Upmerging] Merged r1338 into r1340").isEmpty();
+    }
+
+    @Test
+    public void testMergeConflictOnAgentGit() throws Exception {
+        /*
+         * So:
+         * set up a repo with 1 release and 1 feature branch which conflicts with it
+         * run the merge on an agent, as one remote call
+         * assert the conflict is reported as a merge conflict, like on the master
+         */
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.setAssignedNode(j.createOnlineSlave());
+        List<UserRemoteConfig> remotes = new ArrayList<UserRemoteConfig>();
+        remotes.add(new UserRemoteConfig(repo.getPath(), "origin", "master", null));
+        List<BranchSpec> branches = new ArrayList<BranchSpec>();
+        branches.add(new BranchSpec("master"));
+        p.setScm(new GitSCM(remotes, branches, false, null, null, null, null));
+
+        GitClient client = g.gitClient(repo);
+        client.init();
+        g.touchAndCommit(repo, "base");
+        client.checkout().branch("c3").execute();
+        g.touchAndCommit(repo, "conflict");
+        g.touchAndCommit(repo, "conflict");
+        client.checkout().ref("master").execute();
+        client.checkout().branch("r1336").execute();
+        g.touchAndCommit(repo, "conflict");
+
+        GatekeeperMerge mergeBuilder = new GatekeeperMerge("JenkinsTestRunner <test@runner.com>", null, null);
+        mergeBuilder.setRunOnAgent(true);
+        p.getBuildersList().add(mergeBuilder);
+
+        ArrayList<ParameterValue> parameters = new ArrayList<ParameterValue>();
+        parameters.add(new StringParameterValue("TARGET_BRANCH", "r1336"));
+        parameters.add(new StringParameterValue("ORIGINAL_BRANCH", "r1336"));
+        parameters.add(new StringParameterValue("FEATURE_BRANCH", "c3"));
+        FreeStyleBuild build = p.scheduleBuild2(0, new ABuildCause(), new ParametersAction(parameters)).get();
+        j.assertBuildStatus(Result.FAILURE, build);
+        j.assertLogContains("Merge conflict occured when Gatekeeper merging", build);
+    }
 }
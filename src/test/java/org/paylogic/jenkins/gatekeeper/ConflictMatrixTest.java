@@ -0,0 +1,96 @@
+package org.paylogic.jenkins.gatekeeper;
+
+import hudson.model.FreeStyleProject;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
+import hudson.model.Queue;
+import hudson.model.StringParameterValue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.paylogic.jenkins.ABuildCause;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+public class ConflictMatrixTest {
+
+    private static final List<String> MERGES = Arrays.asList("a", "b", "c", "d");
+
+    @Rule public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void testQueueOrderIsKeptWithoutConflicts() {
+        assertEquals(MERGES, ConflictMatrix.order(MERGES, new HashSet<String>()));
+    }
+
+    @Test
+    public void testMostConflictingMergeGoesLast() {
+        Set<String> pairs = new HashSet<String>(Arrays.asList(ConflictMatrix.pair("b", "a"),
+                ConflictMatrix.pair("a", "c")));
+        assertEquals(Arrays.asList("b", "c", "d", "a"), ConflictMatrix.order(MERGES, pairs));
+    }
+
+    @Test
+    public void testTiesKeepQueueOrder() {
+        Set<String> pairs = new HashSet<String>(Arrays.asList(ConflictMatrix.pair("a", "b")));
+        assertEquals(Arrays.asList("a", "c", "d", "b"), ConflictMatrix.order(MERGES, pairs));
+    }
+
+    @Test
+    public void testSorterKeepsBuildsDoingTheSameMerge() throws Exception {
+        /*
+         * So:
+         * queue two builds merging the same feature with another CASE_ID, and one conflicting with them
+         * sort the queue
+         * assert no build is dropped or taken twice
+         */
+        j.jenkins.setNumExecutors(0);
+        FreeStyleProject p = j.createFreeStyleProject();
+        GatekeeperMerge mergeBuilder = new GatekeeperMerge("JenkinsTestRunner <test@runner.com>", null, null);
+        mergeBuilder.setPrecheckMergeability(true);
+        p.getBuildersList().add(mergeBuilder);
+        p.scheduleBuild2(0, new ABuildCause(), getParameters("c3", "1"));
+        p.scheduleBuild2(0, new ABuildCause(), getParameters("c3", "2"));
+        p.scheduleBuild2(0, new ABuildCause(), getParameters("c4", "3"));
+        List<Queue.BuildableItem> items = new ArrayList<Queue.BuildableItem>();
+        for (int attempt = 0; attempt < 50 && items.size() < 3; attempt++) {
+            Thread.sleep(100);
+            j.jenkins.getQueue().maintain();
+            items = new ArrayList<Queue.BuildableItem>(j.jenkins.getQueue().getBuildableItems());
+        }
+        assertEquals(3, items.size());
+
+        Set<String> merges = new HashSet<String>();
+        Set<String> ids = new HashSet<String>();
+        for (Queue.BuildableItem item : items) {
+            merges.add(MergeabilityPrecheck.getMerge(item));
+            ids.add(String.valueOf(item.getId()));
+        }
+        assertEquals(2, merges.size());
+        List<String> keys = new ArrayList<String>(merges);
+        ConflictMatrix.getInstance().record(ConflictMatrix.getGroup(items.get(0)),
+                new HashSet<String>(Arrays.asList(ConflictMatrix.pair(keys.get(0), keys.get(1)))));
+
+        new ConflictMatrix.Sorter().sortBuildableItems(items);
+
+        Set<String> sorted = new HashSet<String>();
+        for (Queue.BuildableItem item : items) {
+            sorted.add(String.valueOf(item.getId()));
+        }
+        assertEquals(ids, sorted);
+    }
+
+    private static ParametersAction getParameters(String featureBranch, String caseId) {
+        List<ParameterValue> parameters = new ArrayList<ParameterValue>();
+        parameters.add(new StringParameterValue("TARGET_BRANCH", "r1336"));
+        parameters.add(new StringParameterValue("FEATURE_BRANCH", featureBranch));
+        parameters.add(new StringParameterValue("CASE_ID", caseId));
+        return new ParametersAction(parameters);
+    }
+}
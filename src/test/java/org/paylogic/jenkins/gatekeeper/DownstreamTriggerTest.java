@@ -0,0 +1,62 @@
+package org.paylogic.jenkins.gatekeeper;
+
+import hudson.model.FreeStyleProject;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersDefinitionProperty;
+import hudson.model.StringParameterDefinition;
+import hudson.model.StringParameterValue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class DownstreamTriggerTest {
+
+    private static final String KEY = DownstreamTrigger.getKey("tests", "BRANCH", "r1410");
+
+    @Rule public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void testPushesOfABranchAreCoalesced() {
+        DownstreamTrigger trigger = new DownstreamTrigger();
+        trigger.add(KEY, "tests", "BRANCH", "r1410", "merge #1", 60, 0);
+        long due = trigger.add(KEY, "tests", "BRANCH", "r1410", "merge #2", 60, 30000);
+
+        assertEquals(90000, due);
+        assertNull(trigger.take(KEY, 60000));
+        assertEquals(Arrays.asList("merge #1", "merge #2"),
+                new ArrayList<String>(trigger.take(KEY, 90000).getUpstreams()));
+        assertNull(trigger.take(KEY, 90000));
+    }
+
+    @Test
+    public void testTriggerIsNotDelayedForever() {
+        DownstreamTrigger trigger = new DownstreamTrigger();
+        trigger.add(KEY, "tests", "BRANCH", "r1410", "merge #1", 60, 0);
+        long due = trigger.add(KEY, "tests", "BRANCH", "r1410", "merge #2", 60,
+                DownstreamTrigger.MAX_DELAY_SECONDS * 1000);
+
+        assertEquals(DownstreamTrigger.MAX_DELAY_SECONDS * 1000, due);
+    }
+
+    @Test
+    public void testOtherParametersGetTheirDefaults() throws Exception {
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.addProperty(new ParametersDefinitionProperty(
+                new StringParameterDefinition("BRANCH", "default", ""),
+                new StringParameterDefinition("SUITE", "all", "")));
+
+        List<ParameterValue> parameters = DownstreamTrigger.getParameters(p, "BRANCH", "r1410");
+
+        assertEquals(2, parameters.size());
+        assertEquals("r1410", ((StringParameterValue) parameters.get(0)).value);
+        assertEquals("SUITE", parameters.get(1).getName());
+        assertEquals("all", ((StringParameterValue) parameters.get(1)).value);
+    }
+}
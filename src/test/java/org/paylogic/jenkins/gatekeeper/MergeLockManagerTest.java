@@ -0,0 +1,107 @@
+package org.paylogic.jenkins.gatekeeper;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class MergeLockManagerTest {
+
+    @Test
+    public void testDifferentTargetsDoNotBlock() throws Exception {
+        MergeLockManager locks = new MergeLockManager();
+        locks.acquire("repo", "r1336", "job#1", 100);
+        locks.acquire("repo", "r1338", "job#2", 100);
+        locks.acquire("other", "r1336", "job#3", 100);
+        assertEquals(1, locks.getQueueDepth("repo", "r1336"));
+        assertEquals(3, locks.getTotalQueueDepth());
+    }
+
+    @Test
+    public void testQueuesListHolderFirst() throws Exception {
+        final MergeLockManager locks = new MergeLockManager();
+        locks.acquire("repo", "r1336", "job#1", 100);
+        Thread waiting = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    locks.acquire("repo", "r1336", "job#2", 0);
+                } catch (Exception e) {
+                    // interrupted at the end of the test
+                }
+            }
+        };
+        waiting.start();
+        while (locks.getQueueDepth("repo", "r1336") < 2) {
+            Thread.sleep(10);
+        }
+
+        Map<String, List<String>> queues = locks.getQueues();
+        assertEquals(1, queues.size());
+        assertEquals(Arrays.asList("job#1", "job#2"), queues.get("repo#r1336"));
+        waiting.interrupt();
+        waiting.join();
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        MergeLockManager locks = new MergeLockManager();
+        locks.acquire("repo", "r1336", "job#1", 100);
+        try {
+            locks.acquire("repo", "r1336", "job#2", 100);
+            fail("Lock should not be acquired while held by another build.");
+        } catch (MergeLockTimeoutException e) {
+            // expected
+        }
+        assertEquals(1, locks.getTimeouts());
+        assertEquals(1, locks.getQueueDepth("repo", "r1336"));
+
+        locks.releaseAll("job#1");
+        locks.acquire("repo", "r1336", "job#2", 100);
+    }
+
+    @Test
+    public void testWaitingBuildsGetLockInOrder() throws Exception {
+        final MergeLockManager locks = new MergeLockManager();
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        locks.acquire("repo", "r1336", "job#0", 0);
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 1; i <= 3; i++) {
+            final String owner = "job#" + i;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        locks.acquire("repo", "r1336", owner, 0);
+                        order.add(owner);
+                        locks.release("repo", "r1336", owner);
+                    } catch (Exception e) {
+                        order.add(e.toString());
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+            // make sure the threads queue up in this order
+            while (locks.getQueueDepth("repo", "r1336") != i + 1) {
+                Thread.sleep(10);
+            }
+        }
+        locks.release("repo", "r1336", "job#0");
+        for (Thread thread : threads) {
+            thread.join(10000);
+        }
+        assertEquals(3, order.size());
+        assertEquals("job#1", order.get(0));
+        assertEquals("job#2", order.get(1));
+        assertEquals("job#3", order.get(2));
+        assertEquals(0, locks.getTotalQueueDepth());
+    }
+}
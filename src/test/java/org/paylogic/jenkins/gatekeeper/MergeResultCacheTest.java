@@ -0,0 +1,64 @@
+package org.paylogic.jenkins.gatekeeper;
+
+import hudson.FilePath;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class MergeResultCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FilePath bundle(String content) throws Exception {
+        File file = folder.newFile();
+        new FilePath(file).write(content, "UTF-8");
+        return new FilePath(file);
+    }
+
+    @Test
+    public void testStoredResultIsReturned() throws Exception {
+        MergeResultCache cache = new MergeResultCache(folder.newFolder(), 60 * 1000, 1024);
+        assertNull(cache.get("key"));
+
+        cache.put("key", bundle("merge"), "abc123");
+        MergeResultCache.Entry entry = cache.get("key");
+        assertNotNull(entry);
+        assertEquals("abc123", entry.getRevision());
+        assertEquals("merge", new FilePath(entry.getBundle()).readToString());
+    }
+
+    @Test
+    public void testExpiredResultIsDropped() throws Exception {
+        File directory = folder.newFolder();
+        MergeResultCache cache = new MergeResultCache(directory, 60 * 1000, 1024);
+        cache.put("key", bundle("merge"), "abc123");
+        new File(directory, "key.bundle").setLastModified(System.currentTimeMillis() - 2 * 60 * 1000);
+
+        assertNull(cache.get("key"));
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedResultIsEvicted() throws Exception {
+        File directory = folder.newFolder();
+        MergeResultCache cache = new MergeResultCache(directory, 60 * 1000, 10);
+        long now = System.currentTimeMillis();
+        cache.put("key1", bundle("merge"), "1");
+        new File(directory, "key1.bundle").setLastModified(now - 3000);
+        cache.put("key2", bundle("merge"), "2");
+        new File(directory, "key2.bundle").setLastModified(now - 2000);
+        cache.get("key1");
+        cache.put("key3", bundle("merge"), "3");
+
+        assertNotNull(cache.get("key1"));
+        assertNull(cache.get("key2"));
+        assertNotNull(cache.get("key3"));
+    }
+}
@@ -0,0 +1,81 @@
+package org.paylogic.jenkins.gatekeeper;
+
+import hudson.FilePath;
+import hudson.plugins.mercurial.MercurialSCM;
+import hudson.util.StreamTaskListener;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.paylogic.jenkins.advancedscm.MercurialRule;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PrecheckRepositoryTest {
+
+    private static final List<String> BRANCHES = Arrays.asList("default", "r1410", "r1412", "feature");
+
+    @Rule public JenkinsRule j = new JenkinsRule();
+    @Rule public MercurialRule m = new MercurialRule(j);
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testUpmergeTargetsFollowTheReleases() {
+        assertEquals(Arrays.asList("r1410", "r1412", "default"),
+                PrecheckRepository.getTargets("r1410", BRANCHES, "default", true));
+    }
+
+    @Test
+    public void testOnlyTargetWithoutUpmerge() {
+        assertEquals(Arrays.asList("r1410"), PrecheckRepository.getTargets("r1410", BRANCHES, "default", false));
+    }
+
+    @Test
+    public void testNothingIsUpmergedFromDefault() {
+        assertEquals(Arrays.asList("default"), PrecheckRepository.getTargets("default", BRANCHES, "default", true));
+    }
+
+    @Test
+    public void testPairsAreMergedIntoTheSameTargetMercurial() throws Exception {
+        /*
+         * So:
+         * set up a repo with 3 feature branches, two of which change the same file differently
+         * check the pairs, merging the first feature commits on the target branch
+         * assert the second feature is still merged into the target itself, so the conflict between them is found
+         */
+        File repo = tmp.getRoot();
+        m.hg(repo, "init");
+        m.touchAndCommit(repo, "base", "shared");
+        m.hg(repo, "branch", "f1");
+        new FilePath(new File(repo, "shared")).write("one\n", "UTF-8");
+        m.hg(repo, "commit", "--message", "changed shared");
+        m.hg(repo, "update", "default");
+        m.hg(repo, "branch", "f2");
+        new FilePath(new File(repo, "shared")).write("two\n", "UTF-8");
+        m.hg(repo, "commit", "--message", "changed shared");
+        m.hg(repo, "update", "default");
+        m.hg(repo, "branch", "f3");
+        m.touchAndCommit(repo, "f3");
+
+        PrecheckRepository repository = new PrecheckRepository(
+                new MercurialSCM(null, repo.getPath(), "tip", null, null, null, false), repo.getPath(), j.jenkins,
+                new StreamTaskListener(System.out, Charset.defaultCharset()));
+        repository.update();
+        String f1 = repository.fetchFeature("", "f1");
+        String f2 = repository.fetchFeature("", "f2");
+        String f3 = repository.fetchFeature("", "f3");
+        String target = repository.getHead("default");
+
+        assertFalse(repository.conflicts(target, f1, f3));
+        assertTrue(repository.conflicts(target, f1, f2));
+        assertFalse(repository.conflicts(target, f2, f3));
+        assertEquals(target, repository.getHead("default"));
+    }
+}
@@ -0,0 +1,32 @@
+package org.paylogic.jenkins.gatekeeper;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TestedTreeIndexTest {
+
+    @Test
+    public void testTreesAreTrackedPerJob() throws Exception {
+        TestedTreeIndex index = new TestedTreeIndex(2);
+        index.record("gatekeeper", "tree1", "gatekeeper#1");
+
+        assertEquals("gatekeeper#1", index.getTestedBy("gatekeeper", "tree1"));
+        assertNull(index.getTestedBy("other", "tree1"));
+        assertNull(index.getTestedBy("gatekeeper", "tree2"));
+        assertNull(index.getTestedBy("gatekeeper", null));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedTreeIsEvicted() throws Exception {
+        TestedTreeIndex index = new TestedTreeIndex(2);
+        index.record("gatekeeper", "tree1", "gatekeeper#1");
+        index.record("gatekeeper", "tree2", "gatekeeper#2");
+        index.getTestedBy("gatekeeper", "tree1");
+        index.record("gatekeeper", "tree3", "gatekeeper#3");
+
+        assertEquals("gatekeeper#1", index.getTestedBy("gatekeeper", "tree1"));
+        assertNull(index.getTestedBy("gatekeeper", "tree2"));
+    }
+}
@@ -0,0 +1,49 @@
+package org.paylogic.jenkins.gatekeeper;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WorkspaceAffinityTest {
+
+    private Set<String> online(String... nodes) {
+        return new HashSet<String>(Arrays.asList(nodes));
+    }
+
+    @Test
+    public void testWarmestNodeFirstThenAnyWarmNodeThenAnyNode() throws Exception {
+        WorkspaceAffinity affinity = new WorkspaceAffinity();
+        affinity.record("gatekeeper", "agent1", 1000);
+        affinity.record("gatekeeper", "agent2", 2000);
+        assertEquals(Arrays.asList("agent2", "agent1"), affinity.getWarmNodes("gatekeeper"));
+
+        Set<String> online = online("agent1", "agent2", "agent3");
+        assertTrue(affinity.canRun("gatekeeper", "agent2", online, 0, 60000));
+        assertFalse(affinity.canRun("gatekeeper", "agent1", online, 0, 60000));
+        assertFalse(affinity.canRun("gatekeeper", "agent3", online, 0, 60000));
+
+        assertTrue(affinity.canRun("gatekeeper", "agent1", online, 30000, 60000));
+        assertFalse(affinity.canRun("gatekeeper", "agent3", online, 30000, 60000));
+
+        assertTrue(affinity.canRun("gatekeeper", "agent3", online, 60000, 60000));
+    }
+
+    @Test
+    public void testNoWaitingWithoutOnlineWarmNode() throws Exception {
+        WorkspaceAffinity affinity = new WorkspaceAffinity();
+        assertTrue(affinity.canRun("gatekeeper", "agent3", online("agent3"), 0, 60000));
+
+        affinity.record("gatekeeper", "agent1", 1000);
+        assertTrue(affinity.canRun("gatekeeper", "agent3", online("agent3"), 0, 60000));
+        assertFalse(affinity.canRun("gatekeeper", "agent3", online("agent1", "agent3"), 0, 60000));
+
+        affinity.forget("gatekeeper");
+        assertTrue(affinity.canRun("gatekeeper", "agent3", online("agent1", "agent3"), 0, 60000));
+    }
+}
@@ -0,0 +1,18 @@
+package org.paylogic.jenkins.gatekeeper;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WorkspaceMaintenanceTest {
+
+    @Test
+    public void testWorkspaceIsMaintainedOncePerInterval() throws Exception {
+        WorkspaceMaintenance maintenance = new WorkspaceMaintenance();
+        assertTrue(maintenance.claim("agent1:/ws", 1000, 500));
+        assertFalse(maintenance.claim("agent1:/ws", 1400, 500));
+        assertTrue(maintenance.claim("agent2:/ws", 1400, 500));
+        assertTrue(maintenance.claim("agent1:/ws", 1500, 500));
+    }
+}
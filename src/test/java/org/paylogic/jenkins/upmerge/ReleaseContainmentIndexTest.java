@@ -0,0 +1,50 @@
+package org.paylogic.jenkins.upmerge;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class ReleaseContainmentIndexTest {
+
+    @Test
+    public void testContainingBranchesAreFound() {
+        ReleaseContainmentIndex index = new ReleaseContainmentIndex();
+        // a1 - a2 (r1410) - b1 - b2 (r1411), with the fix f1 merged into r1411 by b2
+        index.add(Arrays.asList("a1", "a2 a1", "b1 a2", "f1 a2", "b2 b1 f1"));
+        index.setHead("r1410", "a2");
+        index.setHead("r1411", "b2");
+
+        assertEquals(Arrays.asList("r1410", "r1411"), index.getContaining("a1"));
+        assertEquals(Arrays.asList("r1411"), index.getContaining("f1"));
+        assertNull(index.getContaining("unknown"));
+    }
+
+    @Test
+    public void testIndexIsUpdatedIncrementally() {
+        ReleaseContainmentIndex index = new ReleaseContainmentIndex();
+        index.add(Arrays.asList("a1", "a2 a1"));
+        index.setHead("r1410", "a2");
+        index.add(Arrays.asList("a2 a1", "b1 a2"));
+        index.setHead("r1411", "b1");
+        index.add(Arrays.asList("a3 a2"));
+        index.setHead("r1410", "a3");
+
+        assertEquals(4, index.getSize());
+        assertEquals(Arrays.asList("r1410", "r1411"), index.getContaining("a2"));
+        assertEquals(Arrays.asList("r1410"), index.getContaining("a3"));
+        assertFalse(index.setHead("r1412", "unknown"));
+    }
+
+    @Test
+    public void testAbbreviatedIdsAreResolved() {
+        ReleaseContainmentIndex index = new ReleaseContainmentIndex();
+        index.add(Arrays.asList("abc123", "abd456 abc123"));
+        assertEquals("abc123", index.resolve("abc"));
+        assertNull(index.resolve("ab"));
+        assertNull(index.resolve("abe"));
+    }
+}